@@ -2,9 +2,10 @@ package com.coldcore.coloradoftp.plugin.cottafilesystem;
 
 import com.coldcore.coloradoftp.filesystem.FailedActionException;
 import com.coldcore.coloradoftp.filesystem.FailedActionReason;
-import com.coldcore.coloradoftp.filesystem.FileSystem;
 import com.coldcore.coloradoftp.filesystem.ListingFile;
+import com.coldcore.coloradoftp.filesystem.StreamingFileSystem;
 import com.coldcore.coloradoftp.filesystem.impl.ListingFileBean;
+import com.coldcore.coloradoftp.filesystem.impl.ListingIterator;
 import com.coldcore.coloradoftp.plugin.xmlfs.User;
 import com.coldcore.coloradoftp.plugin.xmlfs.VirtualFolder;
 import com.coldcore.coloradoftp.plugin.xmlfs.XmlFS;
@@ -15,7 +16,9 @@ import com.coldcore.coloradoftp.session.Session;
 import com.coldcore.coloradoftp.session.SessionAttributeName;
 import org.apache.log4j.Logger;
 
+import java.io.BufferedInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.channels.ReadableByteChannel;
@@ -23,6 +26,7 @@ import java.nio.channels.WritableByteChannel;
 import java.nio.channels.Channels;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
 
 import net.sf.cotta.TFileFactory;
@@ -33,6 +37,7 @@ import net.sf.cotta.io.OutputMode;
 
 /**
  * @see com.coldcore.coloradoftp.filesystem.FileSystem
+ * @see com.coldcore.coloradoftp.filesystem.StreamingFileSystem
  *
  * This implementation is mounted to the COTTA back end and using the XmlFS for permissions and mappings.
  *
@@ -45,7 +50,7 @@ import net.sf.cotta.io.OutputMode;
  * but virtual folders can be mounted to user's home allowing user to travel anywhere withing the actual
  * filesystem.
  */
-public class CottaFileSystem implements FileSystem {
+public class CottaFileSystem implements StreamingFileSystem {
 
   private static Logger log = Logger.getLogger(CottaFileSystem.class);
   protected XmlFS xmlFS;
@@ -55,6 +60,8 @@ public class CottaFileSystem implements FileSystem {
   protected String mlsxDirFacts;
   private TFileFactory fileFactory;
 
+  public static final int STREAM_BUFFER_SIZE = 64*1024;
+
 
   public CottaFileSystem(String filename, TFileFactory fileFactory) throws FileNotFoundException, ParsingException {
     this.fileFactory = fileFactory;
@@ -109,6 +116,17 @@ public class CottaFileSystem implements FileSystem {
   }
 
 
+  /** Reload the XmlFS configuration file when it changes, sessions pick up the changes
+   * without the server restart
+   * @param interval Time in milliseconds between file checks, 0 to stop watching
+   */
+  public void setConfigurationReloadInterval(long interval) {
+    if (interval < 0L) throw new IllegalArgumentException("Invalid interval");
+    if (interval == 0L) xmlFS.stopWatching();
+    else xmlFS.startWatching(interval);
+  }
+
+
   public String getCurrentDirectory(Session userSession) {
     return xmlFS.getVirtualPathResolver().getCurrentVirtualDirectory(userSession);
   }
@@ -129,11 +147,19 @@ public class CottaFileSystem implements FileSystem {
 
 
   public Set<ListingFile> listDirectory(String dir, Session userSession) {
-    User user = xmlFS.findUser(userSession);
+    Set<ListingFile> set = new HashSet<ListingFile>();
+    for (Iterator<ListingFile> it = iterateDirectory(dir, userSession); it.hasNext();)
+      set.add(it.next());
+    return set;
+  }
+
+
+  public Iterator<ListingFile> iterateDirectory(String dir, Session userSession) {
+    final User user = xmlFS.findUser(userSession);
     if (user == null)
       throw new FailedActionException(FailedActionReason.OTHER, "No file system entry.");
 
-    String apath = xmlFS.getVirtualPathResolver().virtualPathToAbsolute(dir, userSession);
+    final String apath = xmlFS.getVirtualPathResolver().virtualPathToAbsolute(dir, userSession);
     String rpath = xmlFS.getRealPathResolver().virtualPathToReal(apath, user.getHome());
     if (rpath == null)
       throw new FailedActionException(FailedActionReason.PATH_ERROR, "Path not found.");
@@ -146,9 +172,8 @@ public class CottaFileSystem implements FileSystem {
     if (!tdir.exists())
       throw new FailedActionException(FailedActionReason.PATH_ERROR, "Path is a file.");
 
-    Set<ListingFile> set = new HashSet<ListingFile>();
-    TDirectory[] dlist;
-    TFile[] flist;
+    final TDirectory[] dlist;
+    final TFile[] flist;
     try {
       dlist = tdir.listDirs();
       flist = tdir.listFiles();
@@ -156,39 +181,51 @@ public class CottaFileSystem implements FileSystem {
       log.error("Cannot list path", e);
       throw new FailedActionException(FailedActionReason.SYSTEM_ERROR);
     }
-    for (TDirectory d : dlist) {
-      //Test if listing is allowed
-      if (!xmlFS.getPermissionsManager().canListDirectory(d.toPath().toPathString(), user.getHome())) continue;
-      String fapath = xmlFS.getVirtualPathResolver().virtualPathToAbsolute(apath+"/"+d.name(), userSession);
-      String frpath = d.toPath().toPathString();
-      ListingFile lf = createListingFile(fapath, frpath);
-      if (lf != null) set.add(lf);
-    }
-    for (TFile f : flist) {
-      //Test if listing is allowed
-      if (!xmlFS.getPermissionsManager().canListFile(f.toPath().toPathString(), user.getHome())) continue;
-      String fapath = xmlFS.getVirtualPathResolver().virtualPathToAbsolute(apath+"/"+f.name(), userSession);
-      String frpath = f.toPath().toPathString();
-      ListingFile lf = createListingFile(fapath, frpath);
-      if (lf != null) set.add(lf);
-    }
 
-    //Add virtual folders
-    if (apath.equals("/")) {
-      Set<VirtualFolder> vfolders = user.getHome().getVirtualFolders();
-      for (VirtualFolder vf : vfolders) {
-        ListingFile lf = createListingFile(apath, vf.getPath());
-        if (lf != null) {
-          lf.setName(vf.getName());
-          lf.setAbsolutePath("/"+vf.getName());
-          set.add(lf);
-        }
-      }
-    }
+    //Virtual folders are listed after the directory content
+    final Iterator<VirtualFolder> vfolders = apath.equals("/") ?
+            user.getHome().getVirtualFolders().iterator() : null;
 
     log.debug("Directory listed: "+rpath);
 
-    return set;
+    return new ListingIterator() {
+      private int dindex;
+      private int findex;
+
+      protected ListingFile fetchNext() {
+        while (dindex < dlist.length) {
+          TDirectory d = dlist[dindex++];
+          //Test if listing is allowed
+          if (!xmlFS.getPermissionsManager().canListDirectory(d.toPath().toPathString(), user.getHome())) continue;
+          String fapath = childPath(apath, d.name());
+          String frpath = d.toPath().toPathString();
+          ListingFile lf = createListingFile(fapath, frpath);
+          if (lf != null) return lf;
+        }
+
+        while (findex < flist.length) {
+          TFile f = flist[findex++];
+          //Test if listing is allowed
+          if (!xmlFS.getPermissionsManager().canListFile(f.toPath().toPathString(), user.getHome())) continue;
+          String fapath = childPath(apath, f.name());
+          String frpath = f.toPath().toPathString();
+          ListingFile lf = createListingFile(fapath, frpath);
+          if (lf != null) return lf;
+        }
+
+        while (vfolders != null && vfolders.hasNext()) {
+          VirtualFolder vf = vfolders.next();
+          ListingFile lf = createListingFile(apath, vf.getPath());
+          if (lf != null) {
+            lf.setName(vf.getName());
+            lf.setAbsolutePath("/"+vf.getName());
+            return lf;
+          }
+        }
+
+        return null;
+      }
+    };
   }
 
 
@@ -206,6 +243,17 @@ public class CottaFileSystem implements FileSystem {
   }
 
 
+  /** Get absolute virtual path of a directory child (the directory path is already absolute,
+   * so there is nothing for the virtual path resolver to do)
+   * @param apath Absolute virtual path of a directory
+   * @param name Child name
+   * @return Absolute virtual path
+   */
+  protected String childPath(String apath, String name) {
+    return apath.equals("/") ? "/"+name : apath+"/"+name;
+  }
+
+
   /** Create listing file object
    * @param apath Absolute virtual path
    * @param rpath Absolute real path
@@ -214,8 +262,8 @@ public class CottaFileSystem implements FileSystem {
   protected ListingFile createListingFile(String apath, String rpath) {
     TDirectory tdir = fileFactory.dir(rpath);
     TFile tfile = fileFactory.file(rpath);
-    if (!tdir.exists() && !tfile.exists()) return null;
     boolean isFile = tfile.exists();
+    if (!isFile && !tdir.exists()) return null;
 
     ListingFile lf = new ListingFileBean();
     lf.setName(apath.equals("/")?"/":isFile?tfile.name():tdir.name());
@@ -428,9 +476,8 @@ public class CottaFileSystem implements FileSystem {
 
     ReadableByteChannel fc;
     try {
-      InputStream in = tfile.io().inputStream();
-      while (position-- > 0)
-        in.read();
+      InputStream in = new BufferedInputStream(tfile.io().inputStream(), STREAM_BUFFER_SIZE);
+      if (position > 0) skipTo(in, Math.min(position, tfile.length()));
       fc = Channels.newChannel(in);
     } catch (Throwable e) {
       log.error("Cannot create (r) file channel", e);
@@ -445,6 +492,30 @@ public class CottaFileSystem implements FileSystem {
   }
 
 
+  /** Move a stream to a position without reading the data if possible.
+   * InputStream.skip may skip less than requested (or nothing at all), in that case the data
+   * is read in large blocks, so the cost does not depend on a single byte read per position.
+   * @param in Stream at the beginning of a file
+   * @param position Position not beyond the end of the file
+   */
+  protected void skipTo(InputStream in, long position) throws IOException {
+    long remaining = position;
+    byte[] buffer = null;
+    while (remaining > 0) {
+      long skipped = in.skip(remaining);
+      if (skipped > 0) {
+        remaining -= skipped;
+        continue;
+      }
+
+      if (buffer == null) buffer = new byte[STREAM_BUFFER_SIZE];
+      int i = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (i == -1) break; //File got shorter
+      remaining -= i;
+    }
+  }
+
+
   public WritableByteChannel saveFile(String filename, boolean append, Session userSession) {
     User user = xmlFS.findUser(userSession);
     if (user == null)
@@ -469,9 +540,10 @@ public class CottaFileSystem implements FileSystem {
 
     //Permissions
     boolean allowed;
-    allowed = (tfile.exists() && append && xmlFS.getPermissionsManager().canAppendFile(rpath, user.getHome())) ||
-              (tfile.exists() && !append && xmlFS.getPermissionsManager().canOverwriteFile(rpath, user.getHome())) ||
-              (!tfile.exists() && xmlFS.getPermissionsManager().canCreateFile(rpath, user.getHome()));
+    boolean exists = tfile.exists();
+    allowed = (exists && append && xmlFS.getPermissionsManager().canAppendFile(rpath, user.getHome())) ||
+              (exists && !append && xmlFS.getPermissionsManager().canOverwriteFile(rpath, user.getHome())) ||
+              (!exists && xmlFS.getPermissionsManager().canCreateFile(rpath, user.getHome()));
     if (!allowed)
       throw new FailedActionException(FailedActionReason.NO_PERMISSIONS, "Access denied.");
 
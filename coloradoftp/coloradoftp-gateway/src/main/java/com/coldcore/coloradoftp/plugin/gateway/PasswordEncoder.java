@@ -0,0 +1,21 @@
+package com.coldcore.coloradoftp.plugin.gateway;
+
+/**
+ * Password encoder.
+ */
+public interface PasswordEncoder {
+
+  /** Encode a password to store it
+   * @param password Plain password
+   * @return Encoded password
+   */
+  public String encode(String password);
+
+
+  /** Test if a password matches a stored one
+   * @param password Plain password submitted by a user
+   * @param encoded Stored password
+   * @return TRUE if the password matches, FALSE otherwise
+   */
+  public boolean matches(String password, String encoded);
+}
@@ -1,17 +1,29 @@
 package com.coldcore.coloradoftp.plugin.gateway.command;
 
+import com.coldcore.coloradoftp.command.Reply;
+import com.coldcore.coloradoftp.command.impl.DeferredReply;
+import com.coldcore.coloradoftp.plugin.gateway.Role;
 import com.coldcore.coloradoftp.plugin.gateway.User;
 import com.coldcore.coloradoftp.plugin.gateway.dao.UserDAO;
 import com.coldcore.coloradoftp.session.Session;
+import com.coldcore.coloradoftp.session.SessionAttributeName;
 import org.apache.log4j.Logger;
 
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
 /**
  * PASS command.
+ *
+ * If a password verifier is set then credentials are verified on its threads and the reply
+ * is submitted once the verification completes (see DeferredReply).
  */
 public class PassCommand extends com.coldcore.coloradoftp.command.impl.ftp.PassCommand {
 
   private static Logger log = Logger.getLogger(PassCommand.class);
   protected UserDAO userDAO;
+  protected PasswordVerifier passwordVerifier;
 
 
   /** Get user DAO
@@ -30,6 +42,69 @@ public class PassCommand extends com.coldcore.coloradoftp.command.impl.ftp.PassC
   }
 
 
+  /** Get password verifier
+   * @return Verifier or NULL if not set
+   */
+  public PasswordVerifier getPasswordVerifier() {
+    return passwordVerifier;
+  }
+
+
+  /** Set password verifier to check credentials off the command processing threads
+   * @param passwordVerifier Verifier
+   */
+  public void setPasswordVerifier(PasswordVerifier passwordVerifier) {
+    this.passwordVerifier = passwordVerifier;
+  }
+
+
+  protected Reply regularLogin(final String username, String password) {
+    if (passwordVerifier == null || userDAO == null) return super.regularLogin(username, password);
+
+    Session session = getConnection().getSession();
+    session.removeAttribute("user.object");
+    session.removeAttribute(SessionAttributeName.USER_ROLES);
+
+    User cached = passwordVerifier.getCached(username, password);
+    if (cached != null) {
+      storeUser(cached);
+      return loginReply(username, true);
+    }
+
+    //Reply is submitted when the verifier completes the check
+    DeferredReply<User> deferred = new DeferredReply<User>(this) {
+      protected Reply proceed(User user) {
+        if (user != null) storeUser(user);
+        return loginReply(username, user != null);
+      }
+
+      public void onFailure(Throwable e) {
+        if (!(e instanceof RejectedExecutionException)) {
+          super.onFailure(e);
+          return;
+        }
+        if (!done.compareAndSet(false, true)) return;
+        complete(new Continuation(command) {
+          public Reply execute() {
+            log.debug("Too many logins waiting for verification, login refused for username: "+username);
+            Reply reply = getReply();
+            reply.setCode("421");
+            reply.setText("Server is busy, try again later.");
+            return reply;
+          }
+        });
+      }
+    };
+    try {
+      passwordVerifier.verify(userDAO, username, password, deferred);
+    } catch (RuntimeException e) {
+      deferred.release(); //The check was not submitted
+      throw e;
+    }
+    return null;
+  }
+
+
   protected boolean checkLogin(String username, String password) {
     if (userDAO == null) {
       log.warn("No UserDAO, no login is possible");
@@ -38,17 +113,38 @@ public class PassCommand extends com.coldcore.coloradoftp.command.impl.ftp.PassC
 
     Session session = getConnection().getSession();
     session.removeAttribute("user.object");
+    session.removeAttribute(SessionAttributeName.USER_ROLES);
 
     try {
       User user = userDAO.getUser(username, password);
-
-      if (user != null)
-        session.setAttribute("user.object", user);
-
+      if (user != null) storeUser(user);
       return user != null;
 
     } catch (Exception e) {
       throw new RuntimeException("User DAO failed", e);
     }
   }
+
+
+  /** Store a logged in user in the session
+   * @param user User
+   */
+  protected void storeUser(User user) {
+    Session session = getConnection().getSession();
+    session.setAttribute("user.object", user);
+    session.setAttribute(SessionAttributeName.USER_ROLES, getRoleNames(user));
+  }
+
+
+  /** Get names of user roles (other plugins see roles by names only)
+   * @param user User
+   * @return Role names
+   */
+  protected Set<String> getRoleNames(User user) {
+    Set<String> names = new HashSet<String>();
+    if (user.getRoles() != null)
+      for (Role role : user.getRoles())
+        names.add(role.getName());
+    return names;
+  }
 }
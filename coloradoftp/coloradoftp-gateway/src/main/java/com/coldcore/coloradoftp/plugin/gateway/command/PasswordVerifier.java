@@ -0,0 +1,233 @@
+package com.coldcore.coloradoftp.plugin.gateway.command;
+
+import com.coldcore.coloradoftp.filesystem.FileSystemCallback;
+import com.coldcore.coloradoftp.plugin.gateway.User;
+import com.coldcore.coloradoftp.plugin.gateway.dao.UserDAO;
+import com.coldcore.coloradoftp.plugin.gateway.util.Digests;
+import org.apache.log4j.Logger;
+
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies user credentials on a separate pool of threads.
+ *
+ * Checking a hashed password costs CPU time, so logins are verified by a bounded pool sized
+ * apart from command processing: a burst of logins waits in the pool queue instead of holding
+ * control connection threads. When the queue is full a login is rejected.
+ *
+ * Successful verifications may be cached for a short time. Cache keys are digests of the
+ * credentials with a random salt generated at start up, so plain passwords are not kept.
+ *
+ * This class is thread safe.
+ */
+public class PasswordVerifier {
+
+  private static Logger log = Logger.getLogger(PasswordVerifier.class);
+  protected int threads;
+  protected int queueSize;
+  protected long cacheTimeout;
+  protected int maxCachedEntries;
+  protected ThreadPoolExecutor executor;
+  protected Map<String,Verified> cache;
+  protected byte[] salt;
+
+
+  /** Cached verification */
+  protected static class Verified {
+    User user;
+    long expires;
+  }
+
+
+  public PasswordVerifier() {
+    threads = 2;
+    queueSize = 100;
+    maxCachedEntries = 1000;
+    cache = new LinkedHashMap<String,Verified>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String,Verified> eldest) {
+        return size() > maxCachedEntries;
+      }
+    };
+    salt = new byte[16];
+    new SecureRandom().nextBytes(salt);
+  }
+
+
+  /** Get amount of verifying threads
+   * @return Threads
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+
+  /** Set amount of verifying threads (must be set before the first login)
+   * @param threads Threads
+   */
+  public void setThreads(int threads) {
+    if (threads < 1) throw new IllegalArgumentException("Invalid argument");
+    this.threads = threads;
+  }
+
+
+  /** Get max amount of logins waiting for verification
+   * @return Queue size
+   */
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+
+  /** Set max amount of logins waiting for verification (must be set before the first login)
+   * @param queueSize Queue size
+   */
+  public void setQueueSize(int queueSize) {
+    if (queueSize < 1) throw new IllegalArgumentException("Invalid argument");
+    this.queueSize = queueSize;
+  }
+
+
+  /** Get time a successful verification is cached
+   * @return Milliseconds, 0 if not cached
+   */
+  public long getCacheTimeout() {
+    return cacheTimeout;
+  }
+
+
+  /** Set time a successful verification is cached
+   * @param cacheTimeout Milliseconds, 0 to not cache
+   */
+  public void setCacheTimeout(long cacheTimeout) {
+    if (cacheTimeout < 0L) throw new IllegalArgumentException("Invalid argument");
+    this.cacheTimeout = cacheTimeout;
+  }
+
+
+  /** Get the executor (create if it does not exist yet)
+   * @return Executor
+   */
+  protected synchronized ThreadPoolExecutor getExecutor() {
+    if (executor != null) return executor;
+    executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+      private AtomicInteger counter = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "password-verifier-"+counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    return executor;
+  }
+
+
+  /** Get a cached verification
+   * @param username Username
+   * @param password Password
+   * @return User or NULL if not cached
+   */
+  public User getCached(String username, String password) {
+    if (cacheTimeout == 0L) return null;
+    String key = digest(username, password);
+    synchronized (cache) {
+      Verified verified = cache.get(key);
+      if (verified == null) return null;
+      if (verified.expires > System.currentTimeMillis()) return verified.user;
+      cache.remove(key);
+    }
+    return null;
+  }
+
+
+  /** Verify credentials on the pool, the callback receives a user or NULL if the credentials
+   * are invalid and a RejectedExecutionException if the pool is full
+   * @param userDAO DAO to verify with
+   * @param username Username
+   * @param password Password
+   * @param callback Callback
+   */
+  public void verify(final UserDAO userDAO, final String username, final String password,
+                     final FileSystemCallback<User> callback) {
+    Runnable task = new Runnable() {
+      public void run() {
+        User user;
+        try {
+          user = userDAO.getUser(username, password);
+        } catch (Throwable e) {
+          callback.onFailure(e);
+          return;
+        }
+        if (user != null) store(username, password, user);
+        callback.onSuccess(user);
+      }
+    };
+
+    try {
+      getExecutor().execute(task);
+    } catch (RejectedExecutionException e) {
+      log.debug("Too many logins waiting for verification");
+      callback.onFailure(e);
+    }
+  }
+
+
+  /** Cache a successful verification
+   * @param username Username
+   * @param password Password
+   * @param user User
+   */
+  protected void store(String username, String password, User user) {
+    if (cacheTimeout == 0L) return;
+    Verified verified = new Verified();
+    verified.user = user;
+    verified.expires = System.currentTimeMillis()+cacheTimeout;
+    String key = digest(username, password);
+    synchronized (cache) {
+      cache.put(key, verified);
+    }
+  }
+
+
+  /** Drop all cached verifications */
+  public void clear() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+
+  /** Digest credentials with the salt
+   * @param username Username
+   * @param password Password
+   * @return Hex digest
+   */
+  protected String digest(String username, String password) {
+    return Digests.saltedSha256(salt, username, password);
+  }
+
+
+  /** Get amount of logins waiting for verification
+   * @return Queued logins
+   */
+  public int getQueuedLogins() {
+    ThreadPoolExecutor executor = this.executor;
+    return executor == null ? 0 : executor.getQueue().size();
+  }
+
+
+  /** Shut the pool down */
+  public synchronized void destroy() {
+    if (executor != null) executor.shutdown();
+    executor = null;
+  }
+}
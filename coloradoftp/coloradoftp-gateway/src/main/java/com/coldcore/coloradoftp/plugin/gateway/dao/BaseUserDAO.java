@@ -1,5 +1,6 @@
 package com.coldcore.coloradoftp.plugin.gateway.dao;
 
+import com.coldcore.coloradoftp.plugin.gateway.PasswordEncoder;
 import com.coldcore.coloradoftp.plugin.gateway.Role;
 import com.coldcore.coloradoftp.plugin.gateway.User;
 import com.coldcore.coloradoftp.plugin.gateway.impl.RoleBean;
@@ -12,17 +13,38 @@ import java.util.HashSet;
 
 /**
  * Base user DAO class.
+ *
+ * Passwords are compared as plain text unless a password encoder is set.
  */
 abstract public class BaseUserDAO implements UserDAO {
 
   private static Logger log = Logger.getLogger(BaseUserDAO.class);
+  protected PasswordEncoder passwordEncoder;
+
+
+  /** Get password encoder
+   * @return Encoder or NULL if passwords are plain text
+   */
+  public PasswordEncoder getPasswordEncoder() {
+    return passwordEncoder;
+  }
+
+
+  /** Set password encoder to check stored passwords with
+   * @param passwordEncoder Encoder
+   */
+  public void setPasswordEncoder(PasswordEncoder passwordEncoder) {
+    this.passwordEncoder = passwordEncoder;
+  }
 
 
   public User getUser(String username, String passowrd) throws Exception {
     User user = getUser(username);
     if (user == null) return null;
 
-    if (user.getPassword().equals(passowrd)) {
+    boolean matches = passwordEncoder == null ?
+            user.getPassword().equals(passowrd) : passwordEncoder.matches(passowrd, user.getPassword());
+    if (matches) {
       BaseUserDAO.log.debug("User '"+username+"' password is OK");
       return user;
     } else {
@@ -0,0 +1,289 @@
+package com.coldcore.coloradoftp.plugin.gateway.dao;
+
+import com.coldcore.coloradoftp.plugin.gateway.User;
+import com.coldcore.coloradoftp.plugin.gateway.util.Digests;
+import org.apache.log4j.Logger;
+
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User DAO which caches results of another DAO.
+ *
+ * Found users are kept for a time to live and the least recently used entries are evicted when
+ * the cache is full, users not found (or wrong passwords) are kept for a shorter time. Concurrent
+ * lookups of the same key are coalesced into a single call to the underlying DAO, so a burst of
+ * logins of one user hits the DAO once.
+ *
+ * Lookups by username and password are cached by a digest of the password (never the password
+ * itself) with a random salt generated at start up, so this class works with DAOs which
+ * authenticate users on their own and the keys cannot be matched against precomputed digests.
+ * Saving a user through this DAO drops cached entries of the user. Usernames in cache keys are
+ * case insensitive (as in the XML and Spring DAOs).
+ *
+ * This class is thread safe.
+ */
+public class CachingUserDAO implements UserDAO {
+
+  private static Logger log = Logger.getLogger(CachingUserDAO.class);
+  protected UserDAO userDAO;
+  protected long timeToLive;
+  protected long negativeTimeToLive;
+  protected int maxEntries;
+  protected Map<String,CachedUser> entries;
+  protected ConcurrentMap<String,FutureTask<User>> lookups;
+  protected AtomicLong hits;
+  protected AtomicLong misses;
+  protected AtomicLong coalesced;
+  protected byte[] salt;
+
+
+  /** Cached lookup result */
+  protected static class CachedUser {
+    User user;
+    long expires;
+  }
+
+
+  public CachingUserDAO(UserDAO userDAO) {
+    if (userDAO == null) throw new IllegalArgumentException("Invalid argument");
+    this.userDAO = userDAO;
+
+    timeToLive = 60000L;
+    negativeTimeToLive = 5000L;
+    maxEntries = 1000;
+    entries = new LinkedHashMap<String,CachedUser>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String,CachedUser> eldest) {
+        return size() > maxEntries;
+      }
+    };
+    lookups = new ConcurrentHashMap<String,FutureTask<User>>();
+    hits = new AtomicLong();
+    misses = new AtomicLong();
+    coalesced = new AtomicLong();
+    salt = new byte[16];
+    new SecureRandom().nextBytes(salt);
+  }
+
+
+  /** Get time a found user is cached
+   * @return Milliseconds
+   */
+  public long getTimeToLive() {
+    return timeToLive;
+  }
+
+
+  /** Set time a found user is cached
+   * @param timeToLive Milliseconds
+   */
+  public void setTimeToLive(long timeToLive) {
+    if (timeToLive < 0L) throw new IllegalArgumentException("Invalid argument");
+    this.timeToLive = timeToLive;
+  }
+
+
+  /** Get time a user not found (or a wrong password) is cached
+   * @return Milliseconds
+   */
+  public long getNegativeTimeToLive() {
+    return negativeTimeToLive;
+  }
+
+
+  /** Set time a user not found (or a wrong password) is cached
+   * @param negativeTimeToLive Milliseconds, 0 to not cache
+   */
+  public void setNegativeTimeToLive(long negativeTimeToLive) {
+    if (negativeTimeToLive < 0L) throw new IllegalArgumentException("Invalid argument");
+    this.negativeTimeToLive = negativeTimeToLive;
+  }
+
+
+  /** Get max amount of cached entries
+   * @return Max entries
+   */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+
+  /** Set max amount of cached entries
+   * @param maxEntries Max entries
+   */
+  public void setMaxEntries(int maxEntries) {
+    if (maxEntries < 0) throw new IllegalArgumentException("Invalid argument");
+    this.maxEntries = maxEntries;
+  }
+
+
+  public User getUser(final String username) throws Exception {
+    return lookup(key(username), new Callable<User>() {
+      public User call() throws Exception {
+        return userDAO.getUser(username);
+      }
+    });
+  }
+
+
+  public User getUser(final String username, final String password) throws Exception {
+    return lookup(key(username)+"\u0000"+digest(password), new Callable<User>() {
+      public User call() throws Exception {
+        return userDAO.getUser(username, password);
+      }
+    });
+  }
+
+
+  public void insertUser(User user) throws Exception {
+    userDAO.insertUser(user);
+    invalidate(user.getUsername());
+  }
+
+
+  public void updateUser(User user) throws Exception {
+    userDAO.updateUser(user);
+    invalidate(user.getUsername());
+  }
+
+
+  /** Get a cached result or call the DAO (once for all concurrent callers)
+   * @param key Cache key
+   * @param call DAO call
+   * @return User or NULL
+   */
+  protected User lookup(String key, Callable<User> call) throws Exception {
+    long now = System.currentTimeMillis();
+    synchronized (entries) {
+      CachedUser entry = entries.get(key);
+      if (entry != null && entry.expires > now) {
+        hits.incrementAndGet();
+        return entry.user;
+      }
+    }
+    misses.incrementAndGet();
+
+    FutureTask<User> task = new FutureTask<User>(call);
+    FutureTask<User> running = lookups.putIfAbsent(key, task);
+    if (running == null) {
+      try {
+        task.run();
+        User user = get(task);
+        store(key, user);
+        return user;
+      } finally {
+        lookups.remove(key);
+      }
+    }
+
+    coalesced.incrementAndGet();
+    return get(running);
+  }
+
+
+  /** Get result of a lookup
+   * @param task Lookup
+   * @return User or NULL
+   */
+  protected User get(FutureTask<User> task) throws Exception {
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) throw (Exception) cause;
+      throw e;
+    }
+  }
+
+
+  /** Cache a lookup result
+   * @param key Cache key
+   * @param user User or NULL
+   */
+  protected void store(String key, User user) {
+    long ttl = user == null ? negativeTimeToLive : timeToLive;
+    if (ttl == 0L || maxEntries == 0) return;
+
+    CachedUser entry = new CachedUser();
+    entry.user = user;
+    entry.expires = System.currentTimeMillis()+ttl;
+    synchronized (entries) {
+      entries.put(key, entry);
+    }
+  }
+
+
+  /** Drop cached entries of a user
+   * @param username Username
+   */
+  public void invalidate(String username) {
+    String key = key(username);
+    String prefix = key+"\u0000";
+    synchronized (entries) {
+      entries.remove(key);
+      for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();)
+        if (it.next().startsWith(prefix)) it.remove();
+    }
+    log.debug("Cached entries of user '"+username+"' dropped");
+  }
+
+
+  /** Drop all cached entries */
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+
+  /** Get cache key of a username
+   * @param username Username
+   * @return Key
+   */
+  protected String key(String username) {
+    return username == null ? "" : username.toLowerCase(Locale.ENGLISH);
+  }
+
+
+  /** Digest a password with the salt so it is not kept in memory as a key
+   * @param password Password
+   * @return Hex digest
+   */
+  protected String digest(String password) {
+    if (password == null) return "";
+    return Digests.saltedSha256(salt, password);
+  }
+
+
+  /** Get amount of lookups served from the cache
+   * @return Hits
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+
+  /** Get amount of lookups not served from the cache
+   * @return Misses
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+
+  /** Get amount of lookups which waited for a concurrent lookup of the same key
+   * @return Coalesced lookups
+   */
+  public long getCoalesced() {
+    return coalesced.get();
+  }
+}
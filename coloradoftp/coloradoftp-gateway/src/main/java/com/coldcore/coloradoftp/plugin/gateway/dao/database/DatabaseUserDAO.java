@@ -8,9 +8,17 @@ import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * User data access object (based on data base).
+ *
+ * Queries are built once. With a pool size set, connections with a prepared lookup statement
+ * are kept open and reused by logins instead of preparing the statement on a new connection
+ * every time (a pooled connection which fails is dropped and the lookup is retried once).
+ * Wrap this DAO into CachingUserDAO to avoid the data base on repeated logins.
  */
 public class DatabaseUserDAO extends BaseUserDAO {
 
@@ -20,6 +28,17 @@ public class DatabaseUserDAO extends BaseUserDAO {
   protected String nameColumn;
   protected String passColumn;
   protected String roleColumn;
+  protected volatile String selectQuery;
+  protected int poolSize;
+  protected BlockingQueue<Lookup> pool;
+
+
+  /** Open connection with a prepared lookup statement */
+  protected static class Lookup {
+    Connection con;
+    PreparedStatement stmt;
+    String query;
+  }
 
 
   public DatabaseUserDAO(DataSource dataSource) {
@@ -30,6 +49,33 @@ public class DatabaseUserDAO extends BaseUserDAO {
     nameColumn = "USERNAME";
     passColumn = "PASSWORD";
     roleColumn = "ROLE";
+    pool = new LinkedBlockingQueue<Lookup>();
+  }
+
+
+  /** Get amount of pooled lookup connections
+   * @return Pool size, 0 if a new connection is used for every lookup
+   */
+  public int getPoolSize() {
+    return poolSize;
+  }
+
+
+  /** Set amount of pooled lookup connections
+   * @param poolSize Pool size, 0 to use a new connection for every lookup
+   */
+  public void setPoolSize(int poolSize) {
+    if (poolSize < 0) throw new IllegalArgumentException("Invalid argument");
+    this.poolSize = poolSize;
+    if (poolSize == 0) destroy();
+  }
+
+
+  /** Close all pooled connections */
+  public void destroy() {
+    Lookup lookup;
+    while ((lookup = pool.poll()) != null)
+      close(lookup);
   }
 
 
@@ -47,6 +93,7 @@ public class DatabaseUserDAO extends BaseUserDAO {
   public void setTable(String table) {
     if (table == null) throw new IllegalArgumentException("Invalid table name");
     this.table = table;
+    selectQuery = null;
   }
 
 
@@ -64,6 +111,7 @@ public class DatabaseUserDAO extends BaseUserDAO {
   public void setNameColumn(String nameColumn) {
     if (nameColumn == null) throw new IllegalArgumentException("Invalid column name");
     this.nameColumn = nameColumn;
+    selectQuery = null;
   }
 
 
@@ -81,6 +129,7 @@ public class DatabaseUserDAO extends BaseUserDAO {
   public void setPassColumn(String passColumn) {
     if (passColumn == null) throw new IllegalArgumentException("Invalid column name");
     this.passColumn = passColumn;
+    selectQuery = null;
   }
 
 
@@ -98,21 +147,97 @@ public class DatabaseUserDAO extends BaseUserDAO {
   public void setRoleColumn(String roleColumn) {
     if (roleColumn == null) throw new IllegalArgumentException("Invalid column name");
     this.roleColumn = roleColumn;
+    selectQuery = null;
+  }
+
+
+  /** Get query to select a user
+   * @return Query
+   */
+  protected String getSelectQuery() {
+    String query = selectQuery;
+    if (query == null) {
+      query = "SELECT "+nameColumn+", "+passColumn+", "+roleColumn+
+              " FROM "+table+" WHERE "+nameColumn+" = ?";
+      selectQuery = query;
+    }
+    return query;
   }
 
 
   public User getUser(String username) throws Exception {
-    String query = "SELECT "+nameColumn+", "+passColumn+", "+roleColumn+
-            " FROM "+table+" WHERE "+nameColumn+" = ?";
+    String query = getSelectQuery();
     log.debug("Query: "+query);
 
-    Connection con = null;
-    PreparedStatement stmt = null;
+    if (poolSize == 0) {
+      Lookup lookup = openLookup(query);
+      try {
+        return executeLookup(lookup, username);
+      } finally {
+        close(lookup);
+      }
+    }
+
+    //Take a pooled connection or open a new one
+    Lookup lookup = pool.poll();
+    if (lookup != null && !lookup.query.equals(query)) {
+      close(lookup);
+      lookup = null;
+    }
+    boolean pooled = lookup != null;
+    if (lookup == null) lookup = openLookup(query);
+
+    User user;
+    try {
+      user = executeLookup(lookup, username);
+    } catch (SQLException e) {
+      close(lookup);
+      if (!pooled) throw e;
+
+      //Pooled connection may be stale, retry on a new one
+      log.debug("Pooled connection failed, retrying", e);
+      lookup = openLookup(query);
+      try {
+        user = executeLookup(lookup, username);
+      } catch (SQLException ex) {
+        close(lookup);
+        throw ex;
+      }
+    }
+
+    if (pool.size() >= poolSize || !pool.offer(lookup)) close(lookup);
+    return user;
+  }
+
+
+  /** Open a connection and prepare a lookup statement
+   * @param query Query
+   * @return Lookup
+   */
+  protected Lookup openLookup(String query) throws SQLException {
+    Lookup lookup = new Lookup();
+    lookup.query = query;
+    lookup.con = dataSource.getConnection();
+    try {
+      lookup.stmt = lookup.con.prepareStatement(query);
+    } catch (SQLException e) {
+      close(lookup);
+      throw e;
+    }
+    return lookup;
+  }
+
+
+  /** Select a user
+   * @param lookup Lookup
+   * @param username Username
+   * @return User or NULL if not found
+   */
+  protected User executeLookup(Lookup lookup, String username) throws SQLException {
     ResultSet rs = null;
     try {
-      con = dataSource.getConnection();
-      stmt = con.prepareStatement(query);
-      rs = stmt.executeQuery();
+      lookup.stmt.setString(1, username);
+      rs = lookup.stmt.executeQuery();
       if (rs.next()) {
         String name = rs.getString(1);
         String pass = rs.getString(2);
@@ -124,8 +249,6 @@ public class DatabaseUserDAO extends BaseUserDAO {
       }
     } finally {
       try {rs.close();} catch (Exception e) {}
-      try {stmt.close();} catch (Exception e) {}
-      try {con.close();} catch (Exception e) {}
     }
 
     log.debug("User '"+username+"' not found");
@@ -133,6 +256,15 @@ public class DatabaseUserDAO extends BaseUserDAO {
   }
 
 
+  /** Close a lookup connection
+   * @param lookup Lookup
+   */
+  protected void close(Lookup lookup) {
+    try {lookup.stmt.close();} catch (Exception e) {}
+    try {lookup.con.close();} catch (Exception e) {}
+  }
+
+
   public void insertUser(User user) throws Exception {
     String query = "INSERT INTO "+table+" ("+
             nameColumn+", "+passColumn+", "+roleColumn+") VALUES (?,?,?)";
@@ -166,6 +298,10 @@ public class DatabaseUserDAO extends BaseUserDAO {
     try {
       con = dataSource.getConnection();
       stmt = con.prepareStatement(query);
+      stmt.setString(1, user.getUsername());
+      stmt.setString(2, user.getPassword());
+      stmt.setString(3, rolesAsString(user));
+      stmt.setString(4, user.getUsername());
       int rows = stmt.executeUpdate();
       log.debug("User '"+user.getUsername()+"' updated, affected "+rows+" rows");
     } finally {
@@ -0,0 +1,192 @@
+package com.coldcore.coloradoftp.plugin.gateway.dao.database;
+
+import com.coldcore.coloradoftp.plugin.gateway.dao.CachingUserDAO;
+import com.coldcore.coloradoftp.plugin.gateway.dao.UserDAO;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures logins per second of the database user DAO.
+ *
+ * Compares a new connection with a new statement for every login, pooled lookup connections and
+ * pooled connections behind CachingUserDAO. Run against an embedded data base with its driver
+ * on the class path (and in jdbc.drivers system property if it is not a JDBC 4 driver):
+ * java -Djdbc.drivers=org.hsqldb.jdbcDriver LoginBenchmark jdbc:hsqldb:mem:bench 1000 100000 8
+ * Arguments are the data base URL, amount of users, amount of logins and amount of threads.
+ * Users are created in BENCH_USERS table (dropped first if it exists).
+ */
+public class LoginBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.out.println("Usage: LoginBenchmark <jdbc url> [users] [logins] [threads]");
+      return;
+    }
+    DataSource dataSource = new DriverManagerDataSource(args[0]);
+    int users = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    int logins = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+    int threads = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+    prepare(dataSource, users);
+
+    DatabaseUserDAO plain = createDAO(dataSource, 0);
+    DatabaseUserDAO pooled = createDAO(dataSource, threads);
+    DatabaseUserDAO cachedPooled = createDAO(dataSource, threads);
+    CachingUserDAO cached = new CachingUserDAO(cachedPooled);
+
+    for (int z = 0; z < 3; z++) {
+      System.out.println("Pass "+(z+1)+": "+logins+" logins of "+users+" users by "+threads+" threads, "+
+              "new connection "+run(plain, users, logins, threads)+" logins/s, "+
+              "pooled "+run(pooled, users, logins, threads)+" logins/s, "+
+              "pooled and cached "+run(cached, users, logins, threads)+" logins/s");
+    }
+    pooled.destroy();
+    cachedPooled.destroy();
+  }
+
+
+  /** Create a DAO reading the benchmark table
+   * @param dataSource Data source
+   * @param poolSize Pool size
+   * @return DAO
+   */
+  protected static DatabaseUserDAO createDAO(DataSource dataSource, int poolSize) {
+    DatabaseUserDAO dao = new DatabaseUserDAO(dataSource);
+    dao.setTable("BENCH_USERS");
+    dao.setPoolSize(poolSize);
+    return dao;
+  }
+
+
+  /** Create the table with users (every user has password "pass" followed by the user number)
+   * @param dataSource Data source
+   * @param users Amount of users
+   */
+  protected static void prepare(DataSource dataSource, int users) throws SQLException {
+    Connection con = dataSource.getConnection();
+    try {
+      Statement st = con.createStatement();
+      try {
+        st.executeUpdate("DROP TABLE BENCH_USERS");
+      } catch (SQLException e) {
+        //No such table yet
+      }
+      st.executeUpdate("CREATE TABLE BENCH_USERS (USERNAME VARCHAR(64) PRIMARY KEY, PASSWORD VARCHAR(64), ROLE VARCHAR(64))");
+      st.close();
+
+      PreparedStatement ps = con.prepareStatement("INSERT INTO BENCH_USERS (USERNAME, PASSWORD, ROLE) VALUES (?,?,?)");
+      for (int z = 0; z < users; z++) {
+        ps.setString(1, "user"+z);
+        ps.setString(2, "pass"+z);
+        ps.setString(3, "user");
+        ps.executeUpdate();
+      }
+      ps.close();
+    } finally {
+      con.close();
+    }
+  }
+
+
+  /** Log random users in (one of ten logins has a wrong password)
+   * @param dao DAO
+   * @param users Amount of users
+   * @param logins Amount of logins
+   * @param threads Amount of threads
+   * @return Logins per second
+   */
+  protected static long run(final UserDAO dao, final int users, int logins, int threads) throws Exception {
+    final AtomicInteger left = new AtomicInteger(logins);
+    final Exception[] error = new Exception[1];
+    Thread[] workers = new Thread[threads];
+    for (int z = 0; z < threads; z++)
+      workers[z] = new Thread() {
+        public void run() {
+          Random random = new Random();
+          try {
+            while (left.getAndDecrement() > 0) {
+              int n = random.nextInt(users);
+              String password = random.nextInt(10) == 0 ? "wrong" : "pass"+n;
+              dao.getUser("user"+n, password);
+            }
+          } catch (Exception e) {
+            synchronized (error) {
+              error[0] = e;
+            }
+          }
+        }
+      };
+
+    long start = System.nanoTime();
+    for (Thread worker : workers) worker.start();
+    for (Thread worker : workers) worker.join();
+    long time = Math.max(System.nanoTime()-start, 1L);
+
+    if (error[0] != null) throw error[0];
+    return logins*1000000000L/time;
+  }
+
+
+  /** Data source opening a new connection every time through DriverManager */
+  protected static class DriverManagerDataSource implements DataSource {
+
+    private String url;
+    private PrintWriter logWriter;
+
+    public DriverManagerDataSource(String url) {
+      this.url = url;
+    }
+
+
+    public Connection getConnection() throws SQLException {
+      return DriverManager.getConnection(url);
+    }
+
+
+    public Connection getConnection(String username, String password) throws SQLException {
+      return DriverManager.getConnection(url, username, password);
+    }
+
+
+    public PrintWriter getLogWriter() {
+      return logWriter;
+    }
+
+
+    public void setLogWriter(PrintWriter logWriter) {
+      this.logWriter = logWriter;
+    }
+
+
+    public void setLoginTimeout(int seconds) {
+      DriverManager.setLoginTimeout(seconds);
+    }
+
+
+    public int getLoginTimeout() {
+      return DriverManager.getLoginTimeout();
+    }
+
+
+    public java.util.logging.Logger getParentLogger() {
+      return java.util.logging.Logger.getLogger("global");
+    }
+
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+      throw new SQLException("Not a wrapper");
+    }
+
+
+    public boolean isWrapperFor(Class<?> iface) {
+      return false;
+    }
+  }
+}
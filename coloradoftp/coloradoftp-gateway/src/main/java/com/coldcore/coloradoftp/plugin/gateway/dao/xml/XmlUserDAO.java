@@ -12,24 +12,53 @@ import org.springframework.core.io.Resource;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /**
  * User data access object (based on plain XML).
+ *
+ * The XML is parsed once into an immutable index of users by lower case name, so lookups
+ * take no locks. If the XML is a file then the file is checked for changes in the background
+ * and the index is rebuilt and swapped when the file changes (if the new file cannot be read
+ * then the old index stays).
  */
 public class XmlUserDAO extends BaseUserDAO {
 
   private static Logger log = Logger.getLogger(XmlUserDAO.class);
   protected Document xml;
+  protected volatile Map<String,Record> users;
+  protected File file;
+  protected long lastModified;
+  protected long reloadInterval;
+  protected Timer timer;
+
+
+  /** User as found in the XML */
+  protected static class Record {
+    String name;
+    String pass;
+    String role;
+  }
 
 
   /** Constructor
    * @param filename Path to XML file
    */
   public XmlUserDAO(String filename) throws Exception {
+    reloadInterval = 10000L;
+
     File file = new File(filename);
     if (file.exists() && file.isFile()) {
+      this.file = file;
+      lastModified = file.lastModified();
       Document xml = Xml.loadXml(file);
       initialize(xml);
+      scheduleReload();
       return;
     }
 
@@ -49,30 +78,100 @@ public class XmlUserDAO extends BaseUserDAO {
    * @param xml XML document
    */
   public void initialize(Document xml) {
-    this.xml = xml;
     if (xml == null) throw new IllegalArgumentException("Document must not be null");
+    this.xml = xml;
+    users = index(xml);
+  }
+
+
+  /** Build an index of users
+   * @param xml XML document
+   * @return Unmodifiable map of users by lower case name
+   */
+  protected Map<String,Record> index(Document xml) {
+    Map<String,Record> map = new HashMap<String,Record>();
+    Element[] userEs = Xml.findElements("users/user", xml);
+    for (Element userE : userEs) {
+      Record record = new Record();
+      record.name = userE.getAttribute("name");
+      record.pass = userE.getAttribute("pass");
+      record.role = userE.getAttribute("role");
 
+      //The first user with a name wins
+      String key = record.name.toLowerCase(Locale.ENGLISH);
+      if (!map.containsKey(key)) map.put(key, record);
+    }
+    log.debug("Indexed "+map.size()+" users");
+    return Collections.unmodifiableMap(map);
   }
 
 
-  public User getUser(String username) throws Exception {
-    //Is Xerces DOM implementation thread-safe? No!
-    synchronized (xml) {
-      Element[] userEs = Xml.findElements("users/user", xml);
-      for (Element userE : userEs) {
-        String name = userE.getAttribute("name");
-        String pass = userE.getAttribute("pass");
-        String role = userE.getAttribute("role");
-
-        if (name.equalsIgnoreCase(username)) {
-          User user = constructUser(name, pass, role);
-          log.debug("User '"+name+"' found with role(s) '"+role+"'");
-          return user;
-        }
+  /** Get interval between checks of the file for changes
+   * @return Milliseconds, 0 if the file is not checked
+   */
+  public long getReloadInterval() {
+    return reloadInterval;
+  }
+
+
+  /** Set interval between checks of the file for changes
+   * @param reloadInterval Milliseconds, 0 to not check the file
+   */
+  public synchronized void setReloadInterval(long reloadInterval) {
+    if (reloadInterval < 0L) throw new IllegalArgumentException("Invalid argument");
+    this.reloadInterval = reloadInterval;
+    scheduleReload();
+  }
+
+
+  /** Start (or restart) checking the file for changes */
+  protected synchronized void scheduleReload() {
+    if (timer != null) timer.cancel();
+    timer = null;
+    if (file == null || reloadInterval == 0L) return;
+
+    timer = new Timer("xml-users-reload", true);
+    timer.schedule(new TimerTask() {
+      public void run() {
+        reload();
       }
+    }, reloadInterval, reloadInterval);
+  }
+
+
+  /** Rebuild the index if the file has changed */
+  protected void reload() {
+    long modified = file.lastModified();
+    if (modified == lastModified) return;
+
+    try {
+      Document xml = Xml.loadXml(file);
+      Map<String,Record> map = index(xml);
+      this.xml = xml;
+      users = map;
+      lastModified = modified;
+      log.info("Users reloaded from "+file.getAbsolutePath());
+    } catch (Throwable e) {
+      log.warn("Cannot reload users from "+file.getAbsolutePath()+" (keeping old users)", e);
+    }
+  }
+
+
+  /** Stop checking the file for changes */
+  public synchronized void destroy() {
+    if (timer != null) timer.cancel();
+    timer = null;
+  }
+
+
+  public User getUser(String username) throws Exception {
+    Record record = username == null ? null : users.get(username.toLowerCase(Locale.ENGLISH));
+    if (record == null) {
+      log.debug("User '"+username+"' not found");
+      return null;
     }
 
-    log.debug("User '"+username+"' not found");
-    return null;
+    log.debug("User '"+record.name+"' found with role(s) '"+record.role+"'");
+    return constructUser(record.name, record.pass, record.role);
   }
 }
@@ -0,0 +1,148 @@
+package com.coldcore.coloradoftp.plugin.gateway.impl;
+
+import com.coldcore.coloradoftp.plugin.gateway.PasswordEncoder;
+import com.coldcore.coloradoftp.plugin.gateway.util.Digests;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * @see com.coldcore.coloradoftp.plugin.gateway.PasswordEncoder
+ *
+ * Encodes passwords with PBKDF2 (HMAC-SHA1) as "{PBKDF2}iterations$salt$hash" where salt and hash
+ * are in hex. Stored passwords without the prefix are compared as plain text, so existing users
+ * keep working until their passwords are encoded (unless plain passwords are not allowed).
+ *
+ * To encode a password run this class with the password as an argument.
+ */
+public class Pbkdf2PasswordEncoder implements PasswordEncoder {
+
+  protected int iterations;
+  protected int saltLength;
+  protected int keyLength;
+  protected boolean allowPlain;
+  protected SecureRandom random;
+
+  public static final String PREFIX = "{PBKDF2}";
+  protected static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+
+
+  public Pbkdf2PasswordEncoder() {
+    iterations = 10000;
+    saltLength = 16;
+    keyLength = 160;
+    allowPlain = true;
+    random = new SecureRandom();
+  }
+
+
+  /** Get amount of iterations of new passwords
+   * @return Iterations
+   */
+  public int getIterations() {
+    return iterations;
+  }
+
+
+  /** Set amount of iterations of new passwords (stored passwords keep their own)
+   * @param iterations Iterations
+   */
+  public void setIterations(int iterations) {
+    if (iterations < 1) throw new IllegalArgumentException("Invalid argument");
+    this.iterations = iterations;
+  }
+
+
+  /** Test if stored plain passwords are accepted
+   * @return TRUE if accepted, FALSE otherwise
+   */
+  public boolean isAllowPlain() {
+    return allowPlain;
+  }
+
+
+  /** Set if stored plain passwords are accepted
+   * @param allowPlain TRUE to accept, FALSE to reject
+   */
+  public void setAllowPlain(boolean allowPlain) {
+    this.allowPlain = allowPlain;
+  }
+
+
+  public String encode(String password) {
+    byte[] salt = new byte[saltLength];
+    random.nextBytes(salt);
+    byte[] hash = hash(password, salt, iterations, keyLength);
+    return PREFIX+iterations+"$"+Digests.toHex(salt)+"$"+Digests.toHex(hash);
+  }
+
+
+  public boolean matches(String password, String encoded) {
+    if (password == null || encoded == null) return false;
+
+    if (!encoded.startsWith(PREFIX))
+      return allowPlain && MessageDigest.isEqual(toBytes(password), toBytes(encoded));
+
+    String[] parts = encoded.substring(PREFIX.length()).split("\\$");
+    if (parts.length != 3) return false;
+    try {
+      int iterations = Integer.parseInt(parts[0]);
+      byte[] salt = fromHex(parts[1]);
+      byte[] expected = fromHex(parts[2]);
+      if (iterations < 1 || expected.length == 0) return false;
+      byte[] hash = hash(password, salt, iterations, expected.length*8);
+      return MessageDigest.isEqual(hash, expected);
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+
+  /** Hash a password
+   * @param password Password
+   * @param salt Salt
+   * @param iterations Iterations
+   * @param keyLength Hash length in bits
+   * @return Hash
+   */
+  protected byte[] hash(String password, byte[] salt, int iterations, int keyLength) {
+    try {
+      PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, keyLength);
+      SecretKeyFactory factory = SecretKeyFactory.getInstance(ALGORITHM);
+      return factory.generateSecret(spec).getEncoded();
+    } catch (Exception e) {
+      throw new IllegalStateException("Cannot hash password", e);
+    }
+  }
+
+
+  /** Convert a string to UTF-8 bytes */
+  protected static byte[] toBytes(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+
+  /** Convert hex to bytes */
+  protected static byte[] fromHex(String s) {
+    if (s.length()%2 != 0) throw new NumberFormatException("Invalid hex");
+    byte[] bytes = new byte[s.length()/2];
+    for (int z = 0; z < bytes.length; z++)
+      bytes[z] = (byte) Integer.parseInt(s.substring(z*2, z*2+2), 16);
+    return bytes;
+  }
+
+
+  public static void main(String[] args) {
+    if (args.length != 1) {
+      System.out.println("Usage: Pbkdf2PasswordEncoder <password>");
+      return;
+    }
+    System.out.println(new Pbkdf2PasswordEncoder().encode(args[0]));
+  }
+}
@@ -0,0 +1,41 @@
+package com.coldcore.coloradoftp.plugin.gateway.util;
+
+import java.security.MessageDigest;
+
+/**
+ * Digest utilities.
+ */
+public class Digests {
+
+  /** Digest strings with a salt (SHA-256), the strings are separated by zero bytes
+   * @param salt Salt
+   * @param parts Strings to digest
+   * @return Hex digest
+   */
+  public static String saltedSha256(byte[] salt, String... parts) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(salt);
+      for (int z = 0; z < parts.length; z++) {
+        if (z > 0) md.update((byte) 0);
+        md.update(String.valueOf(parts[z]).getBytes("UTF-8"));
+      }
+      return toHex(md.digest());
+    } catch (Exception e) {
+      throw new IllegalStateException("Cannot digest", e);
+    }
+  }
+
+
+  /** Convert bytes to hex
+   * @param bytes Bytes
+   * @return Hex string
+   */
+  public static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes)
+      sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+    return sb.toString();
+  }
+
+}
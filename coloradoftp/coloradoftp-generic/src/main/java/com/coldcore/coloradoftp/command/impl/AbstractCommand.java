@@ -5,6 +5,7 @@ import com.coldcore.coloradoftp.command.Reply;
 import com.coldcore.coloradoftp.connection.ControlConnection;
 import com.coldcore.coloradoftp.factory.ObjectFactory;
 import com.coldcore.coloradoftp.factory.ObjectName;
+import com.coldcore.coloradoftp.filesystem.AsyncFileSystem;
 import com.coldcore.coloradoftp.session.DataOpenerType;
 import com.coldcore.coloradoftp.session.LoginState;
 import com.coldcore.coloradoftp.session.Session;
@@ -23,6 +24,7 @@ abstract public class AbstractCommand implements Command {
   protected String name;
   protected String parameter;
   protected ControlConnection controlConnection;
+  protected AsyncFileSystem asyncFileSystem;
   private Reply reply; //Via getter only!
 
 
@@ -139,6 +141,23 @@ abstract public class AbstractCommand implements Command {
   }
 
 
+  /** Get asynchronous filesystem
+   * @return Asynchronous filesystem or NULL if filesystem calls are blocking
+   */
+  public AsyncFileSystem getAsyncFileSystem() {
+    return asyncFileSystem;
+  }
+
+
+  /** Set asynchronous filesystem, commands supporting it will make filesystem calls without
+   * blocking the control connection and submit their replies once the calls complete
+   * @param asyncFileSystem Asynchronous filesystem or NULL to make blocking calls
+   */
+  public void setAsyncFileSystem(AsyncFileSystem asyncFileSystem) {
+    this.asyncFileSystem = asyncFileSystem;
+  }
+
+
   public Reply executeOnParent(Command parent) {
     return null;  
   }
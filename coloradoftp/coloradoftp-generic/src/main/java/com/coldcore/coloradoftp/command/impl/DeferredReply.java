@@ -0,0 +1,246 @@
+package com.coldcore.coloradoftp.command.impl;
+
+import com.coldcore.coloradoftp.command.Command;
+import com.coldcore.coloradoftp.command.CommandProcessor;
+import com.coldcore.coloradoftp.command.Reply;
+import com.coldcore.coloradoftp.factory.ObjectFactory;
+import com.coldcore.coloradoftp.factory.ObjectName;
+import com.coldcore.coloradoftp.filesystem.FileSystemCallback;
+import com.coldcore.coloradoftp.session.Session;
+import com.coldcore.coloradoftp.session.SessionAttributeName;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.nio.channels.Channel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Completes a command once an asynchronous filesystem call returns.
+ *
+ * A command which makes an asynchronous call returns no reply, the reply is produced later by
+ * the proceed method of this class. The rest of the command is executed by command processor,
+ * so filesystem errors turn into the same replies as if the call was blocking.
+ *
+ * While the reply is pending this object is stored in the session (COMMAND_PENDING attribute)
+ * and command processor does not execute any other commands of the user but those which can be
+ * processed in INTERRUPT state, so replies are always sent in order. The attribute is removed only
+ * after the reply is submitted. ABOR cancels a pending reply: the command replies 426 at once and
+ * the result of the call is discarded when it arrives.
+ *
+ * If the asynchronous call cannot be made the command must call the release method.
+ *
+ * A wrapper which needs the final reply of a command it delegates to sets an observer with the
+ * observe method before executing the command, the observer is taken by the next reply deferred
+ * in the session.
+ */
+public abstract class DeferredReply<T> implements FileSystemCallback<T> {
+
+  private static Logger log = Logger.getLogger(DeferredReply.class);
+  protected Command command;
+  protected Session session;
+  protected AtomicBoolean done;
+  protected Observer observer;
+
+
+  /** Constructor, must be called before the asynchronous call is made
+   * @param command Command waiting for the call to complete
+   */
+  public DeferredReply(Command command) {
+    if (command == null) throw new IllegalArgumentException("Invalid command");
+    this.command = command;
+    session = command.getConnection().getSession();
+    done = new AtomicBoolean();
+    observer = (Observer) session.getAttribute(SessionAttributeName.COMMAND_PENDING_OBSERVER);
+    session.removeAttribute(SessionAttributeName.COMMAND_PENDING_OBSERVER);
+    session.setAttribute(SessionAttributeName.COMMAND_PENDING, this);
+  }
+
+
+  /** Observer of a deferred reply */
+  public interface Observer {
+
+    /** Called after the rest of the command is executed
+     * @param reply Reply of the command or NULL if there is no reply
+     */
+    public void replied(Reply reply);
+
+
+    /** Called if the rest of the command throws an exception
+     * @param e Exception
+     */
+    public void failed(Throwable e);
+  }
+
+
+  /** Set an observer for the next reply deferred in a session, must be removed (set to NULL)
+   * once the command returns as the command may not defer its reply
+   * @param session Session
+   * @param observer Observer or NULL to remove
+   */
+  public static void observe(Session session, Observer observer) {
+    if (observer == null) session.removeAttribute(SessionAttributeName.COMMAND_PENDING_OBSERVER);
+    else session.setAttribute(SessionAttributeName.COMMAND_PENDING_OBSERVER, observer);
+  }
+
+
+  /** The rest of a command executed once the call completes */
+  public abstract static class Continuation extends CommandWrapper {
+
+    public Continuation(Command command) {
+      super(command);
+    }
+  }
+
+
+  public void onSuccess(final T result) {
+    if (!done.compareAndSet(false, true)) {
+      log.debug("Reply of "+command.getName()+" was cancelled, dropping result");
+      discard(result);
+      return;
+    }
+    complete(new Continuation(command) {
+      public Reply execute() {
+        if (command.getConnection().isDestroyed()) {
+          log.debug("Connection is gone, dropping result of "+command.getName());
+          discard(result);
+          return null;
+        }
+        return proceed(result);
+      }
+    });
+  }
+
+
+  public void onFailure(final Throwable e) {
+    if (!done.compareAndSet(false, true)) return;
+    complete(new Continuation(command) {
+      public Reply execute() {
+        return failed(e);
+      }
+    });
+  }
+
+
+  /** Cancel the reply pending in a session, the command replies 426 at once
+   * @param session Session
+   * @return TRUE if a reply was cancelled, FALSE if no reply is pending
+   */
+  public static boolean cancel(Session session) {
+    final DeferredReply<?> pending = (DeferredReply<?>) session.getAttribute(SessionAttributeName.COMMAND_PENDING);
+    if (pending == null || !pending.done.compareAndSet(false, true)) return false;
+
+    log.debug("Cancelling pending reply of "+pending.command.getName());
+    pending.complete(new Continuation(pending.command) {
+      public Reply execute() {
+        return pending.cancelled();
+      }
+    });
+    return true;
+  }
+
+
+  /** Release the control connection without a reply, must be called by a command which
+   * failed to make the asynchronous call (the command replies on its own)
+   */
+  public void release() {
+    if (!done.compareAndSet(false, true)) return;
+    if (session.getAttribute(SessionAttributeName.COMMAND_PENDING) == this)
+      session.removeAttribute(SessionAttributeName.COMMAND_PENDING);
+  }
+
+
+  /** Execute the rest of the command and release the control connection
+   * @param continuation The rest of the command
+   */
+  protected void complete(Command continuation) {
+    if (observer != null) continuation = new ObservedContinuation(continuation, observer);
+    try {
+      CommandProcessor commandProcessor = (CommandProcessor) ObjectFactory.getObject(ObjectName.COMMAND_PROCESSOR);
+      commandProcessor.execute(continuation);
+    } finally {
+      //The continuation may have deferred its reply again
+      if (session.getAttribute(SessionAttributeName.COMMAND_PENDING) == this)
+        session.removeAttribute(SessionAttributeName.COMMAND_PENDING);
+    }
+  }
+
+
+  /** Continuation reporting its outcome to an observer, the observer is passed on if the
+   * continuation defers its reply again
+   */
+  protected static class ObservedContinuation extends Continuation {
+
+    private Observer observer;
+
+
+    public ObservedContinuation(Command command, Observer observer) {
+      super(command);
+      this.observer = observer;
+    }
+
+
+    public Reply execute() {
+      Session session = command.getConnection().getSession();
+      observe(session, observer);
+      Reply reply;
+      boolean taken;
+      try {
+        reply = command.execute();
+        taken = session.getAttribute(SessionAttributeName.COMMAND_PENDING_OBSERVER) != observer;
+      } catch (RuntimeException e) {
+        observer.failed(e);
+        throw e;
+      } catch (Error e) {
+        observer.failed(e);
+        throw e;
+      } finally {
+        observe(session, null);
+      }
+      if (!taken) observer.replied(reply);
+      return reply;
+    }
+  }
+
+
+  /** Release a result nobody is going to use (closes channels and closeable iterators)
+   * @param result Result of the call
+   */
+  protected void discard(T result) {
+    try {
+      if (result instanceof Channel) ((Channel) result).close();
+      else if (result instanceof Closeable) ((Closeable) result).close();
+    } catch (Throwable e) {
+      log.error("Error closing result (ignoring)", e);
+    }
+  }
+
+
+  /** Execute the rest of the command when the call fails, by default the error turns into
+   * the same reply as if the call was blocking
+   * @param e Error of the call
+   * @return Reply
+   */
+  protected Reply failed(Throwable e) {
+    if (e instanceof RuntimeException) throw (RuntimeException) e;
+    if (e instanceof Error) throw (Error) e;
+    throw new RuntimeException(e);
+  }
+
+
+  /** Execute the rest of the command when the reply is cancelled
+   * @return Reply
+   */
+  protected Reply cancelled() {
+    Reply reply = (Reply) ObjectFactory.getObject(ObjectName.REPLY);
+    reply.setCode("426");
+    reply.setText("Connection closed, transfer aborted.");
+    return reply;
+  }
+
+
+  /** Execute the rest of the command with the result of the call
+   * @param result Result of the call
+   * @return Reply
+   */
+  protected abstract Reply proceed(T result);
+}
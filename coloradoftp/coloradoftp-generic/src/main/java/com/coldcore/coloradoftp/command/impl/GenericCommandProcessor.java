@@ -3,22 +3,280 @@ package com.coldcore.coloradoftp.command.impl;
 import com.coldcore.coloradoftp.command.Command;
 import com.coldcore.coloradoftp.command.CommandProcessor;
 import com.coldcore.coloradoftp.command.Reply;
+import com.coldcore.coloradoftp.connection.ControlConnection;
 import com.coldcore.coloradoftp.factory.ObjectFactory;
 import com.coldcore.coloradoftp.factory.ObjectName;
 import com.coldcore.coloradoftp.filesystem.FailedActionException;
+import com.coldcore.coloradoftp.session.SessionAttributeName;
 import org.apache.log4j.Logger;
 
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * @see com.coldcore.coloradoftp.command.CommandProcessor
+ *
+ * Commands of one connection pass through a queue and are executed one by one in order.
+ * By default a queue is run by the calling thread (the reader thread of a control connection or
+ * the thread completing a deferred reply). If worker threads are configured then queues are run
+ * by a shared pool of workers, so commands of different connections are executed in parallel.
+ *
+ * When a command defers its reply (see DeferredReply) the queue of its connection is suspended
+ * until the continuation of the command is executed.
+ *
+ * Commands which can be processed in INTERRUPT state (ABOR, STAT, QUIT) get past a command
+ * which is executing or suspended (so ABOR can cancel it), but only if no other commands are
+ * waiting in the queue: pipelined commands are always executed in the order they arrived.
+ *
+ * A connection may not have more than a limited amount of commands waiting in its queue, a client
+ * sending more (e.g. flooding the server while a reply is pending) gets 421 and its connection
+ * is poisoned.
  */
 public class GenericCommandProcessor implements CommandProcessor {
 
   private static Logger log = Logger.getLogger(GenericCommandProcessor.class);
+  protected int threads;
+  protected int maxQueuedPerConnection;
+  protected ExecutorService executor;
+  protected Map<ControlConnection,CommandQueue> queues;
+  protected AtomicInteger queuedCommands;
+  protected AtomicLong executedCommands;
+  protected AtomicLong totalLatency;
+
+
+  /** Commands of a single connection waiting to be executed */
+  protected class CommandQueue implements Runnable {
+
+    protected ControlConnection connection;
+    protected LinkedList<Command> priority;
+    protected LinkedList<Command> regular;
+    protected boolean running;
+    protected boolean suspended;
+
+
+    public CommandQueue(ControlConnection connection) {
+      this.connection = connection;
+      priority = new LinkedList<Command>();
+      regular = new LinkedList<Command>();
+    }
+
+
+    public void run() {
+      while (true) {
+        Command command;
+        synchronized (queues) {
+          if (!priority.isEmpty()) command = priority.removeFirst();
+          else if (connection.getSession().getAttribute(SessionAttributeName.COMMAND_PENDING) != null) {
+            //Wait for the continuation of the command which has deferred its reply
+            suspended = true;
+            running = false;
+            return;
+          }
+          else if (!regular.isEmpty()) command = regular.removeFirst();
+          else {
+            running = false;
+            queues.remove(connection);
+            return;
+          }
+        }
+        queuedCommands.decrementAndGet();
+
+        process(command);
+      }
+    }
+  }
+
+
+  public GenericCommandProcessor() {
+    queues = new HashMap<ControlConnection,CommandQueue>();
+    maxQueuedPerConnection = 100;
+    queuedCommands = new AtomicInteger();
+    executedCommands = new AtomicLong();
+    totalLatency = new AtomicLong();
+  }
+
+
+  /** Get amount of worker threads
+   * @return Threads, 0 if commands are executed by the calling thread
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+
+  /** Set amount of worker threads (must be set before the first command is executed)
+   * @param threads Threads, 0 to execute commands by the calling thread
+   */
+  public void setThreads(int threads) {
+    if (threads < 0) throw new IllegalArgumentException("Invalid argument");
+    this.threads = threads;
+  }
+
+
+  /** Get max amount of commands waiting in the queue of one connection
+   * @return Max commands
+   */
+  public int getMaxQueuedPerConnection() {
+    return maxQueuedPerConnection;
+  }
+
+
+  /** Set max amount of commands waiting in the queue of one connection
+   * @param maxQueuedPerConnection Max commands
+   */
+  public void setMaxQueuedPerConnection(int maxQueuedPerConnection) {
+    if (maxQueuedPerConnection < 1) throw new IllegalArgumentException("Invalid argument");
+    this.maxQueuedPerConnection = maxQueuedPerConnection;
+  }
+
+
+  /** Get amount of commands waiting for a worker thread
+   * @return Queued commands
+   */
+  public int getQueuedCommands() {
+    return queuedCommands.get();
+  }
+
+
+  /** Get amount of commands executed since start (to sample the latency over an interval)
+   * @return Executed commands
+   */
+  public long getExecutedCommands() {
+    return executedCommands.get();
+  }
+
+
+  /** Get total time spent executing commands since start
+   * @return Microseconds
+   */
+  public long getTotalLatency() {
+    return totalLatency.get();
+  }
+
+
+  /** Add command execution time to the totals
+   * @param micros Execution time in microseconds
+   */
+  protected void addLatency(long micros) {
+    totalLatency.addAndGet(micros);
+    executedCommands.incrementAndGet();
+  }
+
+
+  /** Get the executor (create if it does not exist yet)
+   * @return Executor
+   */
+  protected synchronized ExecutorService getExecutor() {
+    if (executor != null) return executor;
+    executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private AtomicInteger counter = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "command-worker-"+counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    return executor;
+  }
 
 
   public void execute(Command command) {
+    ControlConnection connection = command.getConnection();
+    if (connection == null) {
+      process(command);
+      return;
+    }
+
+    //Continuation of a deferred command runs straight away, its queue waits for it
+    if (command instanceof DeferredReply.Continuation) {
+      Object pending = connection.getSession().getAttribute(SessionAttributeName.COMMAND_PENDING);
+      process(command);
+      //Keep the attribute if the continuation has deferred its reply again
+      if (connection.getSession().getAttribute(SessionAttributeName.COMMAND_PENDING) == pending)
+        connection.getSession().removeAttribute(SessionAttributeName.COMMAND_PENDING);
+
+      CommandQueue resumed = null;
+      synchronized (queues) {
+        CommandQueue queue = queues.get(connection);
+        if (queue != null && queue.suspended) {
+          queue.suspended = false;
+          queue.running = true;
+          resumed = queue;
+        }
+      }
+      if (resumed != null) schedule(resumed);
+      return;
+    }
+
+    CommandQueue scheduled = null;
+    boolean flooded = false;
+    synchronized (queues) {
+      CommandQueue queue = queues.get(connection);
+      if (queue == null) {
+        queue = new CommandQueue(connection);
+        queues.put(connection, queue);
+      }
+
+      if (queue.regular.size()+queue.priority.size() >= maxQueuedPerConnection) flooded = true;
+      else {
+        //Never go ahead of commands which are already waiting
+        boolean interrupt = command.processInInterruptState() && queue.regular.isEmpty() &&
+                            (queue.running || queue.suspended);
+        if (interrupt) queue.priority.addLast(command);
+        else queue.regular.addLast(command);
+        queuedCommands.incrementAndGet();
+
+        //Suspended queue runs only to execute commands which act on the pending command
+        if (!queue.running && (!queue.suspended || !queue.priority.isEmpty())) {
+          queue.suspended = false;
+          queue.running = true;
+          scheduled = queue;
+        }
+      }
+    }
+    if (scheduled != null) schedule(scheduled);
+    if (flooded) rejectFlood(connection);
+  }
+
+
+  /** Drop a command of a connection which has too many commands waiting, reply and poison
+   * the connection (commands already waiting are dropped as the connection is poisoned)
+   * @param connection Connection
+   */
+  protected void rejectFlood(ControlConnection connection) {
+    if (connection.isPoisoned()) return;
+    log.warn("Too many commands waiting, poisoning connection");
+    Reply reply = (Reply) ObjectFactory.getObject(ObjectName.REPLY);
+    reply.setCode("421");
+    reply.setText("Too many commands, closing control connection.");
+    connection.reply(reply);
+    connection.poison();
+  }
+
+
+  /** Run a queue by a worker thread or by the calling thread
+   * @param queue Queue
+   */
+  protected void schedule(CommandQueue queue) {
+    if (threads == 0) queue.run();
+    else getExecutor().execute(queue);
+  }
+
+
+  /** Execute a command and submit its reply
+   * @param command Command
+   */
+  protected void process(Command command) {
     //Execute command
     Reply reply;
+    long startTime = System.nanoTime();
     try {
       reply = command.execute();
     } catch (FailedActionException e) {
@@ -29,6 +287,7 @@ public class GenericCommandProcessor implements CommandProcessor {
       log.error("Command failed (ignoring)", e);
       reply = ((Command) ObjectFactory.getObject(ObjectName.COMMAND_LOCAL_ERROR)).execute();
     }
+    addLatency((System.nanoTime()-startTime)/1000L);
 
     String debug = "[Command] "+command.getName()+" "+(command.getParameter()==null?"":command.getParameter())+"\n";
     debug += reply==null?"[NO REPLY]":"[Reply] "+reply.getCode()+" "+(reply.getText()==null?"":reply.getText());
@@ -58,6 +317,10 @@ public class GenericCommandProcessor implements CommandProcessor {
         reply.setCode("550");
         reply.setText(e.getText() == null ? "No permission." : e.getText());
         return reply;
+      case NO_SPACE:
+        reply.setCode("552");
+        reply.setText(e.getText() == null ? "Insufficient storage space." : e.getText());
+        return reply;
       case NOT_IMPLEMENTED:
         reply.setCode("504");
         reply.setText(e.getText() == null ? "Not implemented." : e.getText());
@@ -0,0 +1,82 @@
+package com.coldcore.coloradoftp.command.impl;
+
+import com.coldcore.coloradoftp.filesystem.ListingFile;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+
+/**
+ * Channel which renders directory listing lines on demand.
+ *
+ * Only the lines which fit into the reader buffer are prepared, so the listing is never
+ * held in memory as a whole. The data connection reads from this channel as it sends
+ * the data to the user.
+ */
+abstract public class ListingChannel implements ReadableByteChannel {
+
+  private static Logger log = Logger.getLogger(ListingChannel.class);
+  protected Iterator<ListingFile> iterator;
+  protected ByteBuffer pending;
+  protected boolean open;
+  protected long lines;
+
+
+  /** Constructor
+   * @param header Text to send before the listing (or NULL)
+   * @param iterator Directory listing
+   */
+  public ListingChannel(String header, Iterator<ListingFile> iterator) {
+    this.iterator = iterator;
+    pending = ByteBuffer.wrap(header == null ? new byte[0] : header.getBytes());
+    open = true;
+  }
+
+
+  /** Convert file into a line FTP client can understand
+   * @param f File or directory
+   * @return Prepared line (including line separator)
+   */
+  abstract protected String prepareLine(ListingFile f);
+
+
+  public int read(ByteBuffer dst) throws IOException {
+    if (!open) throw new ClosedChannelException();
+
+    int read = 0;
+    while (dst.hasRemaining()) {
+      if (!pending.hasRemaining()) {
+        if (!iterator.hasNext()) break;
+        pending = ByteBuffer.wrap(prepareLine(iterator.next()).getBytes());
+        lines++;
+      }
+
+      int length = Math.min(pending.remaining(), dst.remaining());
+      int limit = pending.limit();
+      pending.limit(pending.position()+length);
+      dst.put(pending);
+      pending.limit(limit);
+      read += length;
+    }
+
+    if (read == 0 && dst.hasRemaining()) return -1;
+    return read;
+  }
+
+
+  public boolean isOpen() {
+    return open;
+  }
+
+
+  public void close() throws IOException {
+    if (!open) return;
+    open = false;
+    if (iterator instanceof Closeable) ((Closeable) iterator).close();
+    log.debug("Directory listing closed after "+lines+" entries");
+  }
+}
@@ -6,6 +6,7 @@ package com.coldcore.coloradoftp.command.impl.ftp;
 
 import com.coldcore.coloradoftp.command.Reply;
 import com.coldcore.coloradoftp.command.impl.AbstractCommand;
+import com.coldcore.coloradoftp.command.impl.DeferredReply;
 import com.coldcore.coloradoftp.connection.DataConnection;
 import com.coldcore.coloradoftp.connection.DataPortListener;
 import com.coldcore.coloradoftp.connection.DataPortListenerSet;
@@ -22,6 +23,9 @@ public class AborCommand extends AbstractCommand {
     Reply reply = getReply();
     if (!testLogin()) return reply;
 
+    //Abort a command waiting for the filesystem (it replies before this command)
+    boolean cancelled = DeferredReply.cancel(controlConnection.getSession());
+
     //Abort data connection initiator
     controlConnection.getDataConnectionInitiator().abort();
 
@@ -37,6 +41,7 @@ public class AborCommand extends AbstractCommand {
       dataConnection.abort();
       return null;
     } else {
+      if (cancelled) log.debug("Pending command aborted");
       reply.setCode("226");
       reply.setText("Abort command successful.");
       return reply;
@@ -2,21 +2,46 @@
  * Command ALLO.
  * See FTP spec for details on the command.
  *
- * This implementation does nothing from the spec.
+ * This implementation stores the announced size in the session as a hint for the next upload
+ * (filesystem may reserve space, data connection may size its buffer). The record or page
+ * size parameter is ignored.
  */
 package com.coldcore.coloradoftp.command.impl.ftp;
 
 import com.coldcore.coloradoftp.command.Reply;
 import com.coldcore.coloradoftp.command.impl.AbstractCommand;
-import com.coldcore.coloradoftp.factory.ObjectFactory;
-import com.coldcore.coloradoftp.factory.ObjectName;
+import com.coldcore.coloradoftp.session.Session;
+import com.coldcore.coloradoftp.session.SessionAttributeName;
 
 public class AlloCommand extends AbstractCommand {
 
   public Reply execute() {
     Reply reply = getReply();
-    reply.setCode("202");
-    reply.setText("Command not implemented, superfluous at this site.");
+    if (!testLogin()) return reply;
+
+    //ALLO <decimal-integer> [<SP> R <SP> <decimal-integer>]
+    String param = getParameter();
+    if (!checkRegExp(param, "\\d+( [rR] \\d+)?")) {
+      reply.setCode("501");
+      reply.setText("Syntax error in parameters or arguments.");
+      return reply;
+    }
+
+    Session session = getConnection().getSession();
+    session.removeAttribute(SessionAttributeName.ALLOCATED_SIZE);
+
+    int i = param.indexOf(' ');
+    try {
+      long size = Long.parseLong(i == -1 ? param : param.substring(0, i));
+      if (size > 0) session.setAttribute(SessionAttributeName.ALLOCATED_SIZE, size);
+    } catch (NumberFormatException e) {
+      reply.setCode("501");
+      reply.setText("Syntax error in parameters or arguments.");
+      return reply;
+    }
+
+    reply.setCode("200");
+    reply.setText("ALLO command successful.");
     return reply;
   }
 }
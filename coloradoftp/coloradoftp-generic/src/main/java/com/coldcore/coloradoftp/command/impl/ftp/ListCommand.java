@@ -6,25 +6,28 @@ package com.coldcore.coloradoftp.command.impl.ftp;
 
 import com.coldcore.coloradoftp.command.Reply;
 import com.coldcore.coloradoftp.command.impl.AbstractCommand;
+import com.coldcore.coloradoftp.command.impl.DeferredReply;
+import com.coldcore.coloradoftp.command.impl.ListingChannel;
 import com.coldcore.coloradoftp.connection.DataConnectionMode;
 import com.coldcore.coloradoftp.factory.ObjectFactory;
 import com.coldcore.coloradoftp.factory.ObjectName;
 import com.coldcore.coloradoftp.filesystem.FileSystem;
 import com.coldcore.coloradoftp.filesystem.ListingFile;
+import com.coldcore.coloradoftp.filesystem.impl.StreamingFileSystemAdapter;
 import com.coldcore.coloradoftp.session.Session;
 import com.coldcore.coloradoftp.session.SessionAttributeName;
 import org.apache.log4j.Logger;
 
-import java.io.ByteArrayInputStream;
-import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.text.SimpleDateFormat;
+import java.util.Iterator;
 import java.util.Locale;
 import java.util.Set;
 
 public class ListCommand extends AbstractCommand {
 
   private static Logger log = Logger.getLogger(ListCommand.class);
+  private SimpleDateFormat dateFormat;
 
 
   public Reply execute() {
@@ -38,11 +41,39 @@ public class ListCommand extends AbstractCommand {
     if (getParameter().length() > 0 &&
         parameter.indexOf("*") == -1 && !parameter.startsWith("-")) listDir = getParameter();
 
-    Set<ListingFile> list = fileSystem.listDirectory(listDir, session);
-    String prepared = prepareList(list);
+    //Reply is submitted when the filesystem completes the call
+    if (asyncFileSystem != null) {
+      final String dir = listDir;
+      DeferredReply<Iterator<ListingFile>> deferred = new DeferredReply<Iterator<ListingFile>>(this) {
+        protected Reply proceed(Iterator<ListingFile> list) {
+          return prepareListing(dir, list);
+        }
+      };
+      try {
+        asyncFileSystem.iterateDirectory(listDir, session, deferred);
+      } catch (RuntimeException e) {
+        deferred.release(); //The call was not made
+        throw e;
+      }
+      return null;
+    }
+
+    Iterator<ListingFile> list = StreamingFileSystemAdapter.adapt(fileSystem).iterateDirectory(listDir, session);
+    return prepareListing(listDir, list);
+  }
+
+
+  /** Prepare a data connection to send a directory listing
+   * @param listDir Directory being listed
+   * @param list Files and directories
+   * @return Reply
+   */
+  protected Reply prepareListing(String listDir, Iterator<ListingFile> list) {
+    Reply reply = getReply();
+    Session session = controlConnection.getSession();
 
-    ByteArrayInputStream bin = new ByteArrayInputStream(prepared.getBytes());
-    ReadableByteChannel rbc = Channels.newChannel(bin);
+    //Lines are rendered while the data connection sends them
+    ReadableByteChannel rbc = createListingChannel(list);
 
     session.setAttribute(SessionAttributeName.DATA_CONNECTION_MODE, DataConnectionMode.LIST);
     session.setAttribute(SessionAttributeName.DATA_CONNECTION_CHANNEL, rbc);
@@ -61,16 +92,40 @@ public class ListCommand extends AbstractCommand {
    */
   protected String prepareList(Set<ListingFile> list) {
     StringBuffer sb = new StringBuffer();
-    SimpleDateFormat sdf = new SimpleDateFormat("MMM dd HH:mm", new Locale("en"));
-    for (ListingFile f : list) {
-      //-rw------- 1 peter 848 Dec 14 11:22 README.txt\r\n
-      sb.append(f.isDirectory() ? "d" : "-").append(f.getPermissions()).append(" ");
-      sb.append("1 ").append(f.getOwner()).append(" ");
-      sb.append(f.getSize()).append(" ");
-      sb.append(sdf.format(f.getLastModified())).append(" ");
-      sb.append(f.getName()).append("\r\n");
-    }
+    for (ListingFile f : list)
+      sb.append(prepareLine(f));
     log.debug("Directory listing:\n"+sb);
     return sb.toString();
   }
+
+
+  /** Convert a file into a line FTP client can understand
+   * @param f File or directory
+   * @return Prepared line
+   */
+  protected String prepareLine(ListingFile f) {
+    if (dateFormat == null) dateFormat = new SimpleDateFormat("MMM dd HH:mm", new Locale("en"));
+
+    //-rw------- 1 peter 848 Dec 14 11:22 README.txt\r\n
+    StringBuffer sb = new StringBuffer();
+    sb.append(f.isDirectory() ? "d" : "-").append(f.getPermissions()).append(" ");
+    sb.append("1 ").append(f.getOwner()).append(" ");
+    sb.append(f.getSize()).append(" ");
+    sb.append(dateFormat.format(f.getLastModified())).append(" ");
+    sb.append(f.getName()).append("\r\n");
+    return sb.toString();
+  }
+
+
+  /** Create a channel which prepares the lines on demand
+   * @param list Files and directories
+   * @return Channel to read the listing from
+   */
+  protected ReadableByteChannel createListingChannel(Iterator<ListingFile> list) {
+    return new ListingChannel(null, list) {
+      protected String prepareLine(ListingFile f) {
+        return ListCommand.this.prepareLine(f);
+      }
+    };
+  }
 }
@@ -9,20 +9,22 @@ import com.coldcore.coloradoftp.factory.ObjectName;
 import com.coldcore.coloradoftp.filesystem.FileSystem;
 import com.coldcore.coloradoftp.filesystem.ListingFile;
 
-import java.util.Set;
 
 public class NlstCommand extends ListCommand {
 
-  protected String prepareList(Set<ListingFile> list) {
-    FileSystem fileSystem = (FileSystem) ObjectFactory.getObject(ObjectName.FILESYSTEM);
-    String fileSeparator = fileSystem.getFileSeparator();
+  private String fileSeparator;
 
-    StringBuffer sb = new StringBuffer();
-    for (ListingFile f : list) {
-      sb.append(f.getName());
-      if (f.isDirectory()) sb.append(fileSeparator);
-      sb.append("\r\n");
+
+  protected String prepareLine(ListingFile f) {
+    if (fileSeparator == null) {
+      FileSystem fileSystem = (FileSystem) ObjectFactory.getObject(ObjectName.FILESYSTEM);
+      fileSeparator = fileSystem.getFileSeparator();
     }
+
+    StringBuffer sb = new StringBuffer();
+    sb.append(f.getName());
+    if (f.isDirectory()) sb.append(fileSeparator);
+    sb.append("\r\n");
     return sb.toString();
   }
 }
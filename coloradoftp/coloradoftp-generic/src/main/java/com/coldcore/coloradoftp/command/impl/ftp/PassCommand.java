@@ -9,6 +9,7 @@ package com.coldcore.coloradoftp.command.impl.ftp;
 
 import com.coldcore.coloradoftp.command.Reply;
 import com.coldcore.coloradoftp.command.impl.AbstractCommand;
+import com.coldcore.coloradoftp.core.impl.LoadGovernor;
 import com.coldcore.coloradoftp.session.LoginState;
 import com.coldcore.coloradoftp.session.Session;
 import com.coldcore.coloradoftp.session.SessionAttributeName;
@@ -18,6 +19,7 @@ public class PassCommand extends AbstractCommand {
 
   private static Logger log = Logger.getLogger(PassCommand.class);
   private String emailRegExp;
+  protected LoadGovernor loadGovernor;
 
 
   public PassCommand() {
@@ -41,6 +43,22 @@ public class PassCommand extends AbstractCommand {
   }
 
 
+  /** Get load governor
+   * @return Governor or NULL if not set
+   */
+  public LoadGovernor getLoadGovernor() {
+    return loadGovernor;
+  }
+
+
+  /** Set load governor to refuse logins when the server is under load
+   * @param loadGovernor Governor
+   */
+  public void setLoadGovernor(LoadGovernor loadGovernor) {
+    this.loadGovernor = loadGovernor;
+  }
+
+
   public Reply execute() {
     Reply reply = getReply();
 
@@ -62,6 +80,14 @@ public class PassCommand extends AbstractCommand {
       return reply;
     }
 
+    if (loadGovernor != null && loadGovernor.isRefusingLogins()) {
+      log.debug("Server is under load, login refused for username: "+username);
+      reply.setCode("421");
+      reply.setText("Server is busy, try again later.");
+      getConnection().poison();
+      return reply;
+    }
+
     if (password.length() == 0) {
       log.debug("Invalid syntax of submitted password");
       reply.setCode("501");
@@ -87,8 +113,32 @@ public class PassCommand extends AbstractCommand {
     }
 
     //Regular login
-    if (checkLogin(username, password)) {
+    return regularLogin(username, password);
+  }
+
+
+  /** Log in a regular user.
+   * Subclasses may check the login asynchronously and return NULL (see DeferredReply).
+   * @param username Username
+   * @param password Password
+   * @return Reply
+   */
+  protected Reply regularLogin(String username, String password) {
+    return loginReply(username, checkLogin(username, password));
+  }
+
+
+  /** Complete a regular login
+   * @param username Username
+   * @param successful TRUE if login is OK, FALSE otherwise
+   * @return Reply
+   */
+  protected Reply loginReply(String username, boolean successful) {
+    Reply reply = getReply();
+
+    if (successful) {
       log.debug("Login successful for username: "+username);
+      Session session = getConnection().getSession();
       session.setAttribute(SessionAttributeName.LOGIN_STATE, LoginState.REGULAR);
       /* For security reasons password is not stored into the session */
       reply.setCode("230");
@@ -8,6 +8,7 @@ import com.coldcore.coloradoftp.command.Reply;
 import com.coldcore.coloradoftp.command.impl.AbstractCommand;
 import com.coldcore.coloradoftp.connection.DataPortListener;
 import com.coldcore.coloradoftp.connection.DataPortListenerSet;
+import com.coldcore.coloradoftp.core.impl.LoadGovernor;
 import com.coldcore.coloradoftp.factory.ObjectFactory;
 import com.coldcore.coloradoftp.factory.ObjectName;
 import com.coldcore.coloradoftp.session.DataOpenerType;
@@ -21,6 +22,7 @@ public class PasvCommand extends AbstractCommand {
 
   private static Logger log = Logger.getLogger(PasvCommand.class);
   protected String ip;
+  protected LoadGovernor loadGovernor;
 
 
   /** Get server IP
@@ -39,6 +41,22 @@ public class PasvCommand extends AbstractCommand {
   }
 
 
+  /** Get load governor
+   * @return Governor or NULL if not set
+   */
+  public LoadGovernor getLoadGovernor() {
+    return loadGovernor;
+  }
+
+
+  /** Set load governor to pause passive mode when the server is under load
+   * @param loadGovernor Governor
+   */
+  public void setLoadGovernor(LoadGovernor loadGovernor) {
+    this.loadGovernor = loadGovernor;
+  }
+
+
   public Reply execute() {
     Reply reply = getReply();
     if (!testLogin()) return reply;
@@ -46,6 +64,13 @@ public class PasvCommand extends AbstractCommand {
     Session session = getConnection().getSession();
     session.removeAttribute(SessionAttributeName.DATA_OPENER_TYPE);
 
+    if (loadGovernor != null && loadGovernor.isPassivePaused()) {
+      log.debug("Server is under load, passive mode paused");
+      reply.setCode("425");
+      reply.setText("Server is busy, try again later.");
+      return reply;
+    }
+
     DataPortListenerSet listeners = (DataPortListenerSet) ObjectFactory.getObject(ObjectName.DATA_PORT_LISTENER_SET);
     if (listeners.boundNumber() == 0 || ip == null || ip.length() == 0) {
       log.warn("No IP address, cannot accept data connections");
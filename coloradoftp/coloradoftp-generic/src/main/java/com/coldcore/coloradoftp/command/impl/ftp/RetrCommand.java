@@ -6,6 +6,7 @@ package com.coldcore.coloradoftp.command.impl.ftp;
 
 import com.coldcore.coloradoftp.command.Reply;
 import com.coldcore.coloradoftp.command.impl.AbstractCommand;
+import com.coldcore.coloradoftp.command.impl.DeferredReply;
 import com.coldcore.coloradoftp.connection.DataConnectionMode;
 import com.coldcore.coloradoftp.factory.ObjectFactory;
 import com.coldcore.coloradoftp.factory.ObjectName;
@@ -42,8 +43,37 @@ public class RetrCommand extends AbstractCommand {
     session.removeAttribute(SessionAttributeName.DATA_MARKER);
     if (marker == null) marker = 0L;
 
+    //Reply is submitted when the filesystem completes the call
+    if (asyncFileSystem != null) {
+      final String fname = filename;
+      DeferredReply<ReadableByteChannel> deferred = new DeferredReply<ReadableByteChannel>(this) {
+        protected Reply proceed(ReadableByteChannel rbc) {
+          return prepareTransfer(fname, rbc);
+        }
+      };
+      try {
+        asyncFileSystem.readFile(filename, marker, session, deferred);
+      } catch (RuntimeException e) {
+        deferred.release(); //The call was not made
+        throw e;
+      }
+      return null;
+    }
+
     FileSystem fileSystem = (FileSystem) ObjectFactory.getObject(ObjectName.FILESYSTEM);
     ReadableByteChannel rbc = fileSystem.readFile(filename, marker, session);
+    return prepareTransfer(filename, rbc);
+  }
+
+
+  /** Prepare a data connection to send a file
+   * @param filename Filename
+   * @param rbc Channel to read the file from
+   * @return Reply
+   */
+  protected Reply prepareTransfer(String filename, ReadableByteChannel rbc) {
+    Reply reply = getReply();
+    Session session = controlConnection.getSession();
 
     DataFilterApplicator applicator = (DataFilterApplicator) ObjectFactory.getObject(ObjectName.DATA_FILTER_APPLICATOR);
     rbc = applicator.applyFilters(rbc, session);
@@ -3,11 +3,15 @@
  * See FTP spec for details on the command.
  *
  * This class is designed as the superclass for STOU and APPE commands.
+ *
+ * Size announced by ALLO is used by this command only: it is kept for the data connection
+ * when the transfer starts and dropped when the command fails.
  */
 package com.coldcore.coloradoftp.command.impl.ftp;
 
 import com.coldcore.coloradoftp.command.Reply;
 import com.coldcore.coloradoftp.command.impl.AbstractCommand;
+import com.coldcore.coloradoftp.command.impl.DeferredReply;
 import com.coldcore.coloradoftp.connection.DataConnectionMode;
 import com.coldcore.coloradoftp.factory.ObjectFactory;
 import com.coldcore.coloradoftp.factory.ObjectName;
@@ -31,6 +35,7 @@ public class StorCommand extends AbstractCommand {
 
     String filename = getFilename();
     if (filename.length() == 0) {
+      clearAllocatedSize();
       reply.setCode("501");
       reply.setText("Send file name.");
       return reply;
@@ -40,8 +45,55 @@ public class StorCommand extends AbstractCommand {
     closeSessionDataChannel();
 
     Session session = controlConnection.getSession();
+
+    //Reply is submitted when the filesystem completes the call
+    if (asyncFileSystem != null) {
+      final String fname = filename;
+      DeferredReply<WritableByteChannel> deferred = new DeferredReply<WritableByteChannel>(this) {
+        protected Reply proceed(WritableByteChannel wbc) {
+          return prepareTransfer(fname, wbc);
+        }
+
+        protected Reply failed(Throwable e) {
+          clearAllocatedSize();
+          return super.failed(e);
+        }
+
+        protected Reply cancelled() {
+          clearAllocatedSize();
+          return super.cancelled();
+        }
+      };
+      try {
+        asyncFileSystem.saveFile(filename, isAppend(), session, deferred);
+      } catch (RuntimeException e) {
+        deferred.release(); //The call was not made
+        clearAllocatedSize();
+        throw e;
+      }
+      return null;
+    }
+
     FileSystem fileSystem = (FileSystem) ObjectFactory.getObject(ObjectName.FILESYSTEM);
-    WritableByteChannel wbc = fileSystem.saveFile(filename, isAppend(), session);
+    WritableByteChannel wbc;
+    try {
+      wbc = fileSystem.saveFile(filename, isAppend(), session);
+    } catch (RuntimeException e) {
+      clearAllocatedSize();
+      throw e;
+    }
+    return prepareTransfer(filename, wbc);
+  }
+
+
+  /** Prepare a data connection to receive a file
+   * @param filename Filename
+   * @param wbc Channel to write the file to
+   * @return Reply
+   */
+  protected Reply prepareTransfer(String filename, WritableByteChannel wbc) {
+    Reply reply = getReply();
+    Session session = controlConnection.getSession();
 
     DataFilterApplicator applicator = (DataFilterApplicator) ObjectFactory.getObject(ObjectName.DATA_FILTER_APPLICATOR);
     wbc = applicator.applyFilters(wbc, session);
@@ -50,6 +102,7 @@ public class StorCommand extends AbstractCommand {
     if (type == null) type = "A";
 
     if (!prepareForDataConnection()) {
+      clearAllocatedSize();
       try {
         wbc.close();
       } catch (Throwable e) {
@@ -68,6 +121,12 @@ public class StorCommand extends AbstractCommand {
   }
 
 
+  /** Drop the size announced by ALLO (it applies to one transfer only) */
+  protected void clearAllocatedSize() {
+    controlConnection.getSession().removeAttribute(SessionAttributeName.ALLOCATED_SIZE);
+  }
+
+
   /** Close a data channel if exists in the session */
   protected void closeSessionDataChannel() {
     Session session = controlConnection.getSession();
@@ -89,7 +89,7 @@ abstract public class GenericConnection implements Connection {
 
   private static Logger log = Logger.getLogger(GenericConnection.class);
   protected SocketChannel sc;
-  protected boolean poisoned;
+  protected volatile boolean poisoned;
   protected boolean destroyed;
   protected long bytesWrote;
   protected long bytesRead;
@@ -4,6 +4,7 @@ import com.coldcore.coloradoftp.command.Command;
 import com.coldcore.coloradoftp.command.CommandFactory;
 import com.coldcore.coloradoftp.command.CommandProcessor;
 import com.coldcore.coloradoftp.command.Reply;
+import com.coldcore.coloradoftp.command.impl.CommandWrapper;
 import com.coldcore.coloradoftp.connection.*;
 import com.coldcore.coloradoftp.factory.ObjectFactory;
 import com.coldcore.coloradoftp.factory.ObjectName;
@@ -32,7 +33,7 @@ public class GenericControlConnection extends GenericConnection implements Contr
   protected boolean rarrayComplete;
   protected StringBuffer incomingBuffer;
   protected StringBuffer outgoingBuffer;
-  protected boolean interruptState;
+  protected volatile boolean interruptState;
   protected CommandProcessor commandProcessor;
   protected CommandFactory commandFactory;
   protected Session session;
@@ -140,6 +141,8 @@ public class GenericControlConnection extends GenericConnection implements Contr
      * 1. There is some data in outgoing buffer waiting to be send to the user
      * 2. User did not receive a welcome message yet and it is not yet in the outgoing buffer
      * 3. Connection is poisoned
+     * Reading goes on while a reply to an asynchronous command is pending, so ABOR reaches
+     * the command processor (which holds other commands until the reply is submitted).
      */
     if (getOutgoingBufferSize() > 0 || bytesWrote == 0 || poisoned) {
       Thread.sleep(sleep);
@@ -264,12 +267,47 @@ public class GenericControlConnection extends GenericConnection implements Contr
   }
 
 
-  /** Execute commands waiting in the incoming buffer */
+  /** Pass commands waiting in the incoming buffer to the command processor */
   protected void executeCommands() throws Exception {
-    while (true) {
-      Command command = getNextCommand();
-      if (command == null) break;
-      commandProcessor.execute(command);
+    while (hasCommandInBuffer()) {
+      final Command command = getNextCommand();
+      if (command == null) continue;
+
+      //Command processor may execute the command later, test again if it is still allowed by then
+      commandProcessor.execute(new CommandWrapper(command) {
+        public Reply execute() {
+          if (!isExecutionAllowed(command)) return null;
+          return command.execute();
+        }
+      });
+    }
+  }
+
+
+  /** Test if a command may be executed in the current state of the connection
+   * @param command Command
+   * @return TRUE if the command may be executed, FALSE if it must be dropped
+   */
+  protected boolean isExecutionAllowed(Command command) {
+    //If INTERRUPT state is set then ignore all but special FTP commands (same for the poisoned).
+    if (interruptState && !command.processInInterruptState()) {
+      log.debug("Execution of the command is not allowed while the connection is in INTERRUPT state (dropping command)");
+      return false;
+    }
+    if (poisoned && !command.processInInterruptState()) {
+      log.debug("Execution of the command is not allowed while the connection is poisoned (dropping command)");
+      return false;
+    }
+    return true;
+  }
+
+
+  /** Test if the incoming buffer contains a complete command line
+   * @return TRUE if there is a command to execute, FALSE otherwise
+   */
+  protected boolean hasCommandInBuffer() {
+    synchronized (incomingBuffer) {
+      return incomingBuffer.indexOf("\r\n") != -1;
     }
   }
 
@@ -292,16 +330,7 @@ public class GenericControlConnection extends GenericConnection implements Contr
     Command command = commandFactory.create(input);
     command.setConnection(this);
 
-    //If INTERRUPT state is set then ignore all but special FTP commands (same for the poisoned).
-    if (interruptState && !command.processInInterruptState()) {
-      log.debug("Execution of the command is not allowed while the connection is in INTERRUPT state (dropping command)");
-      return null;
-    }
-    if (poisoned && !command.processInInterruptState()) {
-      log.debug("Execution of the command is not allowed while the connection is poisoned (dropping command)");
-      return null;
-    }
-
+    if (!isExecutionAllowed(command)) return null;
     return command;
   }
 
@@ -2,6 +2,7 @@ package com.coldcore.coloradoftp.connection.impl;
 
 import com.coldcore.coloradoftp.command.Reply;
 import com.coldcore.coloradoftp.connection.*;
+import com.coldcore.coloradoftp.core.impl.LoadGovernor;
 import com.coldcore.coloradoftp.factory.ObjectFactory;
 import com.coldcore.coloradoftp.factory.ObjectName;
 import com.coldcore.coloradoftp.session.Session;
@@ -28,6 +29,16 @@ public class GenericDataConnection extends GenericConnection implements DataConn
   protected boolean successful;
   protected boolean skipReply;
   protected DataConnectionCallback callback;
+  protected int maxBufferSize;
+  protected int writeBehindBuffers;
+  protected int writeBehindBufferSize;
+  protected WriteBehindChannel.Fsync writeBehindFsync;
+  protected long writeBehindFsyncBytes;
+  protected int readAheadBuffers;
+  protected int readAheadBufferSize;
+  protected LoadGovernor loadGovernor;
+
+  public static final int MIN_BUFFER_SIZE = 4096;
 
 
   public GenericDataConnection(int bufferSize) {
@@ -36,6 +47,11 @@ public class GenericDataConnection extends GenericConnection implements DataConn
     //rbuffer = ByteBuffer.allocateDirect(bufferSize);
     rbuffer = ByteBuffer.allocate(bufferSize);
     rbuffer.flip();
+
+    writeBehindBufferSize = 256*1024;
+    writeBehindFsync = WriteBehindChannel.Fsync.NONE;
+    writeBehindFsyncBytes = 8L*1024L*1024L;
+    readAheadBufferSize = 64*1024;
   }
 
 
@@ -49,6 +65,8 @@ public class GenericDataConnection extends GenericConnection implements DataConn
     //Read data from user into the buffer if the buffer is empty
     if (!rbuffer.hasRemaining()) {
       rbuffer.clear();
+      if (loadGovernor != null) loadGovernor.throttle();
+      rbuffer.limit(Math.min(rbuffer.capacity(), getTransferLimit()));
       int i = sc.read(rbuffer); //Thread blocks here...
       rbuffer.flip();
 
@@ -87,8 +105,12 @@ public class GenericDataConnection extends GenericConnection implements DataConn
       }
     }
 
-    //Forward the data to the user
+    //Forward the data to the user (no more than allowed)
+    if (loadGovernor != null) loadGovernor.throttle();
+    int limit = rbuffer.limit();
+    rbuffer.limit(rbuffer.position()+Math.min(rbuffer.remaining(), getTransferLimit()));
     int i = sc.write(rbuffer); //Thread blocks here...
+    rbuffer.limit(limit);
 
     //Client disconnected?
     if (i == -1) throw new TransferAbortedException();
@@ -98,6 +120,15 @@ public class GenericDataConnection extends GenericConnection implements DataConn
   }
 
 
+  /** Get max amount of bytes the next socket read or write may transfer.
+   * Called right before the socket operation, subclasses may block here to limit the speed.
+   * @return Bytes (at least 1)
+   */
+  protected int getTransferLimit() throws Exception {
+    return rbuffer.capacity();
+  }
+
+
   /** Activate the connection if not active yet */
   protected void activate() {
     /* The connection will start to function as soon as it gets MODE and CHANNEL from
@@ -135,9 +166,16 @@ public class GenericDataConnection extends GenericConnection implements DataConn
       Session session = controlConnection.getSession();
       if (mode == DataConnectionMode.LIST || mode == DataConnectionMode.RETR) {
         rbc = (ReadableByteChannel) session.getAttribute(SessionAttributeName.DATA_CONNECTION_CHANNEL);
+        if (rbc != null && mode == DataConnectionMode.RETR && readAheadBuffers > 0)
+          rbc = new ReadAheadChannel(rbc, Math.min(2, readAheadBuffers), readAheadBuffers, readAheadBufferSize);
         startWriterThread(); //To write data to user
       } else {
         wbc = (WritableByteChannel) session.getAttribute(SessionAttributeName.DATA_CONNECTION_CHANNEL);
+        if (wbc != null) {
+          sizeBuffer((Long) session.getAttribute(SessionAttributeName.ALLOCATED_SIZE));
+          if (writeBehindBuffers > 0)
+            wbc = new WriteBehindChannel(wbc, writeBehindBuffers, writeBehindBufferSize, writeBehindFsync, writeBehindFsyncBytes);
+        }
         startReaderThread(); //To read data from user
       }
       if (rbc != null || wbc != null) {
@@ -147,6 +185,166 @@ public class GenericDataConnection extends GenericConnection implements DataConn
   }
 
 
+  /** Resize the buffer to fit the size of an upload announced by the user (ALLO command).
+   * Small uploads get a smaller buffer, large uploads get a larger buffer up to the max buffer size.
+   * @param size Announced size or NULL if not announced
+   */
+  protected void sizeBuffer(Long size) {
+    if (size == null) return;
+
+    int capacity = rbuffer.capacity();
+    long target = size;
+    if (target < capacity) target = Math.max(target, Math.min(MIN_BUFFER_SIZE, capacity));
+    else target = Math.min(target, Math.max(maxBufferSize, capacity));
+    if (target == capacity) return;
+
+    rbuffer = ByteBuffer.allocate((int) target);
+    rbuffer.flip();
+    log.debug("Buffer resized to "+target+" bytes");
+  }
+
+
+  /** Get load governor
+   * @return Governor or NULL if not set
+   */
+  public LoadGovernor getLoadGovernor() {
+    return loadGovernor;
+  }
+
+
+  /** Set load governor to slow down transfers when the server is under load
+   * @param loadGovernor Governor
+   */
+  public void setLoadGovernor(LoadGovernor loadGovernor) {
+    this.loadGovernor = loadGovernor;
+  }
+
+
+  /** Get amount of write-behind buffers
+   * @return Buffers, 0 if uploads are written by the reading thread
+   */
+  public int getWriteBehindBuffers() {
+    return writeBehindBuffers;
+  }
+
+
+  /** Set amount of write-behind buffers. With buffers set a separate thread writes uploads into files
+   * while the reading thread keeps reading data from the user until all the buffers are full.
+   * @param writeBehindBuffers Buffers, 0 to write uploads by the reading thread
+   */
+  public void setWriteBehindBuffers(int writeBehindBuffers) {
+    if (writeBehindBuffers < 0) throw new IllegalArgumentException("Invalid argument");
+    this.writeBehindBuffers = writeBehindBuffers;
+  }
+
+
+  /** Get size of a write-behind buffer
+   * @return Size in bytes
+   */
+  public int getWriteBehindBufferSize() {
+    return writeBehindBufferSize;
+  }
+
+
+  /** Set size of a write-behind buffer (amount of data written into a file at once)
+   * @param writeBehindBufferSize Size in bytes
+   */
+  public void setWriteBehindBufferSize(int writeBehindBufferSize) {
+    if (writeBehindBufferSize < 1) throw new IllegalArgumentException("Invalid argument");
+    this.writeBehindBufferSize = writeBehindBufferSize;
+  }
+
+
+  /** Get when uploads written behind are synced to the disk
+   * @return NONE, CLOSE or BYTES
+   */
+  public String getWriteBehindFsync() {
+    return writeBehindFsync.name();
+  }
+
+
+  /** Set when uploads written behind are synced to the disk
+   * @param writeBehindFsync NONE (never), CLOSE (when upload ends) or BYTES (every fsync bytes and when upload ends)
+   */
+  public void setWriteBehindFsync(String writeBehindFsync) {
+    try {
+      this.writeBehindFsync = WriteBehindChannel.Fsync.valueOf(writeBehindFsync.trim().toUpperCase());
+    } catch (Throwable e) {
+      throw new IllegalArgumentException("Invalid fsync policy");
+    }
+  }
+
+
+  /** Get amount of bytes written between syncs (for BYTES fsync policy)
+   * @return Bytes
+   */
+  public long getWriteBehindFsyncBytes() {
+    return writeBehindFsyncBytes;
+  }
+
+
+  /** Set amount of bytes written between syncs (for BYTES fsync policy)
+   * @param writeBehindFsyncBytes Bytes
+   */
+  public void setWriteBehindFsyncBytes(long writeBehindFsyncBytes) {
+    if (writeBehindFsyncBytes < 1L) throw new IllegalArgumentException("Invalid argument");
+    this.writeBehindFsyncBytes = writeBehindFsyncBytes;
+  }
+
+
+  /** Get max amount of read-ahead buffers
+   * @return Buffers, 0 if downloads are read by the writing thread
+   */
+  public int getReadAheadBuffers() {
+    return readAheadBuffers;
+  }
+
+
+  /** Set max amount of read-ahead buffers. With buffers set a separate thread reads the next parts
+   * of a download while the writing thread sends the current part to the user. The amount of
+   * buffers in use adapts to the speed of the file and the user.
+   * @param readAheadBuffers Buffers, 0 to read downloads by the writing thread
+   */
+  public void setReadAheadBuffers(int readAheadBuffers) {
+    if (readAheadBuffers < 0) throw new IllegalArgumentException("Invalid argument");
+    this.readAheadBuffers = readAheadBuffers;
+  }
+
+
+  /** Get size of a read-ahead buffer
+   * @return Size in bytes
+   */
+  public int getReadAheadBufferSize() {
+    return readAheadBufferSize;
+  }
+
+
+  /** Set size of a read-ahead buffer (amount of data read from a file at once)
+   * @param readAheadBufferSize Size in bytes
+   */
+  public void setReadAheadBufferSize(int readAheadBufferSize) {
+    if (readAheadBufferSize < 1) throw new IllegalArgumentException("Invalid argument");
+    this.readAheadBufferSize = readAheadBufferSize;
+  }
+
+
+  /** Get max size the buffer may grow to for a large upload
+   * @return Size in bytes, 0 if the buffer never grows
+   */
+  public int getMaxBufferSize() {
+    return maxBufferSize;
+  }
+
+
+  /** Set max size the buffer may grow to for a large upload announced by the user (ALLO command)
+   * @param maxBufferSize Size in bytes, 0 if the buffer must never grow
+   */
+  public void setMaxBufferSize(int maxBufferSize) {
+    if (maxBufferSize < 0) throw new IllegalArgumentException("Invalid argument");
+    this.maxBufferSize = maxBufferSize;
+  }
+
+
   public void service() throws Exception {
     //User aborted the transfer
     if (userAborted) throw new TransferAbortedException();
@@ -161,6 +359,24 @@ public class GenericDataConnection extends GenericConnection implements DataConn
     Session session = controlConnection.getSession();
     Channel odc = (Channel) session.getAttribute(SessionAttributeName.DATA_CONNECTION_CHANNEL);
     session.removeAttribute(SessionAttributeName.DATA_CONNECTION_FILENAME);
+
+    //Stop reading the file in advance
+    if (rbc instanceof ReadAheadChannel)
+      try {
+        rbc.close();
+      } catch (Throwable e) {
+        log.error("Error closing data channel (ignoring)", e);
+      }
+
+    //Data still waiting to be written must reach the file first
+    if (wbc instanceof WriteBehindChannel)
+      try {
+        wbc.close();
+      } catch (Throwable e) {
+        log.error("Error writing out data channel", e);
+        successful = false;
+      }
+
     try {
       if (odc != null) odc.close();
     } catch (Throwable e) {
@@ -242,6 +458,7 @@ public class GenericDataConnection extends GenericConnection implements DataConn
       Session session = controlConnection.getSession();
       session.removeAttribute(SessionAttributeName.DATA_CONNECTION_MODE);
       session.removeAttribute(SessionAttributeName.DATA_CONNECTION_CHANNEL);
+      session.removeAttribute(SessionAttributeName.ALLOCATED_SIZE);
 
       //Clear control connection reference
       controlConnection.setDataConnection(null);
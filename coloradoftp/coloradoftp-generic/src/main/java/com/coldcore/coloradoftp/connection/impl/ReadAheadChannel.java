@@ -0,0 +1,176 @@
+package com.coldcore.coloradoftp.connection.impl;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedList;
+
+/**
+ * Channel which reads data from another channel in advance by a separate thread.
+ *
+ * While the calling thread (a data connection writing to a socket) sends one chunk of data,
+ * the reader thread already reads the next chunks from the source channel. So a transfer from
+ * a slow source goes as fast as the slower side allows rather than at the sum of both latencies.
+ *
+ * The amount of chunks read in advance (depth) adapts between the min and max depth: it grows
+ * every time the caller has to wait for data and shrinks when the chunks are not taken for a
+ * while (the socket is the slower side and memory would be wasted).
+ */
+public class ReadAheadChannel implements ReadableByteChannel {
+
+  private static Logger log = Logger.getLogger(ReadAheadChannel.class);
+  protected ReadableByteChannel source;
+  protected LinkedList<ByteBuffer> ready;
+  protected LinkedList<ByteBuffer> free;
+  protected ByteBuffer current;
+  protected int bufferSize;
+  protected int depth;
+  protected int minDepth;
+  protected int maxDepth;
+  protected int fullHits;
+  protected boolean eof;
+  protected boolean open;
+  protected IOException error;
+  protected Thread readerThread;
+
+  /** Amount of times the reader finds all chunks untaken before the depth shrinks */
+  protected static final int SHRINK_AFTER = 16;
+
+
+  /** Constructor
+   * @param source Channel to read from
+   * @param minDepth Min amount of chunks to read in advance
+   * @param maxDepth Max amount of chunks to read in advance
+   * @param bufferSize Size of a chunk in bytes
+   */
+  public ReadAheadChannel(ReadableByteChannel source, int minDepth, int maxDepth, int bufferSize) {
+    if (source == null) throw new IllegalArgumentException("Invalid channel");
+    if (minDepth < 1 || maxDepth < minDepth || bufferSize < 1) throw new IllegalArgumentException("Invalid argument");
+    this.source = source;
+    this.minDepth = minDepth;
+    this.maxDepth = maxDepth;
+    this.bufferSize = bufferSize;
+    depth = minDepth;
+
+    ready = new LinkedList<ByteBuffer>();
+    free = new LinkedList<ByteBuffer>();
+
+    open = true;
+    readerThread = new Thread(new Reader(), "read-ahead");
+    readerThread.setDaemon(true);
+    readerThread.start();
+  }
+
+
+  /** Reads chunks from the source channel */
+  protected class Reader implements Runnable {
+
+    public void run() {
+      try {
+        while (true) {
+          ByteBuffer buffer;
+          synchronized (ReadAheadChannel.this) {
+            while (open && ready.size() >= depth) {
+              //Chunks are not taken fast enough, read less in advance
+              if (++fullHits >= SHRINK_AFTER && depth > minDepth) {
+                depth--;
+                fullHits = 0;
+                log.debug("Read-ahead depth decreased to "+depth);
+              }
+              ReadAheadChannel.this.wait();
+            }
+            if (!open) return;
+            buffer = free.isEmpty() ? ByteBuffer.allocate(bufferSize) : free.removeFirst();
+          }
+
+          buffer.clear();
+          int i = 0;
+          while (i == 0) i = source.read(buffer);
+          buffer.flip();
+
+          synchronized (ReadAheadChannel.this) {
+            if (i == -1) eof = true;
+            else ready.addLast(buffer);
+            ReadAheadChannel.this.notifyAll();
+            if (eof) return;
+          }
+        }
+      } catch (Throwable e) {
+        synchronized (ReadAheadChannel.this) {
+          if (open) error = e instanceof IOException ? (IOException) e : new IOException("Read failed: "+e);
+          ReadAheadChannel.this.notifyAll();
+        }
+      }
+    }
+  }
+
+
+  /** Get current amount of chunks read in advance
+   * @return Depth
+   */
+  public synchronized int getDepth() {
+    return depth;
+  }
+
+
+  public int read(ByteBuffer dst) throws IOException {
+    if (current == null || !current.hasRemaining()) {
+      synchronized (this) {
+        if (!open) throw new ClosedChannelException();
+        if (current != null) free.addLast(current);
+        current = null;
+
+        if (ready.isEmpty() && !eof && error == null) {
+          //The source is slower, read more in advance
+          if (depth < maxDepth) {
+            depth++;
+            log.debug("Read-ahead depth increased to "+depth);
+          }
+          fullHits = 0;
+          try {
+            while (ready.isEmpty() && !eof && error == null && open) wait();
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for data");
+          }
+        }
+
+        if (!open) throw new ClosedChannelException();
+        if (ready.isEmpty()) {
+          if (error != null) throw error;
+          return -1;
+        }
+        current = ready.removeFirst();
+        notifyAll();
+      }
+    }
+
+    int len = Math.min(dst.remaining(), current.remaining());
+    ByteBuffer part = current.slice();
+    part.limit(len);
+    dst.put(part);
+    current.position(current.position()+len);
+    return len;
+  }
+
+
+  public synchronized boolean isOpen() {
+    return open;
+  }
+
+
+  /** Stop reading in advance and close the source channel */
+  public void close() throws IOException {
+    synchronized (this) {
+      if (!open) return;
+      open = false;
+      ready.clear();
+      free.clear();
+      notifyAll();
+    }
+    source.close();
+  }
+}
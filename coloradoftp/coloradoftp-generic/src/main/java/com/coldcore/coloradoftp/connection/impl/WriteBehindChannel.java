@@ -0,0 +1,190 @@
+package com.coldcore.coloradoftp.connection.impl;
+
+import com.coldcore.coloradoftp.filesystem.SyncableChannels;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Channel which writes data into another channel by a separate thread.
+ *
+ * Data is collected into a ring of buffers, a full buffer is passed to the writer thread
+ * which writes it into the target channel. The calling thread (a data connection reading
+ * from a socket) is blocked only when all buffers are full, so a slow disk does not stall
+ * the network as long as the ring has space.
+ *
+ * The target channel can be synced to the disk depending on the fsync policy (only if the
+ * target is a file channel or a syncable channel, otherwise a warning is logged). Errors of
+ * the writer thread are thrown by the next write or close call.
+ */
+public class WriteBehindChannel implements WritableByteChannel {
+
+  private static Logger log = Logger.getLogger(WriteBehindChannel.class);
+  protected WritableByteChannel target;
+  protected BlockingQueue<ByteBuffer> free;
+  protected BlockingQueue<ByteBuffer> full;
+  protected ByteBuffer current;
+  protected Fsync fsync;
+  protected long fsyncBytes;
+  protected long unsyncedBytes;
+  protected Thread writerThread;
+  protected volatile IOException error;
+  protected boolean open;
+  protected boolean syncWarned;
+
+  /** Marks the end of data for the writer thread */
+  protected static final ByteBuffer END = ByteBuffer.allocate(0);
+
+
+  /** When to sync the written data to the disk */
+  public enum Fsync {
+    NONE,  //Leave it to the operating system
+    CLOSE, //Once when the channel is closed
+    BYTES  //Every time the specified amount of bytes is written and when the channel is closed
+  }
+
+
+  /** Constructor
+   * @param target Channel to write into
+   * @param buffers Amount of buffers in the ring
+   * @param bufferSize Size of a buffer in bytes
+   * @param fsync Fsync policy
+   * @param fsyncBytes Amount of bytes between syncs (for BYTES policy)
+   */
+  public WriteBehindChannel(WritableByteChannel target, int buffers, int bufferSize, Fsync fsync, long fsyncBytes) {
+    if (target == null) throw new IllegalArgumentException("Invalid channel");
+    if (buffers < 1 || bufferSize < 1) throw new IllegalArgumentException("Invalid argument");
+    if (fsync == null) throw new IllegalArgumentException("Invalid fsync policy");
+    this.target = target;
+    this.fsync = fsync;
+    this.fsyncBytes = fsyncBytes;
+
+    free = new ArrayBlockingQueue<ByteBuffer>(buffers);
+    full = new ArrayBlockingQueue<ByteBuffer>(buffers+1); //Plus the end marker
+    for (int z = 0; z < buffers; z++)
+      free.add(ByteBuffer.allocate(bufferSize));
+
+    open = true;
+    writerThread = new Thread(new Writer(), "write-behind");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+
+  /** Writes full buffers into the target channel */
+  protected class Writer implements Runnable {
+
+    public void run() {
+      try {
+        while (true) {
+          ByteBuffer buffer = full.take();
+          if (buffer == END) break;
+
+          if (error == null) //After an error just recycle buffers so the writing side is not blocked
+            try {
+              int bytes = buffer.remaining();
+              while (buffer.hasRemaining())
+                target.write(buffer);
+              unsyncedBytes += bytes;
+              if (fsync == Fsync.BYTES && unsyncedBytes >= fsyncBytes) sync();
+            } catch (IOException e) {
+              error = e;
+            } catch (Throwable e) {
+              error = new IOException("Write failed: "+e);
+            }
+
+          buffer.clear();
+          free.put(buffer);
+        }
+      } catch (InterruptedException e) {
+        error = new InterruptedIOException("Writer interrupted");
+      }
+    }
+  }
+
+
+  /** Sync the target channel to the disk */
+  protected void sync() throws IOException {
+    boolean synced = SyncableChannels.sync(target, false);
+    unsyncedBytes = 0L;
+
+    if (!synced && !syncWarned) {
+      syncWarned = true;
+      log.warn("Channel "+target.getClass().getName()+" cannot be synced, fsync policy "+fsync+" is not honoured");
+    }
+  }
+
+
+  /** Throw an error of the writer thread if there was one */
+  protected void testError() throws IOException {
+    IOException e = error;
+    if (e != null) throw e;
+  }
+
+
+  public synchronized int write(ByteBuffer src) throws IOException {
+    if (!open) throw new ClosedChannelException();
+    testError();
+
+    int written = 0;
+    try {
+      while (src.hasRemaining()) {
+        if (current == null) current = free.take(); //Blocks if all buffers are full
+
+        int len = Math.min(src.remaining(), current.remaining());
+        ByteBuffer part = src.slice();
+        part.limit(len);
+        current.put(part);
+        src.position(src.position()+len);
+        written += len;
+
+        if (!current.hasRemaining()) {
+          current.flip();
+          full.put(current);
+          current = null;
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while waiting for a free buffer");
+    }
+    return written;
+  }
+
+
+  public boolean isOpen() {
+    return open;
+  }
+
+
+  /** Write out all the remaining data and close the target channel */
+  public synchronized void close() throws IOException {
+    if (!open) return;
+    open = false;
+
+    try {
+      if (current != null && current.position() > 0) {
+        current.flip();
+        full.put(current);
+      }
+      current = null;
+      full.put(END);
+      writerThread.join();
+    } catch (InterruptedException e) {
+      error = new InterruptedIOException("Interrupted while writing out data");
+    }
+
+    try {
+      testError();
+      if (fsync != Fsync.NONE && unsyncedBytes > 0L) sync();
+      log.debug("Write-behind channel flushed");
+    } finally {
+      target.close();
+    }
+  }
+}
@@ -0,0 +1,14 @@
+package com.coldcore.coloradoftp.core;
+
+/**
+ * Server load level, every level includes restrictions of the levels before it.
+ *
+ *
+ * ColoradoFTP - The Open Source FTP Server (http://cftp.coldcore.com)
+ */
+public enum LoadLevel {
+  NORMAL,          //No restrictions
+  REFUSE_LOGINS,   //New logins are refused
+  PAUSE_PASV,      //New passive data connections are refused
+  THROTTLE         //Existing transfers are slowed down
+}
@@ -20,6 +20,7 @@ public class GenericCore implements Core {
   protected DataPortListenerSet dataPortListenerSet;
   protected ConnectionPool controlConnectionPool;
   protected ConnectionPool dataConnectionPool;
+  protected LoadGovernor loadGovernor;
 
 
   public GenericCore() {
@@ -27,6 +28,22 @@ public class GenericCore implements Core {
   }
 
 
+  /** Get load governor
+   * @return Governor or NULL if not set
+   */
+  public LoadGovernor getLoadGovernor() {
+    return loadGovernor;
+  }
+
+
+  /** Set load governor to run while the server is running
+   * @param loadGovernor Governor
+   */
+  public void setLoadGovernor(LoadGovernor loadGovernor) {
+    this.loadGovernor = loadGovernor;
+  }
+
+
   synchronized public void start() {
     if (status != CoreStatus.STOPPED) {
       log.warn("Server was running when start routine was submitted");
@@ -50,6 +67,9 @@ public class GenericCore implements Core {
       //Bind control connector
       if (!bindControlConnector()) throw new Exception("Unable to bind control connector");
 
+      //Watch the load
+      if (loadGovernor != null) loadGovernor.start();
+
     } catch (Throwable e) {
       //Terminate everything
       boolean noerrors = terminate();
@@ -70,6 +90,7 @@ public class GenericCore implements Core {
    */
   protected boolean terminate() {
     boolean noerrors = true;
+    if (loadGovernor != null) loadGovernor.stop();
     if (!unbindControlConnector()) noerrors = false;
     if (!unbindDataPortListeners()) noerrors = false;
     dataConnectionPool.destroy();
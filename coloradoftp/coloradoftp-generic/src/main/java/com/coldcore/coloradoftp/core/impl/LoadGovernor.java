@@ -0,0 +1,372 @@
+package com.coldcore.coloradoftp.core.impl;
+
+import com.coldcore.coloradoftp.command.CommandProcessor;
+import com.coldcore.coloradoftp.command.impl.GenericCommandProcessor;
+import com.coldcore.coloradoftp.core.LoadLevel;
+import com.coldcore.coloradoftp.factory.ObjectFactory;
+import com.coldcore.coloradoftp.factory.ObjectName;
+import com.coldcore.coloradoftp.filesystem.AsyncFileSystem;
+import com.coldcore.coloradoftp.filesystem.impl.ExecutorAsyncFileSystem;
+import org.apache.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Samples server health signals and switches the server into degraded modes under load.
+ *
+ * Signals are heap usage after the last garbage collection (live data rather than garbage
+ * waiting to be collected), amount of threads, depth of command and filesystem queues and
+ * average latency of commands executed within the last interval (0 if none). Each signal has
+ * a limit (0 to ignore the signal) and the pressure is the highest ratio of a signal to its
+ * limit. While the pressure is at or over 1 the load level goes up one step per sample (see
+ * LoadLevel), once the pressure stays below the recovery ratio for a number of samples the
+ * level goes down one step. Every transition is logged.
+ *
+ * Components ask the governor before taking new work: PASS refuses logins with 421, PASV is
+ * refused and data connections slow down when the level is high enough.
+ */
+public class LoadGovernor implements Runnable {
+
+  private static Logger log = Logger.getLogger(LoadGovernor.class);
+  protected volatile LoadLevel level;
+  protected long interval;
+  protected double maxHeapUsage;
+  protected int maxThreads;
+  protected int maxQueueDepth;
+  protected long maxLatency;
+  protected double recoveryRatio;
+  protected int recoverySamples;
+  protected long throttleDelay;
+  protected AsyncFileSystem asyncFileSystem;
+  protected CommandProcessor commandProcessor;
+  protected Thread thr;
+  protected volatile boolean running;
+  protected int calmSamples;
+  protected volatile double pressure;
+  protected long lastExecuted;
+  protected long lastLatency;
+
+
+  public LoadGovernor() {
+    level = LoadLevel.NORMAL;
+    interval = 1000L;
+    maxHeapUsage = 0.9d;
+    recoveryRatio = 0.8d;
+    recoverySamples = 5;
+    throttleDelay = 50L;
+  }
+
+
+  /** Get sampling interval
+   * @return Milliseconds
+   */
+  public long getInterval() {
+    return interval;
+  }
+
+
+  /** Set sampling interval
+   * @param interval Milliseconds
+   */
+  public void setInterval(long interval) {
+    if (interval < 1L) throw new IllegalArgumentException("Invalid argument");
+    this.interval = interval;
+  }
+
+
+  /** Get max part of the max heap in use after which the server is under load
+   * @return Ratio (0.9 is 90%), 0 to ignore
+   */
+  public double getMaxHeapUsage() {
+    return maxHeapUsage;
+  }
+
+
+  /** Set max part of the max heap in use after which the server is under load
+   * @param maxHeapUsage Ratio (0.9 is 90%), 0 to ignore
+   */
+  public void setMaxHeapUsage(double maxHeapUsage) {
+    if (maxHeapUsage < 0d || maxHeapUsage > 1d) throw new IllegalArgumentException("Invalid argument");
+    this.maxHeapUsage = maxHeapUsage;
+  }
+
+
+  /** Get max amount of live threads
+   * @return Threads, 0 to ignore
+   */
+  public int getMaxThreads() {
+    return maxThreads;
+  }
+
+
+  /** Set max amount of live threads
+   * @param maxThreads Threads, 0 to ignore
+   */
+  public void setMaxThreads(int maxThreads) {
+    if (maxThreads < 0) throw new IllegalArgumentException("Invalid argument");
+    this.maxThreads = maxThreads;
+  }
+
+
+  /** Get max amount of queued commands and filesystem calls
+   * @return Queue depth, 0 to ignore
+   */
+  public int getMaxQueueDepth() {
+    return maxQueueDepth;
+  }
+
+
+  /** Set max amount of queued commands and filesystem calls
+   * @param maxQueueDepth Queue depth, 0 to ignore
+   */
+  public void setMaxQueueDepth(int maxQueueDepth) {
+    if (maxQueueDepth < 0) throw new IllegalArgumentException("Invalid argument");
+    this.maxQueueDepth = maxQueueDepth;
+  }
+
+
+  /** Get max average command latency
+   * @return Milliseconds, 0 to ignore
+   */
+  public long getMaxLatency() {
+    return maxLatency;
+  }
+
+
+  /** Set max average command latency
+   * @param maxLatency Milliseconds, 0 to ignore
+   */
+  public void setMaxLatency(long maxLatency) {
+    if (maxLatency < 0L) throw new IllegalArgumentException("Invalid argument");
+    this.maxLatency = maxLatency;
+  }
+
+
+  /** Get pressure below which the server starts to recover
+   * @return Ratio
+   */
+  public double getRecoveryRatio() {
+    return recoveryRatio;
+  }
+
+
+  /** Set pressure below which the server starts to recover
+   * @param recoveryRatio Ratio (below 1)
+   */
+  public void setRecoveryRatio(double recoveryRatio) {
+    if (recoveryRatio <= 0d || recoveryRatio >= 1d) throw new IllegalArgumentException("Invalid argument");
+    this.recoveryRatio = recoveryRatio;
+  }
+
+
+  /** Get amount of calm samples in a row required to step the level down
+   * @return Samples
+   */
+  public int getRecoverySamples() {
+    return recoverySamples;
+  }
+
+
+  /** Set amount of calm samples in a row required to step the level down
+   * @param recoverySamples Samples
+   */
+  public void setRecoverySamples(int recoverySamples) {
+    if (recoverySamples < 1) throw new IllegalArgumentException("Invalid argument");
+    this.recoverySamples = recoverySamples;
+  }
+
+
+  /** Get pause a data connection makes before every socket operation when throttled
+   * @return Milliseconds
+   */
+  public long getThrottleDelay() {
+    return throttleDelay;
+  }
+
+
+  /** Set pause a data connection makes before every socket operation when throttled
+   * @param throttleDelay Milliseconds
+   */
+  public void setThrottleDelay(long throttleDelay) {
+    if (throttleDelay < 0L) throw new IllegalArgumentException("Invalid argument");
+    this.throttleDelay = throttleDelay;
+  }
+
+
+  /** Get filesystem which queue depth is sampled
+   * @return Filesystem or NULL if not set
+   */
+  public AsyncFileSystem getAsyncFileSystem() {
+    return asyncFileSystem;
+  }
+
+
+  /** Set filesystem which queue depth is sampled
+   * @param asyncFileSystem Filesystem
+   */
+  public void setAsyncFileSystem(AsyncFileSystem asyncFileSystem) {
+    this.asyncFileSystem = asyncFileSystem;
+  }
+
+
+  /** Get current load level
+   * @return Level
+   */
+  public LoadLevel getLevel() {
+    return level;
+  }
+
+
+  /** Get pressure of the last sample
+   * @return Highest ratio of a signal to its limit
+   */
+  public double getPressure() {
+    return pressure;
+  }
+
+
+  /** Test if new logins are refused
+   * @return TRUE if refused, FALSE otherwise
+   */
+  public boolean isRefusingLogins() {
+    return level.compareTo(LoadLevel.REFUSE_LOGINS) >= 0;
+  }
+
+
+  /** Test if new passive data connections are refused
+   * @return TRUE if refused, FALSE otherwise
+   */
+  public boolean isPassivePaused() {
+    return level.compareTo(LoadLevel.PAUSE_PASV) >= 0;
+  }
+
+
+  /** Test if transfers are slowed down
+   * @return TRUE if slowed down, FALSE otherwise
+   */
+  public boolean isThrottling() {
+    return level == LoadLevel.THROTTLE;
+  }
+
+
+  /** Slow down the calling data connection if transfers are throttled */
+  public void throttle() throws InterruptedException {
+    if (isThrottling() && throttleDelay > 0L) Thread.sleep(throttleDelay);
+  }
+
+
+  /** Start sampling */
+  public synchronized void start() {
+    if (running) return;
+    commandProcessor = (CommandProcessor) ObjectFactory.getObject(ObjectName.COMMAND_PROCESSOR);
+    running = true;
+    thr = new Thread(this, "load-governor");
+    thr.setDaemon(true);
+    thr.start();
+    log.info("Load governor started");
+  }
+
+
+  /** Stop sampling and go back to the normal level */
+  public synchronized void stop() {
+    if (!running) return;
+    running = false;
+    thr.interrupt();
+    setLevel(LoadLevel.NORMAL, "governor stopped");
+  }
+
+
+  public void run() {
+    while (running) {
+      try {
+        Thread.sleep(interval);
+        sample();
+      } catch (InterruptedException e) {
+        //Stopped
+      } catch (Throwable e) {
+        log.error("Load governor failed to sample (ignoring)", e);
+      }
+    }
+    log.debug("Load governor thread finished");
+  }
+
+
+  /** Sample the signals and change the level if required */
+  protected void sample() {
+    double heap = getHeapUsage();
+
+    ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    int threads = mx.getThreadCount();
+
+    int queued = 0;
+    long latency = 0L;
+    if (commandProcessor instanceof GenericCommandProcessor) {
+      queued += ((GenericCommandProcessor) commandProcessor).getQueuedCommands();
+      GenericCommandProcessor gcp = (GenericCommandProcessor) commandProcessor;
+      long executed = gcp.getExecutedCommands();
+      long total = gcp.getTotalLatency();
+      if (executed > lastExecuted) latency = (total-lastLatency)/(executed-lastExecuted)/1000L;
+      lastExecuted = executed;
+      lastLatency = total;
+    }
+    if (asyncFileSystem instanceof ExecutorAsyncFileSystem)
+      queued += ((ExecutorAsyncFileSystem) asyncFileSystem).getQueuedCalls();
+
+    double p = 0d;
+    if (maxHeapUsage > 0d) p = Math.max(p, heap/maxHeapUsage);
+    if (maxThreads > 0) p = Math.max(p, (double) threads/maxThreads);
+    if (maxQueueDepth > 0) p = Math.max(p, (double) queued/maxQueueDepth);
+    if (maxLatency > 0L) p = Math.max(p, (double) latency/maxLatency);
+    pressure = p;
+
+    String signals = "heap "+Math.round(heap*100d)+"%, threads "+threads+", queued "+queued+", latency "+latency+" ms";
+    LoadLevel[] levels = LoadLevel.values();
+    if (p >= 1d) {
+      calmSamples = 0;
+      if (level.ordinal() < levels.length-1) setLevel(levels[level.ordinal()+1], signals);
+    } else if (p < recoveryRatio && level != LoadLevel.NORMAL) {
+      if (++calmSamples >= recoverySamples) {
+        calmSamples = 0;
+        setLevel(levels[level.ordinal()-1], signals);
+      }
+    } else {
+      calmSamples = 0;
+    }
+  }
+
+
+  /** Get part of the max heap used after the last garbage collection
+   * @return Ratio (current usage if the JVM does not report usage after collections)
+   */
+  protected double getHeapUsage() {
+    long used = 0L;
+    boolean collected = false;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      MemoryUsage usage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+      if (usage == null) continue;
+      used += usage.getUsed();
+      collected = true;
+    }
+
+    Runtime runtime = Runtime.getRuntime();
+    if (!collected) used = runtime.totalMemory()-runtime.freeMemory();
+    return (double) used/runtime.maxMemory();
+  }
+
+
+  /** Change the level
+   * @param level New level
+   * @param reason Reason to log
+   */
+  protected void setLevel(LoadLevel level, String reason) {
+    LoadLevel old = this.level;
+    if (old == level) return;
+    this.level = level;
+    if (level.compareTo(old) > 0) log.warn("Load level raised from "+old+" to "+level+" ("+reason+")");
+    else log.info("Load level lowered from "+old+" to "+level+" ("+reason+")");
+  }
+}
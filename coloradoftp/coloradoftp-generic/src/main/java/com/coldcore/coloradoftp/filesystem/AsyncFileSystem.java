@@ -0,0 +1,60 @@
+package com.coldcore.coloradoftp.filesystem;
+
+import com.coldcore.coloradoftp.session.Session;
+
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous companion of a virtual filesystem.
+ *
+ * Methods of this class do not block: they start a filesystem call and return straight away.
+ * The result is delivered to a callback (if provided) and is also available from the returned
+ * future. Errors are delivered the same way as the blocking filesystem throws them, so the
+ * callback usually receives a FailedActionException which command processor turns into a reply.
+ *
+ * Only methods which may touch the storage are offered here, the rest (getCurrentDirectory,
+ * toAbsolute, getParent, getFileSeparator) are cheap and should be called on the filesystem itself.
+ * See FileSystem for the description of every method.
+ *
+ *
+ * ColoradoFTP - The Open Source FTP Server (http://cftp.coldcore.com)
+ */
+public interface AsyncFileSystem {
+
+  /** Get the filesystem this class makes calls to
+   * @return Filesystem
+   */
+  public FileSystem getFileSystem();
+
+
+  public Future<Set<ListingFile>> listDirectory(String dir, Session userSession, FileSystemCallback<Set<ListingFile>> callback);
+
+
+  /** @see com.coldcore.coloradoftp.filesystem.StreamingFileSystem#iterateDirectory(String, com.coldcore.coloradoftp.session.Session) */
+  public Future<Iterator<ListingFile>> iterateDirectory(String dir, Session userSession, FileSystemCallback<Iterator<ListingFile>> callback);
+
+
+  public Future<ListingFile> getPath(String path, Session userSession, FileSystemCallback<ListingFile> callback);
+
+
+  public Future<String> changeDirectory(String dir, Session userSession, FileSystemCallback<String> callback);
+
+
+  public Future<Object> deletePath(String path, Session userSession, FileSystemCallback<Object> callback);
+
+
+  public Future<String> createDirectory(String dir, Session userSession, FileSystemCallback<String> callback);
+
+
+  public Future<String> renamePath(String from, String to, Session userSession, FileSystemCallback<String> callback);
+
+
+  public Future<ReadableByteChannel> readFile(String filename, long position, Session userSession, FileSystemCallback<ReadableByteChannel> callback);
+
+
+  public Future<WritableByteChannel> saveFile(String filename, boolean append, Session userSession, FileSystemCallback<WritableByteChannel> callback);
+}
@@ -12,5 +12,6 @@ public enum FailedActionReason {
   SYSTEM_ERROR,    //System error
   NOT_IMPLEMENTED, //Operation is not implemented
   INVALID_INPUT,   //Supplied user's input if of invalid syntax
+  NO_SPACE,        //Not enough storage space
   OTHER            //Other reason
 }
@@ -0,0 +1,25 @@
+package com.coldcore.coloradoftp.filesystem;
+
+/**
+ * Receives the result of an asynchronous filesystem call.
+ *
+ * Methods of this class are called by a thread of the asynchronous filesystem
+ * (or by the calling thread if the filesystem decided to run the call in place)
+ * and must not block for long.
+ *
+ *
+ * ColoradoFTP - The Open Source FTP Server (http://cftp.coldcore.com)
+ */
+public interface FileSystemCallback<T> {
+
+  /** Called when the filesystem call completes
+   * @param result Result of the call (NULL for methods returning nothing)
+   */
+  public void onSuccess(T result);
+
+
+  /** Called when the filesystem call fails
+   * @param e Exception thrown by the call (usually FailedActionException)
+   */
+  public void onFailure(Throwable e);
+}
@@ -0,0 +1,29 @@
+package com.coldcore.coloradoftp.filesystem;
+
+import com.coldcore.coloradoftp.session.Session;
+
+import java.util.Iterator;
+
+/**
+ * Virtual filesystem able to list directories without loading the whole content into memory.
+ *
+ * Implementations must perform all checks (path, permissions) when the method is called, so
+ * the command can reply with an error straight away. Directory entries are produced by the
+ * returned iterator while it is read, usually by a data connection sending the listing to
+ * the user. The iterator may implement java.io.Closeable to release resources when listing
+ * is finished or aborted.
+ *
+ * Filesystems not implementing this interface can be adapted with StreamingFileSystemAdapter.
+ *
+ *
+ * ColoradoFTP - The Open Source FTP Server (http://cftp.coldcore.com)
+ */
+public interface StreamingFileSystem extends FileSystem {
+
+  /** List directory content.
+   * @param dir Directory to list (user input - absolute or relative)
+   * @param userSession User session
+   * @return Iterator over files and directories inside the directory (entries with absolute paths)
+   */
+  public Iterator<ListingFile> iterateDirectory(String dir, Session userSession) throws FailedActionException;
+}
@@ -0,0 +1,22 @@
+package com.coldcore.coloradoftp.filesystem;
+
+import java.io.IOException;
+import java.nio.channels.Channel;
+
+/**
+ * Channel which can sync the data written into it to the storage device.
+ *
+ * Channels wrapping a file channel (or another channel) should implement this interface and
+ * pass the call down, so write-behind buffering can honour the configured fsync policy.
+ *
+ *
+ * ColoradoFTP - The Open Source FTP Server (http://cftp.coldcore.com)
+ */
+public interface SyncableChannel extends Channel {
+
+  /** Sync the data written so far to the storage device
+   * @param metaData TRUE to also sync file metadata
+   * @return TRUE if synced, FALSE if the underlying channel cannot be synced
+   */
+  public boolean sync(boolean metaData) throws IOException;
+}
@@ -0,0 +1,28 @@
+package com.coldcore.coloradoftp.filesystem;
+
+import java.io.IOException;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+
+/**
+ * Helper to sync channels which may be syncable.
+ *
+ *
+ * ColoradoFTP - The Open Source FTP Server (http://cftp.coldcore.com)
+ */
+public class SyncableChannels {
+
+  /** Sync a file channel or a syncable channel to the storage device
+   * @param channel Channel
+   * @param metaData TRUE to also sync file metadata
+   * @return TRUE if synced, FALSE if the channel cannot be synced
+   */
+  public static boolean sync(Channel channel, boolean metaData) throws IOException {
+    if (channel instanceof FileChannel) {
+      ((FileChannel) channel).force(metaData);
+      return true;
+    }
+    if (channel instanceof SyncableChannel) return ((SyncableChannel) channel).sync(metaData);
+    return false;
+  }
+}
@@ -0,0 +1,273 @@
+package com.coldcore.coloradoftp.filesystem.impl;
+
+import com.coldcore.coloradoftp.filesystem.AsyncFileSystem;
+import com.coldcore.coloradoftp.filesystem.FileSystem;
+import com.coldcore.coloradoftp.filesystem.FileSystemCallback;
+import com.coldcore.coloradoftp.filesystem.ListingFile;
+import com.coldcore.coloradoftp.filesystem.StreamingFileSystem;
+import com.coldcore.coloradoftp.session.Session;
+import org.apache.log4j.Logger;
+
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @see com.coldcore.coloradoftp.filesystem.AsyncFileSystem
+ *
+ * Runs calls of an existing (blocking) filesystem on a bounded pool of I/O threads.
+ * When all threads are busy and the queue is full a call runs in the calling thread,
+ * this slows down the callers instead of piling up work or dropping calls.
+ *
+ * The pool is created on the first call, so threads and queue size must be set before that.
+ */
+public class ExecutorAsyncFileSystem implements AsyncFileSystem {
+
+  private static Logger log = Logger.getLogger(ExecutorAsyncFileSystem.class);
+  protected StreamingFileSystem fileSystem;
+  protected ThreadPoolExecutor executor;
+  protected int threads;
+  protected int queueSize;
+
+
+  public ExecutorAsyncFileSystem(FileSystem fileSystem) {
+    if (fileSystem == null) throw new IllegalArgumentException("Invalid file system");
+    this.fileSystem = StreamingFileSystemAdapter.adapt(fileSystem);
+
+    threads = 8;
+    queueSize = 1000;
+  }
+
+
+  public FileSystem getFileSystem() {
+    return fileSystem;
+  }
+
+
+  /** Get max amount of I/O threads
+   * @return Threads
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+
+  /** Set max amount of I/O threads
+   * @param threads Threads
+   */
+  public void setThreads(int threads) {
+    if (threads < 1) throw new IllegalArgumentException("Invalid argument");
+    this.threads = threads;
+  }
+
+
+  /** Get max amount of calls waiting for a free I/O thread
+   * @return Queue size
+   */
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+
+  /** Set max amount of calls waiting for a free I/O thread
+   * @param queueSize Queue size
+   */
+  public void setQueueSize(int queueSize) {
+    if (queueSize < 1) throw new IllegalArgumentException("Invalid argument");
+    this.queueSize = queueSize;
+  }
+
+
+  /** Get amount of calls currently waiting for a free I/O thread
+   * @return Queued calls
+   */
+  public int getQueuedCalls() {
+    ThreadPoolExecutor executor = this.executor;
+    return executor == null ? 0 : executor.getQueue().size();
+  }
+
+
+  /** Get amount of I/O threads currently making calls
+   * @return Active threads
+   */
+  public int getActiveThreads() {
+    ThreadPoolExecutor executor = this.executor;
+    return executor == null ? 0 : executor.getActiveCount();
+  }
+
+
+  /** Get the executor (create if it does not exist yet)
+   * @return Executor
+   */
+  protected synchronized ThreadPoolExecutor getExecutor() {
+    if (executor != null) return executor;
+
+    ThreadFactory threadFactory = new ThreadFactory() {
+      private AtomicInteger counter = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "filesystem-io-"+counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+
+    //Run in the calling thread when overloaded (or shut down) so no call is ever lost
+    RejectedExecutionHandler rejectedHandler = new RejectedExecutionHandler() {
+      public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+        log.debug("No free I/O thread, running filesystem call in place");
+        r.run();
+      }
+    };
+
+    executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), threadFactory, rejectedHandler);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+
+  /** Stop the I/O threads, calls made after this run in the calling thread */
+  public synchronized void destroy() {
+    if (executor != null) executor.shutdown();
+  }
+
+
+  /** Submit a filesystem call
+   * @param call Call to make
+   * @param callback Callback to notify (may be NULL)
+   * @return Future result of the call
+   */
+  protected <T> Future<T> submit(Callable<T> call, final FileSystemCallback<T> callback) {
+    FutureTask<T> future = new FutureTask<T>(call) {
+      protected void done() {
+        if (callback == null || isCancelled()) return;
+
+        T result;
+        try {
+          result = get();
+        } catch (ExecutionException e) {
+          notifyFailure(callback, e.getCause());
+          return;
+        } catch (Throwable e) {
+          notifyFailure(callback, e);
+          return;
+        }
+
+        try {
+          callback.onSuccess(result);
+        } catch (Throwable e) {
+          log.error("Filesystem callback failed (ignoring)", e);
+        }
+      }
+    };
+    getExecutor().execute(future);
+    return future;
+  }
+
+
+  /** Notify a callback about a failed call
+   * @param callback Callback
+   * @param e Exception
+   */
+  protected void notifyFailure(FileSystemCallback<?> callback, Throwable e) {
+    try {
+      callback.onFailure(e);
+    } catch (Throwable ex) {
+      log.error("Filesystem callback failed (ignoring)", ex);
+    }
+  }
+
+
+  public Future<Set<ListingFile>> listDirectory(final String dir, final Session userSession, FileSystemCallback<Set<ListingFile>> callback) {
+    return submit(new Callable<Set<ListingFile>>() {
+      public Set<ListingFile> call() throws Exception {
+        return fileSystem.listDirectory(dir, userSession);
+      }
+    }, callback);
+  }
+
+
+  public Future<Iterator<ListingFile>> iterateDirectory(final String dir, final Session userSession, FileSystemCallback<Iterator<ListingFile>> callback) {
+    return submit(new Callable<Iterator<ListingFile>>() {
+      public Iterator<ListingFile> call() throws Exception {
+        return fileSystem.iterateDirectory(dir, userSession);
+      }
+    }, callback);
+  }
+
+
+  public Future<ListingFile> getPath(final String path, final Session userSession, FileSystemCallback<ListingFile> callback) {
+    return submit(new Callable<ListingFile>() {
+      public ListingFile call() throws Exception {
+        return fileSystem.getPath(path, userSession);
+      }
+    }, callback);
+  }
+
+
+  public Future<String> changeDirectory(final String dir, final Session userSession, FileSystemCallback<String> callback) {
+    return submit(new Callable<String>() {
+      public String call() throws Exception {
+        return fileSystem.changeDirectory(dir, userSession);
+      }
+    }, callback);
+  }
+
+
+  public Future<Object> deletePath(final String path, final Session userSession, FileSystemCallback<Object> callback) {
+    return submit(new Callable<Object>() {
+      public Object call() throws Exception {
+        fileSystem.deletePath(path, userSession);
+        return null;
+      }
+    }, callback);
+  }
+
+
+  public Future<String> createDirectory(final String dir, final Session userSession, FileSystemCallback<String> callback) {
+    return submit(new Callable<String>() {
+      public String call() throws Exception {
+        return fileSystem.createDirectory(dir, userSession);
+      }
+    }, callback);
+  }
+
+
+  public Future<String> renamePath(final String from, final String to, final Session userSession, FileSystemCallback<String> callback) {
+    return submit(new Callable<String>() {
+      public String call() throws Exception {
+        return fileSystem.renamePath(from, to, userSession);
+      }
+    }, callback);
+  }
+
+
+  public Future<ReadableByteChannel> readFile(final String filename, final long position, final Session userSession, FileSystemCallback<ReadableByteChannel> callback) {
+    return submit(new Callable<ReadableByteChannel>() {
+      public ReadableByteChannel call() throws Exception {
+        return fileSystem.readFile(filename, position, userSession);
+      }
+    }, callback);
+  }
+
+
+  public Future<WritableByteChannel> saveFile(final String filename, final boolean append, final Session userSession, FileSystemCallback<WritableByteChannel> callback) {
+    return submit(new Callable<WritableByteChannel>() {
+      public WritableByteChannel call() throws Exception {
+        return fileSystem.saveFile(filename, append, userSession);
+      }
+    }, callback);
+  }
+}
@@ -0,0 +1,44 @@
+package com.coldcore.coloradoftp.filesystem.impl;
+
+import com.coldcore.coloradoftp.filesystem.ListingFile;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Base class for lazy directory listings.
+ * Subclasses produce entries one by one and may skip entries (not existing, not allowed etc.)
+ */
+abstract public class ListingIterator implements Iterator<ListingFile> {
+
+  private ListingFile next;
+  private boolean finished;
+
+
+  /** Produce the next entry
+   * @return Next entry or NULL if there are no more entries
+   */
+  abstract protected ListingFile fetchNext();
+
+
+  public boolean hasNext() {
+    if (next == null && !finished) {
+      next = fetchNext();
+      if (next == null) finished = true;
+    }
+    return next != null;
+  }
+
+
+  public ListingFile next() {
+    if (!hasNext()) throw new NoSuchElementException();
+    ListingFile lf = next;
+    next = null;
+    return lf;
+  }
+
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,38 @@
+package com.coldcore.coloradoftp.filesystem.impl;
+
+import com.coldcore.coloradoftp.filesystem.FailedActionException;
+import com.coldcore.coloradoftp.filesystem.FileSystem;
+import com.coldcore.coloradoftp.filesystem.ListingFile;
+import com.coldcore.coloradoftp.filesystem.StreamingFileSystem;
+import com.coldcore.coloradoftp.session.Session;
+
+import java.util.Iterator;
+
+/**
+ * Adapts any file system to the streaming interface.
+ * If a wrapped file system is streaming then its own implementation is used, otherwise
+ * the directory is listed in full and then iterated.
+ */
+public class StreamingFileSystemAdapter extends FileSystemWrapper implements StreamingFileSystem {
+
+  public StreamingFileSystemAdapter(FileSystem fileSystem) {
+    super(fileSystem);
+  }
+
+
+  public Iterator<ListingFile> iterateDirectory(String dir, Session userSession) throws FailedActionException {
+    if (fileSystem instanceof StreamingFileSystem)
+      return ((StreamingFileSystem) fileSystem).iterateDirectory(dir, userSession);
+    return fileSystem.listDirectory(dir, userSession).iterator();
+  }
+
+
+  /** Get a streaming interface of a file system
+   * @param fileSystem File system
+   * @return The same file system if it is streaming or an adapter otherwise
+   */
+  public static StreamingFileSystem adapt(FileSystem fileSystem) {
+    if (fileSystem instanceof StreamingFileSystem) return (StreamingFileSystem) fileSystem;
+    return new StreamingFileSystemAdapter(fileSystem);
+  }
+}
@@ -6,6 +6,8 @@
  */
 package com.coldcore.coloradoftp.filter.impl;
 
+import com.coldcore.coloradoftp.filesystem.SyncableChannel;
+import com.coldcore.coloradoftp.filesystem.SyncableChannels;
 import com.coldcore.coloradoftp.filter.DataFilter;
 
 import java.io.IOException;
@@ -13,7 +15,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 
-public class GenericDataFilter implements DataFilter {
+public class GenericDataFilter implements DataFilter, SyncableChannel {
 
   protected WritableByteChannel wbc;
   protected ReadableByteChannel rbc;
@@ -55,6 +57,11 @@ public class GenericDataFilter implements DataFilter {
   }
 
 
+  public boolean sync(boolean metaData) throws IOException {
+    return SyncableChannels.sync(wbc, metaData);
+  }
+
+
   public int read(ByteBuffer dst) throws IOException {
     //Do nothing, pass as it is
     return rbc.read(dst);
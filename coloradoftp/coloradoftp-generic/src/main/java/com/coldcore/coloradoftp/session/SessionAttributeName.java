@@ -22,4 +22,8 @@ public class SessionAttributeName {
   public static final String BYTE_MARKER_150_REPLY = "byte.marker.150.reply";
   public static final String BYTE_MARKER_POISONED = "byte.marker.poisoned";
   public static final String CURRENT_DIRECTORY = "current.directory";
+  public static final String COMMAND_PENDING = "command.pending";
+  public static final String COMMAND_PENDING_OBSERVER = "command.pending.observer";
+  public static final String ALLOCATED_SIZE = "allocated.size";
+  public static final String USER_ROLES = "user.roles"; //Set of role names
 }
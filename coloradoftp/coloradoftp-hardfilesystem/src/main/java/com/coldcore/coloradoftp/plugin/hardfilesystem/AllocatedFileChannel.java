@@ -0,0 +1,59 @@
+package com.coldcore.coloradoftp.plugin.hardfilesystem;
+
+import com.coldcore.coloradoftp.filesystem.SyncableChannel;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel writing into a file which was extended in advance.
+ *
+ * When the channel is closed the file is cut at the last written byte, so the reserved
+ * space which was not used does not remain in the file (also if the upload is aborted).
+ */
+public class AllocatedFileChannel implements WritableByteChannel, SyncableChannel {
+
+  private static Logger log = Logger.getLogger(AllocatedFileChannel.class);
+  protected FileChannel fc;
+
+
+  /** Constructor
+   * @param fc File channel positioned where the writing starts
+   */
+  public AllocatedFileChannel(FileChannel fc) {
+    this.fc = fc;
+  }
+
+
+  public int write(ByteBuffer src) throws IOException {
+    return fc.write(src);
+  }
+
+
+  public boolean sync(boolean metaData) throws IOException {
+    fc.force(metaData);
+    return true;
+  }
+
+
+  public boolean isOpen() {
+    return fc.isOpen();
+  }
+
+
+  public void close() throws IOException {
+    if (!fc.isOpen()) return;
+    try {
+      long position = fc.position();
+      if (fc.size() > position) {
+        fc.truncate(position);
+        log.debug("Allocated file trimmed to "+position+" bytes");
+      }
+    } finally {
+      fc.close();
+    }
+  }
+}
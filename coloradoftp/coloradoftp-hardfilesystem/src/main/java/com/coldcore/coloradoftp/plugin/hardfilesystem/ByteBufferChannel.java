@@ -0,0 +1,54 @@
+package com.coldcore.coloradoftp.plugin.hardfilesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Channel reading from a shared buffer.
+ *
+ * Every channel works on its own view of the buffer, so many channels may read the same
+ * buffer at the same time without copying it.
+ */
+public class ByteBufferChannel implements ReadableByteChannel {
+
+  protected ByteBuffer buffer;
+  protected boolean open;
+
+
+  /** Constructor
+   * @param buffer Buffer with the content (the buffer itself is not modified)
+   * @param position Position to start reading from
+   */
+  public ByteBufferChannel(ByteBuffer buffer, long position) {
+    this.buffer = buffer.duplicate();
+    this.buffer.clear();
+    this.buffer.limit(buffer.capacity());
+    this.buffer.position((int) Math.min(Math.max(position, 0L), (long) buffer.capacity()));
+    open = true;
+  }
+
+
+  public synchronized int read(ByteBuffer dst) throws IOException {
+    if (!open) throw new ClosedChannelException();
+    if (!buffer.hasRemaining()) return -1;
+
+    int len = Math.min(dst.remaining(), buffer.remaining());
+    ByteBuffer src = buffer.slice();
+    src.limit(len);
+    dst.put(src);
+    buffer.position(buffer.position()+len);
+    return len;
+  }
+
+
+  public boolean isOpen() {
+    return open;
+  }
+
+
+  public synchronized void close() throws IOException {
+    open = false;
+  }
+}
@@ -0,0 +1,106 @@
+package com.coldcore.coloradoftp.plugin.hardfilesystem;
+
+import java.io.File;
+
+/**
+ * Attributes of a file read from the disk at once.
+ *
+ * Instances are immutable and may be shared between threads and cached.
+ */
+public class FileAttributes {
+
+  private String name;
+  private String path;
+  private boolean exists;
+  private boolean directory;
+  private boolean file;
+  private long length;
+  private long lastModified;
+  private long readTime;
+
+
+  protected FileAttributes(String name, String path, boolean exists, boolean directory, boolean file,
+                           long length, long lastModified) {
+    this.name = name;
+    this.path = path;
+    this.exists = exists;
+    this.directory = directory;
+    this.file = file;
+    this.length = length;
+    this.lastModified = lastModified;
+    readTime = System.currentTimeMillis();
+  }
+
+
+  /** Read attributes of a file
+   * @param file File
+   * @return Attributes (never NULL, test if the file exists)
+   */
+  public static FileAttributes read(File file) {
+    /* Every java.io.File query is a separate stat call, so only ask what cannot be derived
+     * from the previous answers. Files dominate listings and are tested first: a file takes
+     * 3 calls and a directory takes 3 as well.
+     */
+    String name = file.getName();
+    String path = file.getAbsolutePath();
+
+    if (file.isFile())
+      return new FileAttributes(name, path, true, false, true, file.length(), file.lastModified());
+
+    if (file.isDirectory())
+      return new FileAttributes(name, path, true, true, false, 0L, file.lastModified());
+
+    //Not existing or a special file
+    if (!file.exists()) return new FileAttributes(name, path, false, false, false, 0L, 0L);
+    return new FileAttributes(name, path, true, false, false, 0L, file.lastModified());
+  }
+
+
+  /** Get file name
+   * @return Name
+   */
+  public String getName() {
+    return name;
+  }
+
+
+  /** Get absolute real path
+   * @return Path
+   */
+  public String getPath() {
+    return path;
+  }
+
+
+  public boolean exists() {
+    return exists;
+  }
+
+
+  public boolean isDirectory() {
+    return directory;
+  }
+
+
+  public boolean isFile() {
+    return file;
+  }
+
+
+  public long getLength() {
+    return length;
+  }
+
+
+  public long getLastModified() {
+    return lastModified;
+  }
+
+
+  /** Time when these attributes were read from the disk
+   * @return Time in milliseconds
+   */
+  public long getReadTime() {
+    return readTime;
+  }
+}
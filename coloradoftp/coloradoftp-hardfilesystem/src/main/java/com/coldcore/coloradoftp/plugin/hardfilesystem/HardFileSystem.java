@@ -2,9 +2,10 @@ package com.coldcore.coloradoftp.plugin.hardfilesystem;
 
 import com.coldcore.coloradoftp.filesystem.FailedActionException;
 import com.coldcore.coloradoftp.filesystem.FailedActionReason;
-import com.coldcore.coloradoftp.filesystem.FileSystem;
 import com.coldcore.coloradoftp.filesystem.ListingFile;
+import com.coldcore.coloradoftp.filesystem.StreamingFileSystem;
 import com.coldcore.coloradoftp.filesystem.impl.ListingFileBean;
+import com.coldcore.coloradoftp.filesystem.impl.ListingIterator;
 import com.coldcore.coloradoftp.plugin.xmlfs.User;
 import com.coldcore.coloradoftp.plugin.xmlfs.VirtualFolder;
 import com.coldcore.coloradoftp.plugin.xmlfs.XmlFS;
@@ -22,10 +23,12 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
 
 /**
  * @see com.coldcore.coloradoftp.filesystem.FileSystem
+ * @see com.coldcore.coloradoftp.filesystem.StreamingFileSystem
  *
  * This implementation is mounted to HDD and uses the default settings of the XmlFS.
  *
@@ -38,7 +41,7 @@ import java.util.Set;
  * but virtual folders can be mounted to user's home allowing user to travel anywhere withing the actual
  * filesystem.
  */
-public class HardFileSystem implements FileSystem {
+public class HardFileSystem implements StreamingFileSystem {
 
   private static Logger log = Logger.getLogger(HardFileSystem.class);
   protected XmlFS xmlFS;
@@ -46,11 +49,15 @@ public class HardFileSystem implements FileSystem {
   protected String filesPermissions;
   protected String mlsxFileFacts;
   protected String mlsxDirFacts;
+  protected MetadataCache metadataCache;
+  protected HotFileCache hotFileCache;
 
 
   public HardFileSystem(String filename) throws FileNotFoundException, ParsingException {
     xmlFS = new XmlFS();
     xmlFS.initialize(filename);
+    metadataCache = new MetadataCache();
+    hotFileCache = new HotFileCache();
 
     filesOwner = "ftp";
     filesPermissions = "rwxrwxrwx";
@@ -93,6 +100,73 @@ public class HardFileSystem implements FileSystem {
   }
 
 
+  /** Max amount of entries in the metadata cache
+   * @param size Size, 0 to disable the cache
+   */
+  public void setMetadataCacheSize(int size) {
+    metadataCache.setMaxEntries(size);
+  }
+
+
+  /** Time in milliseconds after which the metadata cache reads an entry from the disk again
+   * @param timeout Timeout
+   */
+  public void setMetadataCacheTimeout(long timeout) {
+    metadataCache.setTimeout(timeout);
+  }
+
+
+  /** Get the metadata cache (for statistics)
+   * @return Metadata cache
+   */
+  public MetadataCache getMetadataCache() {
+    return metadataCache;
+  }
+
+
+  /** Max total size of popular files kept in memory (the cache is disabled by default)
+   * @param size Size in bytes, 0 to disable the cache
+   */
+  public void setHotFileCacheSize(long size) {
+    hotFileCache.setMaxTotalSize(size);
+  }
+
+
+  /** Max size of a file which may be kept in memory
+   * @param size Size in bytes
+   */
+  public void setHotFileMaxSize(long size) {
+    hotFileCache.setMaxFileSize(size);
+  }
+
+
+  /** Amount of downloads within the promotion window after which a file is kept in memory
+   * @param reads Reads
+   */
+  public void setHotFilePromoteAfter(int reads) {
+    hotFileCache.setPromoteAfter(reads);
+  }
+
+
+  /** Get the hot file cache (for statistics)
+   * @return Hot file cache
+   */
+  public HotFileCache getHotFileCache() {
+    return hotFileCache;
+  }
+
+
+  /** Reload the XmlFS configuration file when it changes, sessions pick up the changes
+   * without the server restart
+   * @param interval Time in milliseconds between file checks, 0 to stop watching
+   */
+  public void setConfigurationReloadInterval(long interval) {
+    if (interval < 0L) throw new IllegalArgumentException("Invalid interval");
+    if (interval == 0L) xmlFS.stopWatching();
+    else xmlFS.startWatching(interval);
+  }
+
+
   public String getCurrentDirectory(Session userSession) {
     return xmlFS.getVirtualPathResolver().getCurrentVirtualDirectory(userSession);
   }
@@ -113,11 +187,19 @@ public class HardFileSystem implements FileSystem {
 
 
   public Set<ListingFile> listDirectory(String dir, Session userSession) {
-    User user = xmlFS.findUser(userSession);
+    Set<ListingFile> set = new HashSet<ListingFile>();
+    for (Iterator<ListingFile> it = iterateDirectory(dir, userSession); it.hasNext();)
+      set.add(it.next());
+    return set;
+  }
+
+
+  public Iterator<ListingFile> iterateDirectory(String dir, Session userSession) {
+    final User user = xmlFS.findUser(userSession);
     if (user == null)
       throw new FailedActionException(FailedActionReason.OTHER, "No file system entry.");
 
-    String apath = xmlFS.getVirtualPathResolver().virtualPathToAbsolute(dir, userSession);
+    final String apath = xmlFS.getVirtualPathResolver().virtualPathToAbsolute(dir, userSession);
     String rpath = xmlFS.getRealPathResolver().virtualPathToReal(apath, user.getHome());
     if (rpath == null)
       throw new FailedActionException(FailedActionReason.PATH_ERROR, "Path not found.");
@@ -126,38 +208,41 @@ public class HardFileSystem implements FileSystem {
     if (!xmlFS.getPermissionsManager().canAccessDirectory(rpath, user.getHome()))
       throw new FailedActionException(FailedActionReason.NO_PERMISSIONS, "Access denied.");
 
-    File file = new File(rpath);
-    if (!file.isDirectory())
+    final Iterator<FileAttributes> list = metadataCache.iterateListing(rpath);
+    if (list == null)
       throw new FailedActionException(FailedActionReason.PATH_ERROR, "Path is a file.");
 
-    Set<ListingFile> set = new HashSet<ListingFile>();
-    File[] list = file.listFiles();
-    for (File f : list) {
-      //Test if listing is allowed
-      if (f.isDirectory() && !xmlFS.getPermissionsManager().canListDirectory(f.getAbsolutePath(), user.getHome())) continue;
-      if (f.isFile() && !xmlFS.getPermissionsManager().canListFile(f.getAbsolutePath(), user.getHome())) continue;
-      String fapath = xmlFS.getVirtualPathResolver().virtualPathToAbsolute(apath+"/"+f.getName(), userSession);
-      String frpath = f.getAbsolutePath();
-      ListingFile lf = createListingFile(fapath, frpath);
-      if (lf != null) set.add(lf);
-    }
+    //Virtual folders are listed after the directory content
+    final Iterator<VirtualFolder> vfolders = apath.equals("/") ?
+            user.getHome().getVirtualFolders().iterator() : null;
+
+    log.debug("Directory listed: "+rpath);
 
-    //Add virtual folders
-    if (apath.equals("/")) {
-      Set<VirtualFolder> vfolders = user.getHome().getVirtualFolders();
-      for (VirtualFolder vf : vfolders) {
-        ListingFile lf = createListingFile(apath, vf.getPath());
-        if (lf != null) {
-          lf.setName(vf.getName());
-          lf.setAbsolutePath("/"+vf.getName());
-          set.add(lf);
+    return new ListingIterator() {
+      protected ListingFile fetchNext() {
+        while (list.hasNext()) {
+          FileAttributes fa = list.next();
+          //Test if listing is allowed
+          if (fa.isDirectory() && !xmlFS.getPermissionsManager().canListDirectory(fa.getPath(), user.getHome())) continue;
+          if (fa.isFile() && !xmlFS.getPermissionsManager().canListFile(fa.getPath(), user.getHome())) continue;
+          String fapath = childPath(apath, fa.getName());
+          ListingFile lf = createListingFile(fapath, fa);
+          if (lf != null) return lf;
         }
-      }
-    }
 
-    log.debug("Directory listed: "+rpath);
+        while (vfolders != null && vfolders.hasNext()) {
+          VirtualFolder vf = vfolders.next();
+          ListingFile lf = createListingFile(apath, vf.getPath());
+          if (lf != null) {
+            lf.setName(vf.getName());
+            lf.setAbsolutePath("/"+vf.getName());
+            return lf;
+          }
+        }
 
-    return set;
+        return null;
+      }
+    };
   }
 
 
@@ -175,24 +260,44 @@ public class HardFileSystem implements FileSystem {
   }
 
 
+  /** Get absolute virtual path of a directory child (the directory path is already absolute,
+   * so there is nothing for the virtual path resolver to do)
+   * @param apath Absolute virtual path of a directory
+   * @param name Child name
+   * @return Absolute virtual path
+   */
+  protected String childPath(String apath, String name) {
+    return apath.equals("/") ? "/"+name : apath+"/"+name;
+  }
+
+
   /** Create listing file object
    * @param apath Absolute virtual path
    * @param rpath Absolute real path
    * @return Listing file or NULL if does not exist or cannot be converted
    */
   protected ListingFile createListingFile(String apath, String rpath) {
-    File file = new File(rpath);
-    if (!file.exists()) return null;
+    return createListingFile(apath, metadataCache.getAttributes(rpath));
+  }
+
+
+  /** Create listing file object
+   * @param apath Absolute virtual path
+   * @param fa Real file attributes
+   * @return Listing file or NULL if does not exist or cannot be converted
+   */
+  protected ListingFile createListingFile(String apath, FileAttributes fa) {
+    if (!fa.exists()) return null;
 
     ListingFile lf = new ListingFileBean();
-    lf.setName(apath.equals("/")?"/":file.getName());
+    lf.setName(apath.equals("/")?"/":fa.getName());
     lf.setAbsolutePath(apath);
     lf.setOwner(filesOwner);
-    lf.setDirectory(file.isDirectory());
+    lf.setDirectory(fa.isDirectory());
     lf.setPermissions(filesPermissions);
-    if (file.isFile()) lf.setSize(file.length());
-    lf.setLastModified(new Date(file.lastModified()));
-    lf.setMlsxFacts(file.isDirectory()?mlsxDirFacts:mlsxFileFacts);
+    if (fa.isFile()) lf.setSize(fa.getLength());
+    lf.setLastModified(new Date(fa.getLastModified()));
+    lf.setMlsxFacts(fa.isDirectory()?mlsxDirFacts:mlsxFileFacts);
     
     return lf;
   }
@@ -252,6 +357,8 @@ public class HardFileSystem implements FileSystem {
     //todo file locks check
 
     new CFile(file).delete();
+    metadataCache.invalidate(rpath);
+    hotFileCache.invalidate(rpath);
     log.debug("Path deleted: "+rpath);
   }
 
@@ -286,6 +393,7 @@ public class HardFileSystem implements FileSystem {
       throw new FailedActionException(FailedActionReason.NO_PERMISSIONS, "Access denied.");
 
     file.mkdirs();
+    metadataCache.invalidate(rpath);
     log.debug("Directory created: "+rpath);
 
     return apath;
@@ -339,6 +447,10 @@ public class HardFileSystem implements FileSystem {
       throw new FailedActionException(FailedActionReason.NO_PERMISSIONS, "Access denied.");
 
     fileF.renameTo(fileT);
+    metadataCache.invalidate(rpathF);
+    metadataCache.invalidate(rpathT);
+    hotFileCache.invalidate(rpathF);
+    hotFileCache.invalidate(rpathT);
     log.debug("Path ("+rpathF+") renamed: "+rpathT);
 
     return apathT;
@@ -359,7 +471,7 @@ public class HardFileSystem implements FileSystem {
       throw new FailedActionException(FailedActionReason.PATH_ERROR, "File not found.");
 
     File file = new File(rpath);
-    if (file.exists() && file.isDirectory())
+    if (file.isDirectory())
       throw new FailedActionException(FailedActionReason.PATH_ERROR, "Path is a directory.");
 
     //Permissions
@@ -368,6 +480,14 @@ public class HardFileSystem implements FileSystem {
 
     //todo file locks
 
+    //Popular files are served from memory
+    ReadableByteChannel hot = hotFileCache.open(file, position);
+    if (hot != null) {
+      userSession.setAttribute("transferred.file", file);
+      log.debug("File channel (r) mounted to cached: "+rpath);
+      return hot;
+    }
+
     FileChannel fc;
     try {
       fc = new RandomAccessFile(file, "r").getChannel();
@@ -403,34 +523,64 @@ public class HardFileSystem implements FileSystem {
     File file = new File(rpath);
     rpath = file.getAbsolutePath();
 
-    if (file.exists() && file.isDirectory())
+    if (file.isDirectory())
       throw new FailedActionException(FailedActionReason.PATH_ERROR, "Path already exists.");
 
     //Permissions
+    boolean exists = file.exists();
     boolean allowed;
-    allowed = (file.exists() && append && xmlFS.getPermissionsManager().canAppendFile(rpath, user.getHome())) ||
-              (file.exists() && !append && xmlFS.getPermissionsManager().canOverwriteFile(rpath, user.getHome())) ||
-              (!file.exists() && xmlFS.getPermissionsManager().canCreateFile(rpath, user.getHome()));
+    allowed = (exists && append && xmlFS.getPermissionsManager().canAppendFile(rpath, user.getHome())) ||
+              (exists && !append && xmlFS.getPermissionsManager().canOverwriteFile(rpath, user.getHome())) ||
+              (!exists && xmlFS.getPermissionsManager().canCreateFile(rpath, user.getHome()));
     if (!allowed)
       throw new FailedActionException(FailedActionReason.NO_PERMISSIONS, "Access denied.");
 
     //todo file locks
 
+    //Downloads in progress keep reading the old content from memory
+    hotFileCache.invalidate(rpath);
+
+    //Size announced by the user (ALLO command)
+    Long allocate = (Long) userSession.getAttribute(SessionAttributeName.ALLOCATED_SIZE);
+    if (allocate != null) {
+      long required = allocate-(exists && !append ? file.length() : 0L);
+      long usable = file.getAbsoluteFile().getParentFile().getUsableSpace();
+      if (required > usable)
+        throw new FailedActionException(FailedActionReason.NO_SPACE, "Insufficient storage space.");
+    }
+
+    RandomAccessFile raf;
     FileChannel fc;
     try {
-      fc = new RandomAccessFile(file, "rw").getChannel();
+      raf = new RandomAccessFile(file, "rw");
+      fc = raf.getChannel();
       if (append) fc.position(fc.size()); //Append
       else fc.truncate(0); //Overwrite
     } catch (Throwable e) {
       log.error("Cannot create (rw) file channel", e);
       throw new FailedActionException(FailedActionReason.SYSTEM_ERROR);
     }
+    metadataCache.invalidate(rpath);
+
+    //Extend the file to the announced size at once, the unused part is cut when the channel is closed
+    WritableByteChannel wbc = fc;
+    if (allocate != null) {
+      try {
+        raf.setLength(fc.position()+allocate);
+        wbc = new AllocatedFileChannel(fc);
+      } catch (Throwable e) {
+        log.warn("Cannot allocate file space (ignoring): "+rpath, e);
+      }
+    }
+
+    //Size and listings change once more when the upload completes
+    if (metadataCache.getMaxEntries() > 0) wbc = new InvalidatingChannel(wbc, metadataCache, rpath);
 
     //Just in case, to be used by external components
     userSession.setAttribute("transferred.file", file);
 
     log.debug("File channel (rw) mounted to: "+rpath);
-    return fc;
+    return wbc;
   }
 
 
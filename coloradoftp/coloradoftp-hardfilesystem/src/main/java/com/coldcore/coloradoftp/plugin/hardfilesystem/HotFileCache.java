@@ -0,0 +1,406 @@
+package com.coldcore.coloradoftp.plugin.hardfilesystem;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory cache of popular files.
+ *
+ * When many users download the same few files, every download opening its own file channel
+ * makes the disk read the same data again and again. This cache counts file reads and once a
+ * file is read often enough it loads the file into an off-heap buffer, further downloads are
+ * served from that buffer through read-only views. Files are loaded into memory rather than
+ * mapped because a mapped file truncated by an overwrite crashes the threads still reading it.
+ *
+ * The cache is disabled by default (it costs a file status check on every download), set the
+ * total size budget to enable it. The cache holds files up to the budget and drops the least
+ * recently used files when a new file is added, files being loaded at a time are limited by the
+ * budget too. An entry is dropped when the server modifies the file (see invalidate method) and
+ * when the file length or modification time on the disk does not match the cached one. A file
+ * invalidated while being loaded is not cached. Memory of a dropped entry is released when the
+ * last download using it finishes.
+ *
+ * This class is thread safe.
+ */
+public class HotFileCache {
+
+  private static Logger log = Logger.getLogger(HotFileCache.class);
+  protected Map<String,Entry> entries;
+  protected Map<String,Counter> counters;
+  protected long totalSize;
+  protected long loadingSize;
+  protected long maxTotalSize;
+  protected long maxFileSize;
+  protected int promoteAfter;
+  protected long promotionWindow;
+  protected int maxTracked;
+  protected long generation;
+  protected AtomicLong hits;
+  protected AtomicLong misses;
+  protected AtomicLong promotions;
+  protected AtomicLong evictions;
+  protected AtomicLong invalidations;
+
+
+  /** Cached file content */
+  protected static class Entry {
+    ByteBuffer buffer;
+    long length;
+    long lastModified;
+  }
+
+
+  /** Reads of a file not yet cached */
+  protected static class Counter {
+    int count;
+    long since;
+  }
+
+
+  public HotFileCache() {
+    entries = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+    counters = new LinkedHashMap<String,Counter>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String,Counter> eldest) {
+        return size() > maxTracked;
+      }
+    };
+    hits = new AtomicLong();
+    misses = new AtomicLong();
+    promotions = new AtomicLong();
+    evictions = new AtomicLong();
+    invalidations = new AtomicLong();
+
+    maxTotalSize = 0L;
+    maxFileSize = 16L*1024L*1024L;
+    promoteAfter = 5;
+    promotionWindow = 60000L;
+    maxTracked = 1000;
+  }
+
+
+  /** Get max total size of cached files
+   * @return Size in bytes, 0 if the cache is disabled
+   */
+  public long getMaxTotalSize() {
+    return maxTotalSize;
+  }
+
+
+  /** Set max total size of cached files
+   * @param maxTotalSize Size in bytes, 0 to disable the cache
+   */
+  public synchronized void setMaxTotalSize(long maxTotalSize) {
+    if (maxTotalSize < 0L) throw new IllegalArgumentException("Invalid argument");
+    this.maxTotalSize = maxTotalSize;
+    evict();
+  }
+
+
+  /** Get max size of a file the cache accepts
+   * @return Size in bytes
+   */
+  public long getMaxFileSize() {
+    return maxFileSize;
+  }
+
+
+  /** Set max size of a file the cache accepts
+   * @param maxFileSize Size in bytes
+   */
+  public void setMaxFileSize(long maxFileSize) {
+    if (maxFileSize < 1L || maxFileSize > Integer.MAX_VALUE) throw new IllegalArgumentException("Invalid argument");
+    this.maxFileSize = maxFileSize;
+  }
+
+
+  /** Get amount of reads after which a file is cached
+   * @return Reads
+   */
+  public int getPromoteAfter() {
+    return promoteAfter;
+  }
+
+
+  /** Set amount of reads after which a file is cached, the reads must happen within
+   * the promotion window
+   * @param promoteAfter Reads
+   */
+  public void setPromoteAfter(int promoteAfter) {
+    if (promoteAfter < 1) throw new IllegalArgumentException("Invalid argument");
+    this.promoteAfter = promoteAfter;
+  }
+
+
+  /** Get time in which a file must be read enough times to be cached
+   * @return Time in milliseconds
+   */
+  public long getPromotionWindow() {
+    return promotionWindow;
+  }
+
+
+  /** Set time in which a file must be read enough times to be cached
+   * @param promotionWindow Time in milliseconds
+   */
+  public void setPromotionWindow(long promotionWindow) {
+    if (promotionWindow < 1L) throw new IllegalArgumentException("Invalid argument");
+    this.promotionWindow = promotionWindow;
+  }
+
+
+  /** Open a channel to read a file from the cache.
+   * If the file is not cached yet then this read is counted and the file may be cached.
+   * @param file File
+   * @param position Position to start reading from
+   * @return Channel or NULL if the file is not in the cache (must be read from the disk)
+   */
+  public ReadableByteChannel open(File file, long position) {
+    if (maxTotalSize == 0L) return null;
+
+    String key = file.getAbsolutePath();
+    long length = file.length();
+    long lastModified = file.lastModified();
+
+    Entry entry;
+    long gen;
+    synchronized (this) {
+      gen = generation;
+      entry = entries.get(key);
+      if (entry != null && (entry.length != length || entry.lastModified != lastModified)) {
+        //Modified outside of the server
+        remove(key);
+        entry = null;
+      }
+    }
+    if (entry != null) {
+      hits.incrementAndGet();
+      return new ByteBufferChannel(entry.buffer, position);
+    }
+
+    misses.incrementAndGet();
+    if (length == 0L || length > maxFileSize || length > maxTotalSize) return null;
+    if (!countRead(key)) return null;
+    if (!reserve(length)) return null;
+
+    try {
+      entry = load(file, length, lastModified);
+    } finally {
+      synchronized (this) {
+        loadingSize -= length;
+      }
+    }
+    if (entry == null) return null;
+
+    synchronized (this) {
+      if (gen != generation) return null; //Invalidated while loading
+      Entry existing = entries.get(key);
+      if (existing != null) entry = existing; //Loaded by another thread meanwhile
+      else {
+        entries.put(key, entry);
+        totalSize += entry.length;
+        promotions.incrementAndGet();
+        evict();
+        log.debug("File cached: "+key);
+      }
+    }
+    return new ByteBufferChannel(entry.buffer, position);
+  }
+
+
+  /** Count a read of a file
+   * @param key File path
+   * @return TRUE if the file is read often enough to be cached, FALSE otherwise
+   */
+  protected synchronized boolean countRead(String key) {
+    long now = System.currentTimeMillis();
+    Counter counter = counters.get(key);
+    if (counter == null || now-counter.since > promotionWindow) {
+      counter = new Counter();
+      counter.since = now;
+      counters.put(key, counter);
+    }
+    if (++counter.count < promoteAfter) return false;
+    counters.remove(key);
+    return true;
+  }
+
+
+  /** Reserve space in the budget for a file about to be loaded
+   * @param length File length
+   * @return TRUE if reserved, FALSE if other files being loaded take the budget
+   */
+  protected synchronized boolean reserve(long length) {
+    if (loadingSize+length > maxTotalSize) return false;
+    loadingSize += length;
+    return true;
+  }
+
+
+  /** Load a file into memory
+   * @param file File
+   * @param length File length
+   * @param lastModified File modification time
+   * @return Entry or NULL if the file cannot be loaded or has changed while loading
+   */
+  protected Entry load(File file, long length, long lastModified) {
+    ByteBuffer buffer;
+    try {
+      buffer = ByteBuffer.allocateDirect((int) length);
+    } catch (OutOfMemoryError e) {
+      log.warn("No memory to cache file (ignoring): "+file.getAbsolutePath());
+      return null;
+    }
+
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(file, "r");
+      FileChannel fc = raf.getChannel();
+      while (buffer.hasRemaining())
+        if (fc.read(buffer) == -1) return null; //Truncated meanwhile
+    } catch (Throwable e) {
+      log.error("Cannot cache file (ignoring): "+file.getAbsolutePath(), e);
+      return null;
+    } finally {
+      try {
+        if (raf != null) raf.close();
+      } catch (Throwable e) {}
+    }
+
+    if (file.length() != length || file.lastModified() != lastModified) return null;
+
+    buffer.flip();
+    Entry entry = new Entry();
+    entry.buffer = buffer.asReadOnlyBuffer();
+    entry.length = length;
+    entry.lastModified = lastModified;
+    return entry;
+  }
+
+
+  /** Drop the least recently used entries until the cache fits its budget */
+  protected synchronized void evict() {
+    for (Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator(); it.hasNext() && totalSize > maxTotalSize;) {
+      totalSize -= it.next().getValue().length;
+      it.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+
+  /** Remove an entry
+   * @param key File path
+   */
+  protected synchronized void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) totalSize -= entry.length;
+  }
+
+
+  /** Drop a file (or all files of a directory) from the cache.
+   * Must be called every time the server modifies the path.
+   * @param rpath Absolute real path
+   */
+  public void invalidate(String rpath) {
+    String key = new File(rpath).getAbsolutePath();
+    String prefix = key.endsWith(File.separator) ? key : key+File.separator;
+
+    synchronized (this) {
+      generation++;
+      if (entries.isEmpty() && counters.isEmpty()) return;
+      remove(key);
+      counters.remove(key);
+      for (Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+        Map.Entry<String,Entry> me = it.next();
+        if (me.getKey().startsWith(prefix)) {
+          totalSize -= me.getValue().length;
+          it.remove();
+        }
+      }
+    }
+    invalidations.incrementAndGet();
+  }
+
+
+  /** Drop all cached files */
+  public synchronized void clear() {
+    entries.clear();
+    counters.clear();
+    totalSize = 0L;
+    generation++;
+  }
+
+
+  /** Get amount of reads served from the cache
+   * @return Hits
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+
+  /** Get amount of reads which had to go to the disk
+   * @return Misses
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+
+  /** Get part of reads served from the cache
+   * @return Hit rate from 0 to 1
+   */
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h+misses.get();
+    return total == 0L ? 0d : (double) h/total;
+  }
+
+
+  /** Get amount of files loaded into the cache
+   * @return Promotions
+   */
+  public long getPromotions() {
+    return promotions.get();
+  }
+
+
+  /** Get amount of files removed because the cache was full
+   * @return Evictions
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+
+  /** Get amount of invalidations caused by the server's own modifications
+   * @return Invalidations
+   */
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+
+  /** Get total size of cached files
+   * @return Size in bytes
+   */
+  public synchronized long getTotalSize() {
+    return totalSize;
+  }
+
+
+  /** Get amount of cached files
+   * @return Size
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+}
@@ -0,0 +1,55 @@
+package com.coldcore.coloradoftp.plugin.hardfilesystem;
+
+import com.coldcore.coloradoftp.filesystem.SyncableChannel;
+import com.coldcore.coloradoftp.filesystem.SyncableChannels;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel writing into a file which drops cached metadata of the file once it is closed,
+ * so the size of an uploaded file is read from the disk again right after the upload.
+ */
+public class InvalidatingChannel implements WritableByteChannel, SyncableChannel {
+
+  protected WritableByteChannel target;
+  protected MetadataCache metadataCache;
+  protected String rpath;
+
+
+  /** Constructor
+   * @param target Channel writing into the file
+   * @param metadataCache Cache to invalidate
+   * @param rpath Absolute real path of the file
+   */
+  public InvalidatingChannel(WritableByteChannel target, MetadataCache metadataCache, String rpath) {
+    this.target = target;
+    this.metadataCache = metadataCache;
+    this.rpath = rpath;
+  }
+
+
+  public int write(ByteBuffer src) throws IOException {
+    return target.write(src);
+  }
+
+
+  public boolean sync(boolean metaData) throws IOException {
+    return SyncableChannels.sync(target, metaData);
+  }
+
+
+  public boolean isOpen() {
+    return target.isOpen();
+  }
+
+
+  public void close() throws IOException {
+    try {
+      target.close();
+    } finally {
+      metadataCache.invalidate(rpath);
+    }
+  }
+}
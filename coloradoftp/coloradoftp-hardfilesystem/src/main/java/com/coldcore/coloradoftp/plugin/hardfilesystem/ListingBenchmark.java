@@ -0,0 +1,78 @@
+package com.coldcore.coloradoftp.plugin.hardfilesystem;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures time to read attributes of directory entries.
+ *
+ * Compares FileAttributes.read with asking java.io.File for every attribute separately (the way
+ * listings were built before). Run with the amount of entries and an optional directory:
+ * java ListingBenchmark 100000 /tmp/bench
+ * Entries are created on the first run and reused, the operating system caches them after the
+ * first pass so both methods are measured on warm metadata.
+ */
+public class ListingBenchmark {
+
+  public static void main(String[] args) throws IOException {
+    int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    File dir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"), "listing-benchmark");
+    prepare(dir, entries);
+
+    for (int z = 0; z < 5; z++) {
+      long separate = separate(dir);
+      long combined = combined(dir);
+      System.out.println("Pass "+(z+1)+": "+entries+" entries, separate queries "+separate+" ms, FileAttributes.read "+combined+" ms");
+    }
+  }
+
+
+  /** Create entries (every tenth entry is a directory)
+   * @param dir Directory to create entries in
+   * @param entries Amount of entries
+   */
+  protected static void prepare(File dir, int entries) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create "+dir);
+    for (int z = 0; z < entries; z++) {
+      File file = new File(dir, "entry"+z);
+      if (z%10 == 0) file.mkdir();
+      else file.createNewFile();
+    }
+  }
+
+
+  /** Read attributes with separate queries
+   * @param dir Directory
+   * @return Time in milliseconds
+   */
+  protected static long separate(File dir) {
+    long start = System.currentTimeMillis();
+    long sum = 0L;
+    for (String name : dir.list()) {
+      File file = new File(dir, name);
+      if (file.exists()) {
+        boolean directory = file.isDirectory();
+        boolean regular = file.isFile();
+        sum += (directory ? 1L : 0L)+(regular ? file.length() : 0L)+file.lastModified();
+      }
+    }
+    if (sum == 42L) System.out.println(); //Keep the result alive
+    return System.currentTimeMillis()-start;
+  }
+
+
+  /** Read attributes with FileAttributes
+   * @param dir Directory
+   * @return Time in milliseconds
+   */
+  protected static long combined(File dir) {
+    long start = System.currentTimeMillis();
+    long sum = 0L;
+    for (String name : dir.list()) {
+      FileAttributes fa = FileAttributes.read(new File(dir, name));
+      if (fa.exists()) sum += (fa.isDirectory() ? 1L : 0L)+fa.getLength()+fa.getLastModified();
+    }
+    if (sum == 42L) System.out.println(); //Keep the result alive
+    return System.currentTimeMillis()-start;
+  }
+}
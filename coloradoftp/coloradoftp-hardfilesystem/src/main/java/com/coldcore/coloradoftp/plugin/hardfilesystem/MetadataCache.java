@@ -0,0 +1,378 @@
+package com.coldcore.coloradoftp.plugin.hardfilesystem;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of file attributes and directory listings keyed by real path.
+ *
+ * Polling clients keep listing the same directories and asking for the same files, this cache
+ * answers such requests without going back to the disk. Entries are dropped by the server's own
+ * modifications (see invalidate method), expire after a timeout to pick up external changes, and a
+ * cached listing is also dropped as soon as its directory modification time changes.
+ * The least recently used entries are evicted when the cache is full.
+ *
+ * The cache is disabled by default (see setMaxEntries method). Attributes read from the disk
+ * are not cached if an invalidation happened while they were read, so an invalidation is never
+ * overwritten by older data.
+ *
+ * This class is thread safe.
+ */
+public class MetadataCache {
+
+  private static Logger log = Logger.getLogger(MetadataCache.class);
+  protected Map<String,FileAttributes> attributes;
+  protected Map<String,Listing> listings;
+  protected int maxEntries;
+  protected int maxListingSize;
+  protected long timeout;
+  protected AtomicLong hits;
+  protected AtomicLong misses;
+  protected AtomicLong evictions;
+  protected AtomicLong invalidations;
+  protected long generation;
+
+
+  /** Cached directory content */
+  protected static class Listing {
+    long lastModified;
+    long readTime;
+    List<FileAttributes> children;
+  }
+
+
+  /** Map which removes the least recently used entry when the cache is full */
+  protected class LruMap<V> extends LinkedHashMap<String,V> {
+
+    private static final long serialVersionUID = 1L;
+
+
+    public LruMap() {
+      super(16, 0.75f, true);
+    }
+
+
+    protected boolean removeEldestEntry(Map.Entry<String,V> eldest) {
+      if (size() <= maxEntries) return false;
+      evictions.incrementAndGet();
+      return true;
+    }
+  }
+
+
+  public MetadataCache() {
+    attributes = new LruMap<FileAttributes>();
+    listings = new LruMap<Listing>();
+    hits = new AtomicLong();
+    misses = new AtomicLong();
+    evictions = new AtomicLong();
+    invalidations = new AtomicLong();
+
+    maxEntries = 0;
+    maxListingSize = 10000;
+    timeout = 5000L;
+  }
+
+
+  /** Get max amount of entries the cache can hold (per attributes and listings)
+   * @return Max entries, 0 if the cache is disabled
+   */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+
+  /** Set max amount of entries the cache can hold (per attributes and listings)
+   * @param maxEntries Max entries, 0 to disable the cache
+   */
+  public synchronized void setMaxEntries(int maxEntries) {
+    if (maxEntries < 0) throw new IllegalArgumentException("Invalid argument");
+    this.maxEntries = maxEntries;
+    if (maxEntries == 0) clear();
+  }
+
+
+  /** Get max amount of children a directory may have to have its listing cached
+   * @return Max listing size
+   */
+  public int getMaxListingSize() {
+    return maxListingSize;
+  }
+
+
+  /** Set max amount of children a directory may have to have its listing cached
+   * @param maxListingSize Max listing size
+   */
+  public void setMaxListingSize(int maxListingSize) {
+    if (maxListingSize < 0) throw new IllegalArgumentException("Invalid argument");
+    this.maxListingSize = maxListingSize;
+  }
+
+
+  /** Get time after which a cached entry is read from the disk again
+   * @return Timeout in milliseconds
+   */
+  public long getTimeout() {
+    return timeout;
+  }
+
+
+  /** Set time after which a cached entry is read from the disk again, this defines how long it
+   * takes for changes made outside of the server to become visible
+   * @param timeout Timeout in milliseconds
+   */
+  public void setTimeout(long timeout) {
+    if (timeout < 0L) throw new IllegalArgumentException("Invalid argument");
+    this.timeout = timeout;
+  }
+
+
+  /** Get attributes of a file
+   * @param rpath Absolute real path
+   * @return Attributes (never NULL, test if the file exists)
+   */
+  public FileAttributes getAttributes(String rpath) {
+    File file = new File(rpath);
+    String key = file.getAbsolutePath();
+
+    if (maxEntries == 0) return FileAttributes.read(file);
+
+    FileAttributes fa;
+    long gen;
+    synchronized (this) {
+      fa = attributes.get(key);
+      gen = generation;
+    }
+    if (fa != null && !isExpired(fa.getReadTime())) {
+      hits.incrementAndGet();
+      return fa;
+    }
+
+    misses.incrementAndGet();
+    fa = FileAttributes.read(file);
+    synchronized (this) {
+      if (gen == generation) attributes.put(key, fa);
+    }
+    return fa;
+  }
+
+
+  /** Get attributes of directory children
+   * @param rpath Absolute real path of a directory
+   * @return Children attributes or NULL if the path is not a directory
+   */
+  public List<FileAttributes> getListing(String rpath) {
+    File dir = new File(rpath);
+    List<FileAttributes> children = getCachedListing(dir);
+    if (children != null) return children;
+
+    misses.incrementAndGet();
+    long gen = getGeneration();
+    long lastModified = dir.lastModified();
+    String[] names = dir.list();
+    if (names == null) return null;
+    return readListing(dir, lastModified, names, gen);
+  }
+
+
+  /** Get attributes of directory children one by one.
+   * Directories larger than the max listing size are not cached and their children attributes
+   * are read only when requested from the iterator.
+   * @param rpath Absolute real path of a directory
+   * @return Children attributes or NULL if the path is not a directory
+   */
+  public Iterator<FileAttributes> iterateListing(String rpath) {
+    final File dir = new File(rpath);
+    List<FileAttributes> children = getCachedListing(dir);
+    if (children != null) return children.iterator();
+
+    misses.incrementAndGet();
+    long gen = getGeneration();
+    long lastModified = dir.lastModified();
+    final String[] names = dir.list();
+    if (names == null) return null;
+    if (names.length <= maxListingSize) return readListing(dir, lastModified, names, gen).iterator();
+
+    return new Iterator<FileAttributes>() {
+      private int index;
+
+      public boolean hasNext() {
+        return index < names.length;
+      }
+
+      public FileAttributes next() {
+        if (index >= names.length) throw new NoSuchElementException();
+        return FileAttributes.read(new File(dir, names[index++]));
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+
+  /** Get cached listing if it is still valid
+   * @param dir Directory
+   * @return Children attributes or NULL if not cached
+   */
+  protected List<FileAttributes> getCachedListing(File dir) {
+    if (maxEntries == 0) return null;
+
+    Listing listing;
+    synchronized (this) {
+      listing = listings.get(dir.getAbsolutePath());
+    }
+    //Directory modification time changes when its content changes
+    if (listing != null && !isExpired(listing.readTime) && listing.lastModified == dir.lastModified()) {
+      hits.incrementAndGet();
+      return listing.children;
+    }
+    return null;
+  }
+
+
+  /** Read attributes of directory children and cache them
+   * @param dir Directory
+   * @param lastModified Directory modification time before its children were listed
+   * @param names Children names
+   * @param gen Generation before the directory was read
+   * @return Children attributes
+   */
+  protected List<FileAttributes> readListing(File dir, long lastModified, String[] names, long gen) {
+    List<FileAttributes> children = new ArrayList<FileAttributes>(names.length);
+    for (String name : names)
+      children.add(FileAttributes.read(new File(dir, name)));
+    children = Collections.unmodifiableList(children);
+
+    if (maxEntries > 0 && children.size() <= maxListingSize) {
+      Listing listing = new Listing();
+      listing.lastModified = lastModified;
+      listing.readTime = System.currentTimeMillis();
+      listing.children = children;
+      synchronized (this) {
+        if (gen == generation) listings.put(dir.getAbsolutePath(), listing);
+      }
+    }
+    return children;
+  }
+
+
+  /** Drop cached entries of a path, its children (if the path is a directory) and its parent listing.
+   * Must be called every time the server modifies the path.
+   * @param rpath Absolute real path
+   */
+  public void invalidate(String rpath) {
+    File file = new File(rpath);
+    String key = file.getAbsolutePath();
+    String prefix = key.endsWith(File.separator) ? key : key+File.separator;
+    File parent = file.getParentFile();
+
+    //Only a directory has children to drop, a path which is not cached may still be a directory
+    FileAttributes cached;
+    synchronized (this) {
+      cached = attributes.get(key);
+    }
+    boolean directory = cached != null && cached.exists() ? cached.isDirectory() : !file.isFile();
+
+    synchronized (this) {
+      generation++;
+      attributes.remove(key);
+      listings.remove(key);
+      if (parent != null) listings.remove(parent.getAbsolutePath());
+
+      //Children of a renamed or deleted directory
+      if (directory) {
+        removeByPrefix(attributes, prefix);
+        removeByPrefix(listings, prefix);
+      }
+    }
+
+    invalidations.incrementAndGet();
+    log.debug("Metadata invalidated: "+key);
+  }
+
+
+  /** Remove entries which keys start with a prefix
+   * @param map Map to remove entries from
+   * @param prefix Key prefix
+   */
+  protected void removeByPrefix(Map<String,?> map, String prefix) {
+    for (Iterator<String> it = map.keySet().iterator(); it.hasNext();)
+      if (it.next().startsWith(prefix)) it.remove();
+  }
+
+
+  /** Drop all cached entries */
+  public synchronized void clear() {
+    generation++;
+    attributes.clear();
+    listings.clear();
+  }
+
+
+  /** Get generation of the cache, it changes with every invalidation
+   * @return Generation
+   */
+  protected synchronized long getGeneration() {
+    return generation;
+  }
+
+
+  /** Test if an entry read at a specified time must be read again
+   * @param readTime Time when an entry was read
+   * @return TRUE if the entry expired, FALSE otherwise
+   */
+  protected boolean isExpired(long readTime) {
+    return System.currentTimeMillis()-readTime >= timeout;
+  }
+
+
+  /** Get amount of requests served from the cache
+   * @return Hits
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+
+  /** Get amount of requests which had to go to the disk
+   * @return Misses
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+
+  /** Get amount of entries removed because the cache was full
+   * @return Evictions
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+
+  /** Get amount of invalidations caused by the server's own modifications
+   * @return Invalidations
+   */
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+
+  /** Get amount of cached entries (attributes and listings)
+   * @return Size
+   */
+  public synchronized int size() {
+    return attributes.size()+listings.size();
+  }
+}
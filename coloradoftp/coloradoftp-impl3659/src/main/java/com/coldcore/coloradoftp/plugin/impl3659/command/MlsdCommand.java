@@ -1,18 +1,19 @@
 package com.coldcore.coloradoftp.plugin.impl3659.command;
 
 import com.coldcore.coloradoftp.command.Reply;
+import com.coldcore.coloradoftp.command.impl.ListingChannel;
 import com.coldcore.coloradoftp.connection.DataConnectionMode;
 import com.coldcore.coloradoftp.factory.ObjectFactory;
 import com.coldcore.coloradoftp.factory.ObjectName;
 import com.coldcore.coloradoftp.filesystem.FileSystem;
 import com.coldcore.coloradoftp.filesystem.ListingFile;
+import com.coldcore.coloradoftp.filesystem.impl.StreamingFileSystemAdapter;
 import com.coldcore.coloradoftp.session.Session;
 import com.coldcore.coloradoftp.session.SessionAttributeName;
 import org.apache.log4j.Logger;
 
-import java.io.ByteArrayInputStream;
-import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -46,12 +47,14 @@ public class MlsdCommand extends BaseMlsxCommand {
     if (listDir.length() == 0) listDir = cdir;
     String pdir = fileSystem.getParent(listDir, session);
 
-    Set<ListingFile> list = fileSystem.listDirectory(listDir, session);
-    String alistDir = fileSystem.toAbsolute(listDir, session);
-    String prepared = prepareList(list, alistDir, pdir);
-
-    ByteArrayInputStream bin = new ByteArrayInputStream(prepared.getBytes());
-    ReadableByteChannel rbc = Channels.newChannel(bin);
+    //Lines are rendered while the data connection sends them
+    Iterator<ListingFile> list = StreamingFileSystemAdapter.adapt(fileSystem).iterateDirectory(listDir, session);
+    final String alistDir = fileSystem.toAbsolute(listDir, session);
+    ReadableByteChannel rbc = new ListingChannel(prepareHeader(alistDir, pdir), list) {
+      protected String prepareLine(ListingFile f) {
+        return MlsdCommand.this.prepareLine(f, alistDir);
+      }
+    };
 
     session.setAttribute(SessionAttributeName.DATA_CONNECTION_MODE, DataConnectionMode.LIST);
     session.setAttribute(SessionAttributeName.DATA_CONNECTION_CHANNEL, rbc);
@@ -71,6 +74,21 @@ public class MlsdCommand extends BaseMlsxCommand {
    * @return Prepared string
    */
   protected String prepareList(Set<ListingFile> list, String cdir, String pdir) {
+    StringBuffer sb = new StringBuffer(prepareHeader(cdir, pdir));
+    for (ListingFile lf : list)
+      sb.append(prepareLine(lf, cdir));
+
+    log.debug("Directory listing:\n"+sb);
+    return sb.toString();
+  }
+
+
+  /** Prepare MLSD lines of the current and parent directories
+   * @param cdir Absolute current/listed directory (to set "type=cdir" fact)
+   * @param pdir Absolute parent directory (to set "type=pdir" fact)
+   * @return Prepared string
+   */
+  protected String prepareHeader(String cdir, String pdir) {
     Session session = controlConnection.getSession();
     FileSystem fileSystem = (FileSystem) ObjectFactory.getObject(ObjectName.FILESYSTEM);
 
@@ -91,14 +109,18 @@ public class MlsdCommand extends BaseMlsxCommand {
     String pfacts = preparePathFacts(pathFacts);
     sb.append(pfacts).append(" ").append(cdir).append("\r\n");
 
-    //Listing
-    for (ListingFile lf : list) {
-      pathFacts = getPathFacts(lf, cdir);
-      pfacts = preparePathFacts(pathFacts);
-      sb.append(pfacts).append(" ").append(lf.getAbsolutePath()).append("\r\n");
-    }
-
-    log.debug("Directory listing:\n"+sb);
     return sb.toString();
   }
+
+
+  /** Convert a file into MLSD line
+   * @param lf File or directory inside the listed directory
+   * @param cdir Absolute current/listed directory (to set "type=cdir" fact)
+   * @return Prepared line
+   */
+  protected String prepareLine(ListingFile lf, String cdir) {
+    Map<String,String> pathFacts = getPathFacts(lf, cdir);
+    String pfacts = preparePathFacts(pathFacts);
+    return pfacts+" "+lf.getAbsolutePath()+"\r\n";
+  }
 }
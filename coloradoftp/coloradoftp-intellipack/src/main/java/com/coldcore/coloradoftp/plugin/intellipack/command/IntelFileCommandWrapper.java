@@ -3,15 +3,15 @@ package com.coldcore.coloradoftp.plugin.intellipack.command;
 import com.coldcore.coloradoftp.command.Command;
 import com.coldcore.coloradoftp.command.Reply;
 import com.coldcore.coloradoftp.command.impl.CommandWrapper;
-import com.coldcore.coloradoftp.connection.Connection;
+import com.coldcore.coloradoftp.command.impl.DeferredReply;
 import com.coldcore.coloradoftp.connection.ConnectionPool;
-import com.coldcore.coloradoftp.connection.DataConnection;
 import com.coldcore.coloradoftp.factory.ObjectFactory;
 import com.coldcore.coloradoftp.factory.ObjectName;
+import com.coldcore.coloradoftp.plugin.intellipack.connection.DataConnectionSlots;
+import com.coldcore.coloradoftp.session.Session;
+import com.coldcore.coloradoftp.session.SessionAttributeName;
 import org.apache.log4j.Logger;
 
-import java.util.Set;
-
 /**
  * This class ensures that a number of simultaneously opened files stays below the limit.
  * It checks if there are too many data connections already open before command execution.
@@ -21,11 +21,17 @@ import java.util.Set;
  * connection.
  *
  * Known commands that create data connections to files: STOR, STOU, RETR, PASV.
+ *
+ * With data connection slots set the limits are global and per user, and a request may wait
+ * for a free slot (see DataConnectionSlots). While it waits the reply is deferred, so no command
+ * thread is held (see DeferredReply). Otherwise the total amount of data connections is compared
+ * with the max.
  */
 public class IntelFileCommandWrapper extends CommandWrapper {
 
   private static Logger log = Logger.getLogger(IntelFileCommandWrapper.class);
   protected int maxDataConnections;
+  protected DataConnectionSlots slots;
 
 
   public IntelFileCommandWrapper(Command command) {
@@ -49,32 +55,117 @@ public class IntelFileCommandWrapper extends CommandWrapper {
   }
 
 
-  public Reply execute() {
-    ConnectionPool dataConnectionPool = (ConnectionPool) ObjectFactory.getObject(ObjectName.DATA_CONNECTION_POOL);
+  /** Get data connection slots
+   * @return Slots or NULL if not set
+   */
+  public DataConnectionSlots getSlots() {
+    return slots;
+  }
+
+
+  /** Set data connection slots (should be shared by all commands)
+   * @param slots Slots
+   */
+  public void setSlots(DataConnectionSlots slots) {
+    this.slots = slots;
+  }
+
 
+  public Reply execute() {
     //Test if data connection is already open and waiting
-    boolean open = false;
-    Set<Connection> set = dataConnectionPool.list();
-    for (Connection dc : set) {
-      if (((DataConnection)dc).getControlConnection() == command.getConnection()) {
-        log.debug("Data connection already open and waiting");
-        open = true;
-        break;
-      }
+    if (command.getConnection().getDataConnection() != null) {
+      log.debug("Data connection already open and waiting");
+      return command.execute();
     }
 
     //If no data connection then test if one can be created
-    int total = dataConnectionPool.size();
-    if (total > maxDataConnections && maxDataConnections > 0 && !open) {
-      log.debug("Too many data connections (total "+total+")");
-      Reply reply = (Reply) ObjectFactory.getObject(ObjectName.REPLY);
-      reply.setCode("425");
-      reply.setText("Too many data connections already, try again later.");
-      return reply;
+    if (slots != null) {
+      final Session session = command.getConnection().getSession();
+      String username = (String) session.getAttribute(SessionAttributeName.USERNAME);
+      if (slots.tryAcquire(session, username)) return executeWithSlot();
+      if (slots.getWaitTimeout() == 0L) {
+        log.debug("No free data connection slot");
+        return tooManyDataConnections();
+      }
+
+      //Reply is submitted when a slot is free or the wait times out
+      DeferredReply<Boolean> deferred = new DeferredReply<Boolean>(this) {
+        protected Reply proceed(Boolean acquired) {
+          return acquired ? executeWithSlot() : tooManyDataConnections();
+        }
+
+        protected void discard(Boolean acquired) {
+          if (acquired) DataConnectionSlots.release(session); //Nobody is going to use the slot
+        }
+      };
+      try {
+        slots.acquire(session, username, deferred);
+      } catch (RuntimeException e) {
+        deferred.release(); //The request was not queued
+        throw e;
+      }
+      return null;
+    } else {
+      ConnectionPool dataConnectionPool = (ConnectionPool) ObjectFactory.getObject(ObjectName.DATA_CONNECTION_POOL);
+      int total = dataConnectionPool.size();
+      if (total > maxDataConnections && maxDataConnections > 0) {
+        log.debug("Too many data connections (total "+total+")");
+        return tooManyDataConnections();
+      }
     }
 
     //Continue as normal
     return command.execute();
   }
 
+
+  /** Execute the command while the session holds a slot
+   * @return Reply
+   */
+  protected Reply executeWithSlot() {
+    //Do not hold the slot if the command failed, the command may also defer its reply
+    Session session = command.getConnection().getSession();
+    DeferredReply.observe(session, new DeferredReply.Observer() {
+      public void replied(Reply reply) {
+        if (reply != null) releaseIfFailed(reply);
+      }
+
+      public void failed(Throwable e) {
+        releaseIfFailed(null);
+      }
+    });
+    Reply reply;
+    try {
+      reply = command.execute();
+    } catch (RuntimeException e) {
+      releaseIfFailed(null);
+      throw e;
+    } finally {
+      DeferredReply.observe(session, null);
+    }
+    if (reply != null) releaseIfFailed(reply);
+    return reply;
+  }
+
+
+  /** Release the slot of the session if the command failed to open a data connection
+   * @param reply Reply of the command or NULL if the command threw an exception
+   */
+  protected void releaseIfFailed(Reply reply) {
+    String code = reply == null ? "5" : reply.getCode();
+    if (code != null && (code.startsWith("4") || code.startsWith("5")) && command.getConnection().getDataConnection() == null)
+      DataConnectionSlots.release(command.getConnection().getSession());
+  }
+
+
+  /** Create a reply rejecting a data connection
+   * @return Reply
+   */
+  protected Reply tooManyDataConnections() {
+    Reply reply = (Reply) ObjectFactory.getObject(ObjectName.REPLY);
+    reply.setCode("425");
+    reply.setText("Too many data connections already, try again later.");
+    return reply;
+  }
+
 }
@@ -8,20 +8,26 @@ package com.coldcore.coloradoftp.plugin.intellipack.command;
 
 import com.coldcore.coloradoftp.command.Reply;
 import com.coldcore.coloradoftp.command.impl.ftp.PasvCommand;
-import com.coldcore.coloradoftp.plugin.intellipack.util.Util;
+import com.coldcore.coloradoftp.plugin.intellipack.util.IpMatcher;
 import org.apache.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public class IntelPasvCommand extends PasvCommand {
 
   private static Logger log = Logger.getLogger(IntelPasvCommand.class);
   protected String localIpRegexp;
+  protected List<String> localIpRules;
+  protected IpMatcher<Boolean> localIpMatcher;
   protected String localIp;
   protected String remoteIp;
 
 
   public IntelPasvCommand() {
     super();
-    localIpRegexp = "192.168.*";
+    setLocalIpRegexp("192.168.*");
   }
 
 
@@ -39,6 +45,27 @@ public class IntelPasvCommand extends PasvCommand {
   public void setLocalIpRegexp(String localIpRegexp) {
     if (localIpRegexp == null) throw new IllegalArgumentException("Invalid argument");
     this.localIpRegexp = localIpRegexp;
+    localIpRules = null;
+    localIpMatcher = IpMatcher.forRules(Collections.singletonList(localIpRegexp));
+  }
+
+
+  /** Get rules of IP addresses to determine connections from local hosts
+   * @return Rules or NULL if the regular expression is used instead
+   */
+  public List<String> getLocalIpRules() {
+    return localIpRules;
+  }
+
+
+  /** Set rules of IP addresses to determine connections from local hosts, this replaces
+   * the regular expression. Each rule is a network in CIDR notation, an IP address or a regular expression.
+   * @param localIpRules Rules
+   */
+  public void setLocalIpRules(List<String> localIpRules) {
+    if (localIpRules == null) throw new IllegalArgumentException("Invalid argument");
+    this.localIpRules = new ArrayList<String>(localIpRules);
+    localIpMatcher = IpMatcher.forRules(this.localIpRules);
   }
 
 
@@ -76,7 +103,7 @@ public class IntelPasvCommand extends PasvCommand {
 
   public Reply execute() {
     String ip = controlConnection.getSocketChannel().socket().getInetAddress().getHostAddress();
-    boolean local = Util.checkRegExp(ip, localIpRegexp);
+    boolean local = localIpMatcher.matches(ip);
     log.debug("Local IP? "+local);
 
     //Change IP
@@ -0,0 +1,331 @@
+package com.coldcore.coloradoftp.plugin.intellipack.connection;
+
+import com.coldcore.coloradoftp.filesystem.FileSystemCallback;
+import com.coldcore.coloradoftp.session.Session;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Admission of data connections by slots (global and per user).
+ *
+ * A session takes a slot before a data connection is set up (PASV, PORT/RETR/STOR) and holds it
+ * in the session until the data connection or the control connection is destroyed. If there is
+ * no free slot the request may wait a short time in a fair queue before it is rejected, so
+ * clients retrying right away do not turn a busy server into a retry storm.
+ *
+ * Waiting requests do not hold any thread: a request is queued with a callback which is called
+ * by the thread of this class once a slot is given to the request or the wait times out. Only
+ * users holding slots are tracked, so the per user counts do not grow with the amount of users.
+ *
+ * This class is thread safe.
+ */
+public class DataConnectionSlots {
+
+  private static Logger log = Logger.getLogger(DataConnectionSlots.class);
+  protected int maxSlots;
+  protected int maxSlotsPerUser;
+  protected long waitTimeout;
+  protected int usedSlots;
+  protected Map<String,Integer> userSlots;
+  protected LinkedList<Waiter> waiters;
+  protected ScheduledThreadPoolExecutor timer;
+
+  /** Session attribute holding a slot */
+  public static final String SESSION_ATTRIBUTE = "data.connection.slot";
+
+
+  /** Slot taken by a session */
+  public static class Slot {
+
+    private DataConnectionSlots slots;
+    private String user;
+    private AtomicBoolean released = new AtomicBoolean();
+
+    protected Slot(DataConnectionSlots slots, String user) {
+      this.slots = slots;
+      this.user = user;
+    }
+
+
+    /** Give the slot back (only the first call has effect) */
+    public void release() {
+      if (!released.compareAndSet(false, true)) return;
+      slots.free(user);
+    }
+  }
+
+
+  /** Request waiting for a free slot */
+  protected static class Waiter {
+    Session session;
+    String user;
+    FileSystemCallback<Boolean> callback;
+    ScheduledFuture<?> timeout;
+  }
+
+
+  public DataConnectionSlots() {
+    userSlots = new HashMap<String,Integer>();
+    waiters = new LinkedList<Waiter>();
+  }
+
+
+  /** Get max amount of data connections of all users
+   * @return Max slots, 0 if not limited
+   */
+  public int getMaxSlots() {
+    return maxSlots;
+  }
+
+
+  /** Set max amount of data connections of all users
+   * @param maxSlots Max slots, 0 if not limited
+   */
+  public void setMaxSlots(int maxSlots) {
+    if (maxSlots < 0) throw new IllegalArgumentException("Invalid argument");
+    synchronized (this) {
+      this.maxSlots = maxSlots;
+    }
+    dispatch();
+  }
+
+
+  /** Get max amount of data connections of one user
+   * @return Max slots, 0 if not limited
+   */
+  public int getMaxSlotsPerUser() {
+    return maxSlotsPerUser;
+  }
+
+
+  /** Set max amount of data connections of one user
+   * @param maxSlotsPerUser Max slots, 0 if not limited
+   */
+  public void setMaxSlotsPerUser(int maxSlotsPerUser) {
+    if (maxSlotsPerUser < 0) throw new IllegalArgumentException("Invalid argument");
+    synchronized (this) {
+      this.maxSlotsPerUser = maxSlotsPerUser;
+    }
+    dispatch();
+  }
+
+
+  /** Get time a request waits for a free slot
+   * @return Milliseconds, 0 if requests are rejected right away
+   */
+  public long getWaitTimeout() {
+    return waitTimeout;
+  }
+
+
+  /** Set time a request waits for a free slot
+   * @param waitTimeout Milliseconds, 0 to reject requests right away
+   */
+  public void setWaitTimeout(long waitTimeout) {
+    if (waitTimeout < 0L) throw new IllegalArgumentException("Invalid argument");
+    this.waitTimeout = waitTimeout;
+  }
+
+
+  /** Get the timer (create if it does not exist yet)
+   * @return Timer
+   */
+  protected synchronized ScheduledThreadPoolExecutor getTimer() {
+    if (timer != null) return timer;
+    timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "data-connection-slots");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    return timer;
+  }
+
+
+  /** Get the key a user is counted by
+   * @param username Username (NULL if not known)
+   * @return Key or NULL if the user is not limited
+   */
+  protected String getUserKey(String username) {
+    return maxSlotsPerUser > 0 ? username : null;
+  }
+
+
+  /** Test if a user may take one more slot (must hold the lock)
+   * @param user User key or NULL
+   * @return TRUE if the user is below the limit, FALSE otherwise
+   */
+  protected boolean isUserFree(String user) {
+    if (user == null || maxSlotsPerUser == 0) return true;
+    Integer used = userSlots.get(user);
+    return used == null || used < maxSlotsPerUser;
+  }
+
+
+  /** Take a slot for a session (must hold the lock)
+   * @param session Session
+   * @param user User key or NULL
+   */
+  protected void take(Session session, String user) {
+    usedSlots++;
+    if (user != null) {
+      Integer used = userSlots.get(user);
+      userSlots.put(user, used == null ? 1 : used+1);
+    }
+    session.setAttribute(SESSION_ATTRIBUTE, new Slot(this, user));
+  }
+
+
+  /** Give a slot back and pass it to a waiting request
+   * @param user User key or NULL
+   */
+  protected void free(String user) {
+    synchronized (this) {
+      usedSlots--;
+      if (user != null) {
+        Integer used = userSlots.get(user);
+        if (used == null || used <= 1) userSlots.remove(user); //Idle users are not kept
+        else userSlots.put(user, used-1);
+      }
+    }
+    dispatch();
+  }
+
+
+  /** Take a slot for a session unless the session already holds one, never waits
+   * @param session Session
+   * @param username Username (NULL if not known)
+   * @return TRUE if the session holds a slot, FALSE if there is no free slot
+   */
+  public synchronized boolean tryAcquire(Session session, String username) {
+    if (session.getAttribute(SESSION_ATTRIBUTE) != null) return true;
+
+    //Do not go ahead of waiting requests
+    String user = getUserKey(username);
+    if (!waiters.isEmpty() || (maxSlots > 0 && usedSlots >= maxSlots) || !isUserFree(user)) return false;
+    take(session, user);
+    return true;
+  }
+
+
+  /** Wait for a slot in the queue. The callback receives TRUE once the session holds a slot or
+   * FALSE if no slot is free within the wait timeout, it is called by the thread of this class.
+   * @param session Session
+   * @param username Username (NULL if not known)
+   * @param callback Callback
+   */
+  public void acquire(Session session, String username, FileSystemCallback<Boolean> callback) {
+    final Waiter waiter = new Waiter();
+    waiter.session = session;
+    waiter.callback = callback;
+    synchronized (this) {
+      waiter.user = getUserKey(username);
+      waiters.addLast(waiter);
+    }
+    waiter.timeout = getTimer().schedule(new Runnable() {
+      public void run() {
+        expire(waiter);
+      }
+    }, waitTimeout, TimeUnit.MILLISECONDS);
+    dispatch();
+  }
+
+
+  /** Reject a request which waited too long
+   * @param waiter Waiting request
+   */
+  protected void expire(Waiter waiter) {
+    synchronized (this) {
+      if (!waiters.remove(waiter)) return; //Got a slot meanwhile
+    }
+    log.debug("No free data connection slot within "+waitTimeout+" ms");
+    notify(waiter, false);
+  }
+
+
+  /** Give free slots to waiting requests in the order they arrived (a request over its user
+   * limit does not hold back requests of other users)
+   */
+  protected void dispatch() {
+    List<Waiter> granted = new ArrayList<Waiter>();
+    synchronized (this) {
+      for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+        if (maxSlots > 0 && usedSlots >= maxSlots) break;
+        Waiter waiter = it.next();
+        if (!isUserFree(waiter.user)) continue;
+        it.remove();
+        if (waiter.session.getAttribute(SESSION_ATTRIBUTE) == null) take(waiter.session, waiter.user);
+        granted.add(waiter);
+      }
+    }
+
+    for (Waiter waiter : granted) {
+      ScheduledFuture<?> timeout = waiter.timeout;
+      if (timeout != null) timeout.cancel(false);
+      notify(waiter, true);
+    }
+  }
+
+
+  /** Pass the result to a waiting request by the thread of this class
+   * @param waiter Waiting request
+   * @param acquired TRUE if the session holds a slot
+   */
+  protected void notify(final Waiter waiter, final boolean acquired) {
+    getTimer().execute(new Runnable() {
+      public void run() {
+        try {
+          waiter.callback.onSuccess(acquired);
+        } catch (Throwable e) {
+          log.error("Callback error (ignoring)", e);
+        }
+      }
+    });
+  }
+
+
+  /** Give back a slot held by a session
+   * @param session Session
+   */
+  public static void release(Session session) {
+    Slot slot = (Slot) session.getAttribute(SESSION_ATTRIBUTE);
+    if (slot == null) return;
+    session.removeAttribute(SESSION_ATTRIBUTE);
+    slot.release();
+  }
+
+
+  /** Get amount of free slots of all users
+   * @return Free slots or -1 if not limited
+   */
+  public synchronized int getAvailableSlots() {
+    return maxSlots == 0 ? -1 : Math.max(maxSlots-usedSlots, 0);
+  }
+
+
+  /** Get amount of requests waiting for a free slot of all users
+   * @return Queue length
+   */
+  public synchronized int getQueueLength() {
+    return waiters.size();
+  }
+
+
+  /** Stop the thread of this class */
+  public synchronized void destroy() {
+    if (timer != null) timer.shutdown();
+    timer = null;
+  }
+}
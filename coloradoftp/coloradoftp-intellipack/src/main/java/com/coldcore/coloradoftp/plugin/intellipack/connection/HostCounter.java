@@ -0,0 +1,83 @@
+package com.coldcore.coloradoftp.plugin.intellipack.connection;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Amount of connections per IP address.
+ *
+ * Counters are updated when connections are added and destroyed, so a count is read
+ * without going through all the connections. A counter which drops to zero is removed.
+ *
+ * This class is thread safe.
+ */
+public class HostCounter {
+
+  protected ConcurrentMap<String,AtomicInteger> counters;
+
+
+  public HostCounter() {
+    counters = new ConcurrentHashMap<String,AtomicInteger>();
+  }
+
+
+  /** Get amount of connections from a host
+   * @param ip IP address
+   * @return Connections
+   */
+  public int get(String ip) {
+    AtomicInteger counter = counters.get(ip);
+    if (counter == null) return 0;
+    return Math.max(0, counter.get());
+  }
+
+
+  /** Count a new connection from a host
+   * @param ip IP address
+   * @return Connections including the new one
+   */
+  public int increment(String ip) {
+    while (true) {
+      AtomicInteger counter = counters.get(ip);
+      if (counter == null) {
+        counter = new AtomicInteger();
+        AtomicInteger existing = counters.putIfAbsent(ip, counter);
+        if (existing != null) counter = existing;
+      }
+
+      //A negative counter is being removed, replace it
+      int value = counter.get();
+      if (value < 0) {
+        counters.remove(ip, counter);
+        continue;
+      }
+      if (counter.compareAndSet(value, value+1)) return value+1;
+    }
+  }
+
+
+  /** Count a connection from a host out
+   * @param ip IP address
+   */
+  public void decrement(String ip) {
+    AtomicInteger counter = counters.get(ip);
+    if (counter == null) return;
+    if (counter.decrementAndGet() == 0 && counter.compareAndSet(0, -1)) counters.remove(ip, counter);
+  }
+
+
+  /** Get amount of connections of all hosts
+   * @return Copy of IP address to connections map
+   */
+  public Map<String,Integer> getCounts() {
+    Map<String,Integer> map = new HashMap<String,Integer>();
+    for (Map.Entry<String,AtomicInteger> entry : counters.entrySet()) {
+      int value = entry.getValue().get();
+      if (value > 0) map.put(entry.getKey(), value);
+    }
+    return map;
+  }
+}
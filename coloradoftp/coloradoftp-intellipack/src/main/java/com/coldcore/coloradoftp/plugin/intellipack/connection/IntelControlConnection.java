@@ -21,6 +21,8 @@ public class IntelControlConnection extends GenericControlConnection {
   protected int loginTimeout;
   protected long createdTime;
   protected Speedometer speedometer;
+  protected HostCounter hostCounter;
+  protected String ip;
 
 
   public IntelControlConnection(int bufferSize) {
@@ -68,6 +70,28 @@ public class IntelControlConnection extends GenericControlConnection {
   public void initialize(SocketChannel channel) {
     super.initialize(channel);
     speedometer = (Speedometer) ObjectFactory.getObject("controlSpeedometer");
+    ip = channel.socket().getInetAddress().getHostAddress();
+  }
+
+
+  /** Set counter of connections per host, the connection is counted in and will count itself
+   * out when destroyed
+   * @param hostCounter Counter
+   */
+  public synchronized void setHostCounter(HostCounter hostCounter) {
+    if (this.hostCounter != null || destroyed) return;
+    this.hostCounter = hostCounter;
+    hostCounter.increment(ip);
+  }
+
+
+  public synchronized void destroy() {
+    if (hostCounter != null) {
+      hostCounter.decrement(ip);
+      hostCounter = null;
+    }
+    DataConnectionSlots.release(session);
+    super.destroy();
   }
 
 
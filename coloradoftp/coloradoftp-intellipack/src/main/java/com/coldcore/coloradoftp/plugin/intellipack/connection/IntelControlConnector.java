@@ -6,7 +6,7 @@ import com.coldcore.coloradoftp.connection.ControlConnection;
 import com.coldcore.coloradoftp.connection.impl.GenericControlConnector;
 import com.coldcore.coloradoftp.factory.ObjectFactory;
 import com.coldcore.coloradoftp.factory.ObjectName;
-import com.coldcore.coloradoftp.plugin.intellipack.util.Util;
+import com.coldcore.coloradoftp.plugin.intellipack.util.IpMatcher;
 import org.apache.log4j.Logger;
 
 import java.util.LinkedHashMap;
@@ -18,9 +18,13 @@ import java.util.Set;
  * is already full of users.
  *
  * Map of IP addresses allows or forbids access from predefined hosts.
- * Keys are IPs regular expressions and values are Boolean: set to FALSE to forbid
- * and to TRUE to allow connection from hosts.
+ * Keys are networks in CIDR notation (e.g. 10.0.0.0/8 or fe80::/10), IP addresses or IPs
+ * regular expressions and values are Boolean: set to FALSE to forbid and to TRUE to allow
+ * connection from hosts. The map is compiled once into a matcher, see IpMatcher.
  * (http://coldcore.com/system.jsp to see your external IP address)
+ *
+ * Connections per host are counted as connections are accepted and destroyed
+ * (requires IntelControlConnection, other connections are counted by going through the pool).
  */
 public class IntelControlConnector extends GenericControlConnector {
 
@@ -28,24 +32,29 @@ public class IntelControlConnector extends GenericControlConnector {
   protected int maxConnections;
   protected int connectionsPerHost;
   protected Map<String,Boolean> ipMap;
+  protected volatile IpMatcher<Boolean> ipMatcher;
+  protected HostCounter hostCounter;
 
 
   public IntelControlConnector() {
     ipMap = new LinkedHashMap<String,Boolean>();
+    ipMatcher = new IpMatcher<Boolean>(ipMap);
+    hostCounter = new HostCounter();
   }
 
 
   /** Set map of IPs and allow/deny permissions.
-   *  If IP matches regexp of this map then it will be allowed or denied access
-   *  based on the value for the regexp (the first regexp wins, so use LinkedHashMap to
+   *  If IP matches a rule of this map then it will be allowed or denied access
+   *  based on the value for the rule (the first rule wins, so use LinkedHashMap to
    *  set the rules properly).
-   * @param map Map where key is IP regular expression and value is Boolean
+   * @param map Map where key is network, IP or IP regular expression and value is Boolean
    */
   public void setIpMap(Map<String,Boolean> map) {
     if (map == null) throw new IllegalArgumentException("Invalid argument");
     synchronized (ipMap) {
       ipMap.clear();
       ipMap.putAll(map);
+      ipMatcher = new IpMatcher<Boolean>(ipMap);
     }
   }
 
@@ -92,10 +101,35 @@ public class IntelControlConnector extends GenericControlConnector {
   }
 
 
+  /** Get amount of control connections per host
+   * @return Copy of IP address to connections map
+   */
+  public Map<String,Integer> getHostConnections() {
+    return hostCounter.getCounts();
+  }
+
+
+  /** Count control connections from a host by going through the pool
+   * @param ip IP address
+   * @return Connections
+   */
+  protected int countHostConnections(String ip) {
+    Set<Connection> set = controlConnectionPool.list();
+    int count = 0;
+    for (Connection c : set)
+      try {
+        if (c.isDestroyed()) continue;
+        String s = c.getSocketChannel().socket().getInetAddress().getHostAddress();
+        if (s.equals(ip)) count++;
+      } catch (Throwable e) {}
+    return count;
+  }
+
+
   public void configure(ControlConnection connection) {
     //Test if too many connections
     int total = controlConnectionPool.size();
-    if (controlConnectionPool.size() > maxConnections && maxConnections > 0) {
+    if (total > maxConnections && maxConnections > 0) {
       log.debug("Too many connections already (total "+total+")");
       Reply reply = (Reply) ObjectFactory.getObject(ObjectName.REPLY);
       reply.setCode("421");
@@ -107,14 +141,8 @@ public class IntelControlConnector extends GenericControlConnector {
 
     //Test if too many connections from the same host
     String ip = connection.getSocketChannel().socket().getInetAddress().getHostAddress();
-    Set<Connection> set = controlConnectionPool.list();
-    int count = 0;
-    for (Connection c : set)
-      try {
-        if (c.isDestroyed()) continue;
-        String s = c.getSocketChannel().socket().getInetAddress().getHostAddress();
-        if (s.equals(ip)) count++;
-      } catch (Throwable e) {}
+    boolean counted = connection instanceof IntelControlConnection;
+    int count = counted ? hostCounter.get(ip) : countHostConnections(ip);
 
     if (count >= connectionsPerHost && connectionsPerHost > 0) {
       log.debug("Too many connections from the same host already (total "+count+")");
@@ -127,26 +155,23 @@ public class IntelControlConnector extends GenericControlConnector {
     }
 
     //IP address test
-    synchronized (ipMap) {
-      for (String regexp : ipMap.keySet()) {
-        if (Util.checkRegExp(ip, regexp)) {
-          boolean allow = ipMap.get(regexp);
-          log.debug("IP ["+ip+"] matches regexp ["+regexp+"], allow ["+allow+"]");
-
-          if (!allow) {
-            Reply reply = (Reply) ObjectFactory.getObject(ObjectName.REPLY);
-            reply.setCode("421");
-            reply.setText("Service not available, your host is blocked.");
-            connection.reply(reply);
-            connection.poison();
-            return;
-          }
-
-          break;
-        }
+    Boolean allow = ipMatcher.match(ip);
+    if (allow != null) {
+      log.debug("IP ["+ip+"] matches a rule, allow ["+allow+"]");
+
+      if (!allow) {
+        Reply reply = (Reply) ObjectFactory.getObject(ObjectName.REPLY);
+        reply.setCode("421");
+        reply.setText("Service not available, your host is blocked.");
+        connection.reply(reply);
+        connection.poison();
+        return;
       }
     }
 
+    //Count the connection until it is destroyed
+    if (counted) ((IntelControlConnection) connection).setHostCounter(hostCounter);
+
     //Continue as normal
     super.configure(connection);
   }
@@ -2,10 +2,19 @@ package com.coldcore.coloradoftp.plugin.intellipack.connection;
 
 import com.coldcore.coloradoftp.connection.impl.GenericDataConnection;
 import com.coldcore.coloradoftp.factory.ObjectFactory;
-import com.coldcore.coloradoftp.plugin.intellipack.util.Util;
+import com.coldcore.coloradoftp.plugin.intellipack.util.IpMatcher;
+import com.coldcore.coloradoftp.session.Session;
+import com.coldcore.coloradoftp.session.SessionAttributeName;
 import org.apache.log4j.Logger;
 
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Data connection with configurable speed (bytes per second) and timeout (seconds).
@@ -14,27 +23,117 @@ import java.nio.channels.SocketChannel;
  * this class can work with machines that have 1 or 2 network cards. One card is
  * considered for local connections and other is for remote connections. Throughtput
  * of each card is configured individualy.
+ *
+ * Speed is limited by token buckets on several tiers: all connections (global speedometer),
+ * each network card, each IP address and each user. Before every socket operation the connection
+ * reserves a chunk of bytes on every tier, waits exactly as long as the slowest tier requires
+ * and then transfers no more than the reserved amount.
+ *
+ * With a scheduler set the shared tiers (global and network card) are given to connections
+ * by weighted fair queuing instead of to whichever connection wakes up first.
  */
 public class IntelDataConnection extends GenericDataConnection {
 
   private static Logger log = Logger.getLogger(IntelDataConnection.class);
   protected long totalSpeedLocal;
   protected long totalSpeedRemote;
+  protected long totalSpeed;
+  protected long speedPerHost;
+  protected long speedPerUser;
   protected String localIpRegexp;
-  protected long lastSecondTime;
-  protected long bytesLastSec;
+  protected List<String> localIpRules;
+  protected IpMatcher<Boolean> localIpMatcher;
+  protected String ip;
   protected boolean local;
   protected int timeout;
   protected long lastActiveTime;
   protected Speedometer speedometer;
+  protected Speedometer globalSpeedometer;
+  protected List<TokenBucket> tokenBuckets;
+  protected int sharedTokenBuckets;
+  protected boolean tokenBucketsReleased;
+  protected long reserved;
+  protected TransferScheduler scheduler;
+  protected String flowKey;
+  protected String className;
+
+  /** Minimum amount of bytes to reserve at once */
+  public static final int MIN_CHUNK_SIZE = 512;
 
 
   public IntelDataConnection(int bufferSize) {
     super(bufferSize);
 
-    localIpRegexp = "192.168.*";
+    setLocalIpRegexp("192.168.*");
     lastActiveTime = System.currentTimeMillis();
-    lastSecondTime = System.currentTimeMillis();
+  }
+
+
+  /** Get max speed of all data connections
+   * @return Bytes per second
+   */
+  public long getTotalSpeed() {
+    return totalSpeed;
+  }
+
+
+  /** Set max speed of all data connections (requires global speedometer)
+   * @param totalSpeed Bytes per second
+   */
+  public void setTotalSpeed(long totalSpeed) {
+    if (totalSpeed < 0) throw new IllegalArgumentException("Negative argument");
+    this.totalSpeed = totalSpeed;
+  }
+
+
+  /** Get speedometer shared by all data connections
+   * @return Speedometer or NULL if not set
+   */
+  public Speedometer getGlobalSpeedometer() {
+    return globalSpeedometer;
+  }
+
+
+  /** Set speedometer shared by all data connections. The speedometer enforces the total speed and
+   * keeps per host and per user limits, without it those limits are kept per network card.
+   * @param globalSpeedometer Speedometer
+   */
+  public void setGlobalSpeedometer(Speedometer globalSpeedometer) {
+    this.globalSpeedometer = globalSpeedometer;
+  }
+
+
+  /** Get max speed of all data connections from one IP address
+   * @return Bytes per second
+   */
+  public long getSpeedPerHost() {
+    return speedPerHost;
+  }
+
+
+  /** Set max speed of all data connections from one IP address
+   * @param speedPerHost Bytes per second
+   */
+  public void setSpeedPerHost(long speedPerHost) {
+    if (speedPerHost < 0) throw new IllegalArgumentException("Negative argument");
+    this.speedPerHost = speedPerHost;
+  }
+
+
+  /** Get max speed of all data connections of one user
+   * @return Bytes per second
+   */
+  public long getSpeedPerUser() {
+    return speedPerUser;
+  }
+
+
+  /** Set max speed of all data connections of one user
+   * @param speedPerUser Bytes per second
+   */
+  public void setSpeedPerUser(long speedPerUser) {
+    if (speedPerUser < 0) throw new IllegalArgumentException("Negative argument");
+    this.speedPerUser = speedPerUser;
   }
 
 
@@ -86,6 +185,43 @@ public class IntelDataConnection extends GenericDataConnection {
   public void setLocalIpRegexp(String localIpRegexp) {
     if (localIpRegexp == null) throw new IllegalArgumentException("Invalid argument");
     this.localIpRegexp = localIpRegexp;
+    localIpRules = null;
+    localIpMatcher = IpMatcher.forRules(Collections.singletonList(localIpRegexp));
+  }
+
+
+  /** Get rules of IP addresses to determine connections from local hosts
+   * @return Rules or NULL if the regular expression is used instead
+   */
+  public List<String> getLocalIpRules() {
+    return localIpRules;
+  }
+
+
+  /** Set rules of IP addresses to determine connections from local hosts, this replaces
+   * the regular expression. Each rule is a network in CIDR notation, an IP address or a regular expression.
+   * @param localIpRules Rules
+   */
+  public void setLocalIpRules(List<String> localIpRules) {
+    if (localIpRules == null) throw new IllegalArgumentException("Invalid argument");
+    this.localIpRules = new ArrayList<String>(localIpRules);
+    localIpMatcher = IpMatcher.forRules(this.localIpRules);
+  }
+
+
+  /** Get scheduler of the shared speed limits
+   * @return Scheduler or NULL if not set
+   */
+  public TransferScheduler getScheduler() {
+    return scheduler;
+  }
+
+
+  /** Set scheduler of the shared speed limits (should be shared by all data connections)
+   * @param scheduler Scheduler
+   */
+  public void setScheduler(TransferScheduler scheduler) {
+    this.scheduler = scheduler;
   }
 
 
@@ -109,44 +245,174 @@ public class IntelDataConnection extends GenericDataConnection {
   public void initialize(SocketChannel channel) {
     super.initialize(channel);
 
-    String ip = channel.socket().getInetAddress().getHostAddress();
-    local = Util.checkRegExp(ip, localIpRegexp);
+    ip = channel.socket().getInetAddress().getHostAddress();
+    local = localIpMatcher.matches(ip);
     IntelDataConnection.log.debug("Local IP? "+local);
 
     speedometer = (Speedometer) ObjectFactory.getObject(
             local?"dataSpeedometer.local":"dataSpeedometer.remote");
+    speedometer.getTokenBucket().setRate(local ? totalSpeedLocal : totalSpeedRemote);
+    if (globalSpeedometer != null) globalSpeedometer.getTokenBucket().setRate(totalSpeed);
   }
 
 
-  protected void read() throws Exception {
-    if (isOverSpeed()) {
-      Thread.sleep(sleep);
-      return;
+  /** Collect token buckets limiting this connection (user is known once the connection is in use).
+   * Shared tiers go first followed by the tiers of the host and the user.
+   * @return Token buckets
+   */
+  protected synchronized List<TokenBucket> getTokenBuckets() {
+    if (tokenBuckets != null) return tokenBuckets;
+
+    Session session = controlConnection.getSession();
+    String username = (String) session.getAttribute(SessionAttributeName.USERNAME);
+
+    List<TokenBucket> list = new ArrayList<TokenBucket>();
+    Speedometer groups = globalSpeedometer == null ? speedometer : globalSpeedometer;
+    if (globalSpeedometer != null) list.add(globalSpeedometer.getTokenBucket());
+    list.add(speedometer.getTokenBucket());
+    sharedTokenBuckets = list.size();
+    if (speedPerHost > 0) list.add(groups.getTokenBucket("ip:"+ip, speedPerHost));
+    if (speedPerUser > 0 && username != null) list.add(groups.getTokenBucket("user:"+username, speedPerUser));
+
+    if (scheduler != null) {
+      flowKey = username == null ? "ip:"+ip : "user:"+username;
+      className = scheduler.getClassName(getRoles(session));
     }
 
+    tokenBuckets = list;
+    if (tokenBucketsReleased) { //Destroyed meanwhile
+      tokenBucketsReleased = false;
+      releaseTokenBuckets();
+    }
+    return list;
+  }
+
+
+  /** Get names of the user roles stored in the session
+   * @param session Session
+   * @return Role names or NULL if the session has no roles
+   */
+  protected Set<String> getRoles(Session session) {
+    Object value = session.getAttribute(SessionAttributeName.USER_ROLES);
+    if (!(value instanceof Collection)) return null;
+    Set<String> roles = new HashSet<String>();
+    for (Object role : (Collection<?>) value)
+      if (role instanceof String) roles.add((String) role);
+    return roles;
+  }
+
+
+  /** Test if any of the shared token buckets limits the traffic
+   * @return TRUE if limited, FALSE otherwise
+   */
+  protected boolean isSharedLimited() {
+    for (int z = 0; z < sharedTokenBuckets; z++)
+      if (tokenBuckets.get(z).isLimited()) return true;
+    return false;
+  }
+
+
+  protected int getTransferLimit() throws Exception {
+    int chunk = rbuffer.capacity();
+    long minRate = 0L;
+    for (TokenBucket bucket : getTokenBuckets()) {
+      long rate = bucket.getRate();
+      if (rate > 0L && (minRate == 0L || rate < minRate)) minRate = rate;
+    }
+    if (minRate == 0L) return chunk;
+
+    //Reserve about 50 milliseconds of the slowest tier to keep the traffic smooth
+    chunk = (int) Math.min(chunk, Math.max(minRate/20L, MIN_CHUNK_SIZE));
+    reserved = chunk;
+    //No turn is needed when only own tiers limit the connection
+    if (scheduler == null || !isSharedLimited()) {
+      park(reserve(0, tokenBuckets.size(), chunk));
+      return chunk;
+    }
+
+    //Pay own tiers first, then wait for a turn on the shared tiers
+    park(reserve(sharedTokenBuckets, tokenBuckets.size(), chunk));
+    Object turn = scheduler.acquire(flowKey, className, chunk, bytesRead+bytesWrote);
+    try {
+      park(reserve(0, sharedTokenBuckets, chunk));
+    } finally {
+      scheduler.release(turn);
+    }
+    return chunk;
+  }
+
+
+  /** Reserve bytes on a range of token buckets
+   * @param from Index of the first bucket
+   * @param to Index after the last bucket
+   * @param bytes Amount of bytes
+   * @return Time to wait in nanoseconds required by the slowest bucket
+   */
+  protected long reserve(int from, int to, long bytes) {
+    long wait = 0L;
+    for (int z = from; z < to; z++)
+      wait = Math.max(wait, tokenBuckets.get(z).reserve(bytes));
+    return wait;
+  }
+
+
+  /** Wait for precisely the deficit
+   * @param wait Time in nanoseconds
+   */
+  protected void park(long wait) throws InterruptedException {
+    long deadline = System.nanoTime()+wait;
+    while (wait > 0L) {
+      LockSupport.parkNanos(wait);
+      if (Thread.interrupted()) throw new InterruptedException();
+      wait = deadline-System.nanoTime();
+    }
+  }
+
+
+  /** Give back reserved bytes which were not transferred
+   * @param transferred Bytes transferred
+   */
+  protected void refund(long transferred) {
+    if (reserved == 0L) return;
+    long unused = reserved-transferred;
+    reserved = 0L;
+    if (unused > 0L)
+      for (TokenBucket bucket : tokenBuckets)
+        bucket.refund(unused);
+  }
+
+
+  protected void read() throws Exception {
     long bytes = bytesRead;
-    super.read();
+    try {
+      super.read();
+    } finally {
+      refund(bytesRead-bytes);
+    }
     long diff = bytesRead-bytes;
 
     if (diff > 0) {
       speedometer.add(diff); //Update speed
+      if (globalSpeedometer != null) globalSpeedometer.add(diff);
+      if (className != null) scheduler.addTransferred(className, diff);
       lastActiveTime = System.currentTimeMillis(); //Update last active time
     }
   }
 
 
   protected void write() throws Exception {
-    if (isOverSpeed()) {
-      Thread.sleep(sleep);
-      return;
-    }
-
     long bytes = bytesWrote;
-    super.write();
+    try {
+      super.write();
+    } finally {
+      refund(bytesWrote-bytes);
+    }
     long diff = bytesWrote-bytes;
 
     if (diff > 0) {
       speedometer.add(diff); //Update speed
+      if (globalSpeedometer != null) globalSpeedometer.add(diff);
+      if (className != null) scheduler.addTransferred(className, diff);
       lastActiveTime = System.currentTimeMillis(); //Update last active time
     }
 
@@ -154,21 +420,22 @@ public class IntelDataConnection extends GenericDataConnection {
   }
 
 
-  /** Test if total channel speed barrier is broken
-   * @return TRUE if it is broken or FALSE otherwise
-   */
-  protected boolean isOverSpeed() {
-    long currentTime = System.currentTimeMillis();
-    long transferred = bytesRead+bytesWrote;
-
-    if (currentTime > lastSecondTime+1000L) {
-      bytesLastSec = transferred;
-      lastSecondTime = currentTime;
-    }
+  /** Release group token buckets so the speedometer may remove them once idle */
+  protected void releaseTokenBuckets() {
+    if (tokenBucketsReleased) return;
+    tokenBucketsReleased = true;
+    if (tokenBuckets == null) return;
+    Speedometer groups = globalSpeedometer == null ? speedometer : globalSpeedometer;
+    for (int z = sharedTokenBuckets; z < tokenBuckets.size(); z++)
+      groups.releaseTokenBucket(tokenBuckets.get(z));
+  }
 
-    long speedLimit = local ? totalSpeedLocal : totalSpeedRemote;
 
-    return speedometer.getBytesThisSecond() > speedLimit && speedLimit > 0;
+  public synchronized void destroy() {
+    //Free the slot before the final reply so the user may open the next data connection
+    if (controlConnection != null) DataConnectionSlots.release(controlConnection.getSession());
+    releaseTokenBuckets();
+    super.destroy();
   }
 
 
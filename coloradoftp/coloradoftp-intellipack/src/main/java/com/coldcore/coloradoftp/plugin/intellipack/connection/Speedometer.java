@@ -1,36 +1,57 @@
 package com.coldcore.coloradoftp.plugin.intellipack.connection;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Contains number of bytes transferred by all connections.
  * This class reset itself every second.
+ *
+ * Speed limits are enforced by token buckets: the speedometer has its own bucket shared
+ * by all connections using it, and also keeps buckets for groups of connections (e.g. per
+ * IP address or per user) created on demand. A connection must release a group bucket once
+ * it is done with it, a group bucket is removed only when no connection uses it and it has been
+ * idle for a while.
+ *
+ * This class is thread safe.
  */
 public class Speedometer {
 
-  protected long bytesLastSecond;
-  protected long bytesTransferredSec;
-  protected long lastSecondTime;
+  protected volatile long bytesLastSecond;
+  protected AtomicLong bytesTransferredSec;
+  protected AtomicLong lastSecondTime;
+  protected TokenBucket tokenBucket;
+  protected Map<String,TokenBucket> tokenBuckets;
+  protected int maxTokenBuckets;
+  protected long tokenBucketIdleTime;
 
 
   public Speedometer() {
-    lastSecondTime = System.currentTimeMillis();
+    bytesTransferredSec = new AtomicLong();
+    lastSecondTime = new AtomicLong(System.currentTimeMillis());
+    tokenBucket = new TokenBucket(0L);
+    tokenBuckets = new HashMap<String,TokenBucket>();
+    maxTokenBuckets = 1000;
+    tokenBucketIdleTime = 60000L;
   }
 
 
   /** Test if this is a time to reset and resets */
   protected void checkTime() {
     long currentTime = System.currentTimeMillis();
-    if (currentTime > lastSecondTime+1000L) {
-      bytesLastSecond = bytesTransferredSec;
-      bytesTransferredSec = 0L;
-      lastSecondTime = currentTime;
-    }
+    long lastTime = lastSecondTime.get();
+    if (currentTime > lastTime+1000L && lastSecondTime.compareAndSet(lastTime, currentTime))
+      bytesLastSecond = bytesTransferredSec.getAndSet(0L);
   }
 
   /** Add amount of transferred bytes
    * @param amount
    */
   public void add(long amount) {
-    bytesTransferredSec += amount;
+    checkTime();
+    bytesTransferredSec.addAndGet(amount);
   }
 
 
@@ -39,7 +60,7 @@ public class Speedometer {
    */
   public long getBytesThisSecond() {
     checkTime();
-    return bytesTransferredSec;
+    return bytesTransferredSec.get();
   }
 
 
@@ -50,4 +71,73 @@ public class Speedometer {
     checkTime();
     return bytesLastSecond;
   }
+
+
+  /** Get token bucket shared by all connections using this speedometer
+   * @return Token bucket (unlimited by default)
+   */
+  public TokenBucket getTokenBucket() {
+    return tokenBucket;
+  }
+
+
+  /** Get token bucket of a group of connections, the bucket is created if it does not exist.
+   * The bucket must be released with the releaseTokenBucket method once it is not used.
+   * @param key Group key (e.g. IP address or username)
+   * @param rate Max speed of the group in bytes per second
+   * @return Token bucket
+   */
+  public TokenBucket getTokenBucket(String key, long rate) {
+    TokenBucket bucket;
+    synchronized (tokenBuckets) {
+      bucket = tokenBuckets.get(key);
+      if (bucket == null) {
+        if (tokenBuckets.size() >= maxTokenBuckets) removeIdleTokenBuckets();
+        bucket = new TokenBucket(rate);
+        tokenBuckets.put(key, bucket);
+      }
+      bucket.references++;
+    }
+    bucket.setRate(rate);
+    return bucket;
+  }
+
+
+  /** Release token bucket of a group of connections
+   * @param bucket Token bucket obtained from this speedometer
+   */
+  public void releaseTokenBucket(TokenBucket bucket) {
+    synchronized (tokenBuckets) {
+      if (bucket.references > 0) bucket.references--;
+    }
+  }
+
+
+  /** Remove group buckets which are not used by any connection and were idle for a while */
+  protected void removeIdleTokenBuckets() {
+    long time = System.currentTimeMillis()-tokenBucketIdleTime;
+    synchronized (tokenBuckets) {
+      for (Iterator<TokenBucket> it = tokenBuckets.values().iterator(); it.hasNext();) {
+        TokenBucket bucket = it.next();
+        if (bucket.references == 0 && bucket.getLastUsedTime() < time) it.remove();
+      }
+    }
+  }
+
+
+  /** Get max amount of group buckets kept before idle ones are removed
+   * @return Max buckets
+   */
+  public int getMaxTokenBuckets() {
+    return maxTokenBuckets;
+  }
+
+
+  /** Set max amount of group buckets kept before idle ones are removed
+   * @param maxTokenBuckets Max buckets
+   */
+  public void setMaxTokenBuckets(int maxTokenBuckets) {
+    if (maxTokenBuckets < 0) throw new IllegalArgumentException("Invalid argument");
+    this.maxTokenBuckets = maxTokenBuckets;
+  }
 }
@@ -0,0 +1,131 @@
+package com.coldcore.coloradoftp.plugin.intellipack.connection;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting amount of bytes per second.
+ *
+ * The bucket keeps a single value: the time (in nanoseconds) when all bytes reserved so far
+ * will have been paid for. A reservation moves this time forward with a compare-and-set and
+ * returns exactly how long the caller has to wait before transferring the reserved bytes,
+ * so there are no locks and no coarse time windows. Bytes not used after a reservation
+ * can be given back.
+ *
+ * This class is thread safe.
+ */
+public class TokenBucket {
+
+  protected volatile long rate;
+  protected volatile long burst;
+  protected AtomicLong paidUntil;
+  protected volatile long lastUsedTime;
+  protected int references; //Connections using a group bucket (guarded by speedometer)
+
+
+  /** Constructor
+   * @param rate Bytes per second, 0 for unlimited
+   */
+  public TokenBucket(long rate) {
+    if (rate < 0L) throw new IllegalArgumentException("Invalid argument");
+    this.rate = rate;
+    burst = rate/20L;
+    paidUntil = new AtomicLong(System.nanoTime());
+    lastUsedTime = System.currentTimeMillis();
+  }
+
+
+  /** Get max speed
+   * @return Bytes per second, 0 if unlimited
+   */
+  public long getRate() {
+    return rate;
+  }
+
+
+  /** Set max speed
+   * @param rate Bytes per second, 0 for unlimited
+   */
+  public void setRate(long rate) {
+    if (rate < 0L) throw new IllegalArgumentException("Invalid argument");
+    if (this.rate == rate) return;
+    this.rate = rate;
+    burst = rate/20L;
+  }
+
+
+  /** Get amount of bytes which may be transferred at once after a pause
+   * @return Bytes
+   */
+  public long getBurst() {
+    return burst;
+  }
+
+
+  /** Set amount of bytes which may be transferred at once after a pause
+   * (1/20 of the rate by default, reset when the rate changes)
+   * @param burst Bytes
+   */
+  public void setBurst(long burst) {
+    if (burst < 0L) throw new IllegalArgumentException("Invalid argument");
+    this.burst = burst;
+  }
+
+
+  /** Test if the bucket limits the speed
+   * @return TRUE if limited, FALSE if unlimited
+   */
+  public boolean isLimited() {
+    return rate > 0L;
+  }
+
+
+  /** Reserve bytes. The reservation always succeeds and the caller must wait the returned
+   * amount of time before transferring the reserved bytes.
+   * @param bytes Amount of bytes
+   * @return Time to wait in nanoseconds, 0 if the bytes may be transferred immediately
+   */
+  public long reserve(long bytes) {
+    lastUsedTime = System.currentTimeMillis();
+    long rate = this.rate;
+    if (rate <= 0L || bytes <= 0L) return 0L;
+
+    long cost = toNanos(bytes, rate);
+    long tolerance = toNanos(burst, rate);
+    while (true) {
+      long paid = paidUntil.get();
+      long now = System.nanoTime();
+      long next = Math.max(paid, now)+cost;
+      if (paidUntil.compareAndSet(paid, next)) return Math.max(0L, next-tolerance-now);
+    }
+  }
+
+
+  /** Give back bytes which were reserved but not transferred
+   * @param bytes Amount of bytes
+   */
+  public void refund(long bytes) {
+    long rate = this.rate;
+    if (rate <= 0L || bytes <= 0L) return;
+    paidUntil.addAndGet(-toNanos(bytes, rate));
+  }
+
+
+  /** Get time when the bucket was used last
+   * @return Time in milliseconds
+   */
+  public long getLastUsedTime() {
+    return lastUsedTime;
+  }
+
+
+  /** Convert bytes to time
+   * @param bytes Amount of bytes
+   * @param rate Bytes per second
+   * @return Time it takes to transfer the bytes in nanoseconds
+   */
+  protected long toNanos(long bytes, long rate) {
+    //Split to avoid overflow of large amounts
+    long seconds = bytes/rate;
+    return seconds*1000000000L+(bytes-seconds*rate)*1000000000L/rate;
+  }
+}
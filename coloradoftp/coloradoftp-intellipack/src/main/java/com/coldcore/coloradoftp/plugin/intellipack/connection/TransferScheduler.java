@@ -0,0 +1,337 @@
+package com.coldcore.coloradoftp.plugin.intellipack.connection;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Weighted fair queuing of data transfers over shared (saturated) speed limits.
+ *
+ * Data connections ask for a turn before reserving bytes on the shared token buckets, turns
+ * are given one at a time in the order of virtual finish tags (self-clocked fair queuing).
+ * A flow is a user (or an IP address if there is no user), so a user with many connections
+ * gets the same share as a user with one. Each flow belongs to a class taken from the user
+ * roles and the class weight scales its share. The first bytes of every transfer may be
+ * boosted to let short transfers finish ahead of bulk ones.
+ *
+ * Throughput and queueing delay are collected per class.
+ *
+ * This class is thread safe.
+ */
+public class TransferScheduler {
+
+  protected Map<String,Integer> classWeights;
+  protected long shortTransferSize;
+  protected int shortTransferBoost;
+  protected ReentrantLock lock;
+  protected PriorityQueue<Turn> queue;
+  protected Map<String,Flow> flows;
+  protected Turn inService;
+  protected long virtualTime;
+  protected long sequence;
+  protected Map<String,ClassStats> stats;
+
+  /** Class of flows without a weighted role */
+  public static final String DEFAULT_CLASS = "default";
+
+  /** Scale of finish tags to keep precision of small chunks with large weights */
+  protected static final long TAG_SCALE = 1000L;
+
+
+  /** Flow state */
+  protected static class Flow {
+    String key;
+    long finish;
+    int pending;
+  }
+
+
+  /** Turn of a data connection */
+  protected static class Turn implements Comparable<Turn> {
+    Flow flow;
+    long tag;
+    long seq;
+    Condition ready;
+
+    public int compareTo(Turn o) {
+      if (tag != o.tag) return tag < o.tag ? -1 : 1;
+      return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+    }
+  }
+
+
+  /** Class metrics */
+  protected static class ClassStats {
+    Speedometer speedometer = new Speedometer();
+    AtomicLong bytes = new AtomicLong();
+    AtomicLong turns = new AtomicLong();
+    AtomicLong delay = new AtomicLong();
+  }
+
+
+  public TransferScheduler() {
+    classWeights = new HashMap<String,Integer>();
+    shortTransferBoost = 4;
+    lock = new ReentrantLock();
+    queue = new PriorityQueue<Turn>();
+    flows = new HashMap<String,Flow>();
+    stats = new ConcurrentHashMap<String,ClassStats>();
+  }
+
+
+  /** Get weights of classes
+   * @return Role name to weight map
+   */
+  public Map<String,Integer> getClassWeights() {
+    return Collections.unmodifiableMap(classWeights);
+  }
+
+
+  /** Set weights of classes (roles not in the map belong to the default class with weight 1)
+   * @param classWeights Role name to weight map
+   */
+  public void setClassWeights(Map<String,Integer> classWeights) {
+    if (classWeights == null) throw new IllegalArgumentException("Invalid argument");
+    for (Integer weight : classWeights.values())
+      if (weight == null || weight < 1) throw new IllegalArgumentException("Invalid argument");
+    this.classWeights = new HashMap<String,Integer>(classWeights);
+  }
+
+
+  /** Get amount of bytes at the beginning of a transfer which are boosted
+   * @return Bytes, 0 if short transfers have no priority
+   */
+  public long getShortTransferSize() {
+    return shortTransferSize;
+  }
+
+
+  /** Set amount of bytes at the beginning of a transfer which are boosted
+   * @param shortTransferSize Bytes, 0 to give short transfers no priority
+   */
+  public void setShortTransferSize(long shortTransferSize) {
+    if (shortTransferSize < 0L) throw new IllegalArgumentException("Invalid argument");
+    this.shortTransferSize = shortTransferSize;
+  }
+
+
+  /** Get weight multiplier of short transfers
+   * @return Multiplier
+   */
+  public int getShortTransferBoost() {
+    return shortTransferBoost;
+  }
+
+
+  /** Set weight multiplier of short transfers
+   * @param shortTransferBoost Multiplier
+   */
+  public void setShortTransferBoost(int shortTransferBoost) {
+    if (shortTransferBoost < 1) throw new IllegalArgumentException("Invalid argument");
+    this.shortTransferBoost = shortTransferBoost;
+  }
+
+
+  /** Get class of a user
+   * @param roles User role names (may be NULL)
+   * @return Name of the heaviest weighted role or the default class
+   */
+  public String getClassName(Set<String> roles) {
+    String className = DEFAULT_CLASS;
+    int max = 0;
+    if (roles != null)
+      for (String role : roles) {
+        Integer weight = classWeights.get(role);
+        if (weight != null && weight > max) {
+          max = weight;
+          className = role;
+        }
+      }
+    return className;
+  }
+
+
+  /** Get weight of a class
+   * @param className Class name
+   * @return Weight
+   */
+  protected int getWeight(String className) {
+    Integer weight = classWeights.get(className);
+    return weight == null ? 1 : weight;
+  }
+
+
+  /** Wait for a turn to reserve bytes on the shared token buckets.
+   * The turn must be released as soon as the bytes are reserved and paid for.
+   * @param flowKey Flow key (username or IP address)
+   * @param className Class name
+   * @param bytes Amount of bytes to reserve
+   * @param transferred Bytes the connection transferred so far (to boost short transfers)
+   * @return Turn to release
+   */
+  public Object acquire(String flowKey, String className, long bytes, long transferred) throws InterruptedException {
+    long startTime = System.nanoTime();
+    long weight = getWeight(className);
+    if (transferred < shortTransferSize) weight *= shortTransferBoost;
+
+    Turn turn = new Turn();
+    lock.lock();
+    try {
+      Flow flow = flows.get(flowKey);
+      if (flow == null) {
+        flow = new Flow();
+        flow.key = flowKey;
+        flows.put(flowKey, flow);
+      }
+      turn.flow = flow;
+      turn.tag = Math.max(virtualTime, flow.finish)+bytes*TAG_SCALE/weight;
+      turn.seq = sequence++;
+      turn.ready = lock.newCondition();
+      flow.finish = turn.tag;
+      flow.pending++;
+      queue.add(turn);
+
+      try {
+        while (inService != null || queue.peek() != turn)
+          turn.ready.await();
+      } catch (InterruptedException e) {
+        queue.remove(turn);
+        removeIfIdle(flow);
+        signalNext();
+        throw e;
+      }
+
+      queue.poll();
+      inService = turn;
+      virtualTime = turn.tag;
+    } finally {
+      lock.unlock();
+    }
+
+    ClassStats cs = getClassStats(className);
+    cs.turns.incrementAndGet();
+    cs.delay.addAndGet(System.nanoTime()-startTime);
+    return turn;
+  }
+
+
+  /** Release a turn
+   * @param turn Turn to release
+   */
+  public void release(Object turn) {
+    Turn t = (Turn) turn;
+    lock.lock();
+    try {
+      if (inService == t) inService = null;
+      removeIfIdle(t.flow);
+      signalNext();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /** Count down pending turns of a flow and forget the flow if it has no credit left (lock must be held)
+   * @param flow Flow
+   */
+  protected void removeIfIdle(Flow flow) {
+    flow.pending--;
+    if (flow.pending == 0 && flow.finish <= virtualTime) flows.remove(flow.key);
+  }
+
+
+  /** Wake up the next turn (lock must be held) */
+  protected void signalNext() {
+    Turn next = queue.peek();
+    if (next != null && inService == null) next.ready.signal();
+  }
+
+
+  /** Add amount of bytes transferred by a class
+   * @param className Class name
+   * @param bytes Bytes
+   */
+  public void addTransferred(String className, long bytes) {
+    ClassStats cs = getClassStats(className);
+    cs.bytes.addAndGet(bytes);
+    cs.speedometer.add(bytes);
+  }
+
+
+  /** Get metrics of a class, metrics are created if they do not exist
+   * @param className Class name
+   * @return Metrics
+   */
+  protected ClassStats getClassStats(String className) {
+    ClassStats cs = stats.get(className);
+    if (cs == null) {
+      synchronized (stats) {
+        cs = stats.get(className);
+        if (cs == null) {
+          cs = new ClassStats();
+          stats.put(className, cs);
+        }
+      }
+    }
+    return cs;
+  }
+
+
+  /** Get names of classes which have metrics
+   * @return Class names
+   */
+  public Set<String> getClassNames() {
+    return Collections.unmodifiableSet(stats.keySet());
+  }
+
+
+  /** Get throughput of a class during the last second
+   * @param className Class name
+   * @return Bytes per second
+   */
+  public long getThroughput(String className) {
+    ClassStats cs = stats.get(className);
+    return cs == null ? 0L : cs.speedometer.getLastSecondBytes();
+  }
+
+
+  /** Get total amount of bytes transferred by a class
+   * @param className Class name
+   * @return Bytes
+   */
+  public long getTransferred(String className) {
+    ClassStats cs = stats.get(className);
+    return cs == null ? 0L : cs.bytes.get();
+  }
+
+
+  /** Get average time a class waits for a turn
+   * @param className Class name
+   * @return Delay in microseconds
+   */
+  public long getAverageDelay(String className) {
+    ClassStats cs = stats.get(className);
+    if (cs == null) return 0L;
+    long turns = cs.turns.get();
+    return turns == 0L ? 0L : cs.delay.get()/turns/1000L;
+  }
+
+
+  /** Get amount of connections waiting for a turn
+   * @return Queue length
+   */
+  public int getQueueLength() {
+    lock.lock();
+    try {
+      return queue.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,362 @@
+package com.coldcore.coloradoftp.plugin.intellipack.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Ordered list of IP address rules where the first matching rule wins.
+ *
+ * A rule is either a network in CIDR notation (IPv4 "10.0.0.0/8", IPv6 "fe80::/10") or a single
+ * address, or a regular expression for compatibility with older configurations. Networks are kept
+ * in compressed radix tries (one per address family) so a lookup costs O(prefix length) no matter
+ * how many networks there are. Regular expressions are compiled once and tested only if they
+ * come before the first matching network.
+ *
+ * Instances are immutable and may be shared between threads.
+ */
+public class IpMatcher<V> {
+
+  protected List<V> values;
+  protected List<Pattern> patterns;
+  protected List<Integer> patternRules;
+  protected Node ipv4;
+  protected Node ipv6;
+
+  protected static Map<List<String>,IpMatcher<Boolean>> cache = new ConcurrentHashMap<List<String>,IpMatcher<Boolean>>();
+  protected static final int MAX_CACHED = 100;
+
+
+  /** Trie node, covers a network of "length" leading bits of "key" */
+  protected static class Node {
+    byte[] key;
+    int length;
+    int rule = -1; //Lowest index of a rule with this exact network
+    Node[] children = new Node[2];
+
+    Node(byte[] key, int length) {
+      this.key = key;
+      this.length = length;
+    }
+  }
+
+
+  /** Constructor
+   * @param rules Rules and their values in the order of precedence (use LinkedHashMap)
+   */
+  public IpMatcher(Map<String,V> rules) {
+    values = new ArrayList<V>();
+    patterns = new ArrayList<Pattern>();
+    patternRules = new ArrayList<Integer>();
+    ipv4 = new Node(new byte[4], 0);
+    ipv6 = new Node(new byte[16], 0);
+
+    for (Map.Entry<String,V> entry : rules.entrySet()) {
+      int index = values.size();
+      values.add(entry.getValue());
+      String rule = entry.getKey().trim();
+
+      byte[] network = parseNetwork(rule);
+      if (network == null) {
+        patterns.add(Pattern.compile(rule));
+        patternRules.add(index);
+      } else {
+        int length = network[network.length-1] & 0xff;
+        byte[] key = new byte[network.length-1];
+        System.arraycopy(network, 0, key, 0, key.length);
+        insert(key.length == 4 ? ipv4 : ipv6, mask(key, length), length, index);
+      }
+    }
+  }
+
+
+  /** Get a shared matcher of rules which all have TRUE value
+   * @param rules Rules in the order of precedence
+   * @return Matcher
+   */
+  public static IpMatcher<Boolean> forRules(Collection<String> rules) {
+    List<String> key = new ArrayList<String>(rules); //Copy, the rules may change later
+    IpMatcher<Boolean> matcher = cache.get(key);
+    if (matcher == null) {
+      Map<String,Boolean> map = new LinkedHashMap<String,Boolean>();
+      for (String rule : rules)
+        map.put(rule, true);
+      matcher = new IpMatcher<Boolean>(map);
+      if (cache.size() >= MAX_CACHED) cache.clear();
+      cache.put(key, matcher);
+    }
+    return matcher;
+  }
+
+
+  /** Get value of the first rule matching an address
+   * @param ip IP address
+   * @return Value or NULL if no rule matches
+   */
+  public V match(String ip) {
+    int best = Integer.MAX_VALUE;
+    byte[] address = parseAddress(ip);
+    if (address != null) best = lookup(address.length == 4 ? ipv4 : ipv6, address);
+
+    for (int z = 0; z < patterns.size(); z++) {
+      int index = patternRules.get(z);
+      if (index >= best) break;
+      if (patterns.get(z).matcher(ip).matches()) {
+        best = index;
+        break;
+      }
+    }
+
+    return best == Integer.MAX_VALUE ? null : values.get(best);
+  }
+
+
+  /** Test if any rule matches an address
+   * @param ip IP address
+   * @return TRUE if there is a matching rule, FALSE otherwise
+   */
+  public boolean matches(String ip) {
+    return match(ip) != null;
+  }
+
+
+  /** Add a network to a trie
+   * @param root Trie root
+   * @param key Network address (masked)
+   * @param length Prefix length in bits
+   * @param rule Rule index
+   */
+  protected void insert(Node root, byte[] key, int length, int rule) {
+    Node node = root;
+    while (true) {
+      if (length == node.length) {
+        if (node.rule < 0 || rule < node.rule) node.rule = rule;
+        return;
+      }
+
+      int b = bit(key, node.length);
+      Node child = node.children[b];
+      if (child == null) {
+        Node leaf = new Node(key, length);
+        leaf.rule = rule;
+        node.children[b] = leaf;
+        return;
+      }
+
+      int common = commonLength(key, child.key, Math.min(length, child.length));
+      if (common == child.length) {
+        node = child;
+        continue;
+      }
+
+      //Split the edge to the child
+      Node middle = new Node(mask(key, common), common);
+      node.children[b] = middle;
+      middle.children[bit(child.key, common)] = child;
+      if (common == length) middle.rule = rule;
+      else {
+        Node leaf = new Node(key, length);
+        leaf.rule = rule;
+        middle.children[bit(key, common)] = leaf;
+      }
+      return;
+    }
+  }
+
+
+  /** Find the lowest index of a rule which network contains an address
+   * @param root Trie root
+   * @param address Address
+   * @return Rule index or Integer.MAX_VALUE if not found
+   */
+  protected int lookup(Node root, byte[] address) {
+    int best = Integer.MAX_VALUE;
+    int checked = 0;
+    Node node = root;
+    while (node != null) {
+      if (commonLength(address, node.key, node.length, checked) < node.length) break;
+      checked = node.length;
+      if (node.rule >= 0 && node.rule < best) best = node.rule;
+      if (node.length == address.length*8) break;
+      node = node.children[bit(address, node.length)];
+    }
+    return best;
+  }
+
+
+  /** Get a bit of an address
+   * @param key Address
+   * @param index Bit index (0 is the highest bit)
+   * @return 0 or 1
+   */
+  protected static int bit(byte[] key, int index) {
+    return (key[index >> 3] >> (7-(index & 7))) & 1;
+  }
+
+
+  /** Count leading bits two addresses have in common
+   * @param a First address
+   * @param b Second address
+   * @param max Max bits to compare
+   * @return Common bits
+   */
+  protected static int commonLength(byte[] a, byte[] b, int max) {
+    return commonLength(a, b, max, 0);
+  }
+
+
+  /** Count leading bits two addresses have in common
+   * @param a First address
+   * @param b Second address
+   * @param max Max bits to compare
+   * @param from Bits known to be common already
+   * @return Common bits
+   */
+  protected static int commonLength(byte[] a, byte[] b, int max, int from) {
+    int z = from;
+    while (z < max && (z & 7) != 0) {
+      if (bit(a, z) != bit(b, z)) return z;
+      z++;
+    }
+    while (z+8 <= max && a[z >> 3] == b[z >> 3]) z += 8;
+    while (z < max && bit(a, z) == bit(b, z)) z++;
+    return z;
+  }
+
+
+  /** Clear bits beyond a prefix
+   * @param key Address
+   * @param length Prefix length in bits
+   * @return Masked copy of the address
+   */
+  protected static byte[] mask(byte[] key, int length) {
+    byte[] masked = new byte[key.length];
+    for (int z = 0; z < key.length; z++) {
+      int bits = Math.max(0, Math.min(8, length-z*8));
+      masked[z] = (byte) (key[z] & (0xff << (8-bits)));
+    }
+    return masked;
+  }
+
+
+  /** Parse a network in CIDR notation or a single address
+   * @param rule Rule
+   * @return Address bytes followed by a prefix length byte or NULL if the rule is not a network
+   */
+  public static byte[] parseNetwork(String rule) {
+    String addr = rule;
+    int length = -1;
+    int slash = rule.indexOf('/');
+    if (slash != -1) {
+      addr = rule.substring(0, slash);
+      try {
+        length = Integer.parseInt(rule.substring(slash+1));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    byte[] address = parseAddress(addr);
+    if (address == null) return null;
+    if (length == -1) length = address.length*8;
+    if (length < 0 || length > address.length*8) return null;
+
+    byte[] network = new byte[address.length+1];
+    System.arraycopy(address, 0, network, 0, address.length);
+    network[address.length] = (byte) length;
+    return network;
+  }
+
+
+  /** Parse an IPv4 or IPv6 address literal (never resolves host names)
+   * @param ip Address
+   * @return 4 or 16 bytes or NULL if not an address literal
+   */
+  public static byte[] parseAddress(String ip) {
+    if (ip == null) return null;
+    int scope = ip.indexOf('%');
+    if (scope != -1) ip = ip.substring(0, scope);
+    if (ip.indexOf(':') == -1) return parseIpv4(ip);
+
+    String head = ip;
+    String tail = null;
+    int gap = ip.indexOf("::");
+    if (gap != -1) {
+      if (ip.indexOf("::", gap+1) != -1) return null;
+      head = ip.substring(0, gap);
+      tail = ip.substring(gap+2);
+    }
+
+    List<Integer> groups = new ArrayList<Integer>();
+    if (!parseGroups(head, groups)) return null;
+    int headSize = groups.size();
+    if (tail != null && !parseGroups(tail, groups)) return null;
+    int tailSize = groups.size()-headSize;
+    if (gap == -1 ? groups.size() != 8 : groups.size() > 7) return null;
+
+    byte[] address = new byte[16];
+    for (int z = 0; z < headSize; z++) {
+      address[z*2] = (byte) (groups.get(z) >> 8);
+      address[z*2+1] = (byte) (int) groups.get(z);
+    }
+    for (int z = 0; z < tailSize; z++) {
+      int pos = 8-tailSize+z;
+      address[pos*2] = (byte) (groups.get(headSize+z) >> 8);
+      address[pos*2+1] = (byte) (int) groups.get(headSize+z);
+    }
+    return address;
+  }
+
+
+  /** Parse IPv6 groups separated by colons (the last one may be an IPv4 address)
+   * @param s Groups
+   * @param groups List to add the 16 bit groups to
+   * @return TRUE if parsed, FALSE otherwise
+   */
+  protected static boolean parseGroups(String s, List<Integer> groups) {
+    if (s.length() == 0) return true;
+    String[] parts = s.split(":", -1);
+    for (int z = 0; z < parts.length; z++) {
+      String part = parts[z];
+      if (z == parts.length-1 && part.indexOf('.') != -1) {
+        byte[] ipv4 = parseIpv4(part);
+        if (ipv4 == null) return false;
+        groups.add(((ipv4[0] & 0xff) << 8) | (ipv4[1] & 0xff));
+        groups.add(((ipv4[2] & 0xff) << 8) | (ipv4[3] & 0xff));
+        continue;
+      }
+      if (part.length() == 0 || part.length() > 4) return false;
+      try {
+        groups.add(Integer.parseInt(part, 16));
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  /** Parse a dotted IPv4 address
+   * @param ip Address
+   * @return 4 bytes or NULL if not an address
+   */
+  protected static byte[] parseIpv4(String ip) {
+    String[] parts = ip.split("\\.", -1);
+    if (parts.length != 4) return null;
+    byte[] address = new byte[4];
+    for (int z = 0; z < 4; z++) {
+      String part = parts[z];
+      if (part.length() == 0 || part.length() > 3) return null;
+      for (int i = 0; i < part.length(); i++)
+        if (part.charAt(i) < '0' || part.charAt(i) > '9') return null;
+      int value = Integer.parseInt(part);
+      if (value > 255) return null;
+      address[z] = (byte) value;
+    }
+    return address;
+  }
+}
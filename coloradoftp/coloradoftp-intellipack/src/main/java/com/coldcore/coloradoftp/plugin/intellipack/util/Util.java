@@ -1,5 +1,7 @@
 package com.coldcore.coloradoftp.plugin.intellipack.util;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -8,12 +10,21 @@ import java.util.regex.Pattern;
  */
 public class Util {
 
+  private static Map<String,Pattern> patterns = new ConcurrentHashMap<String,Pattern>();
+  private static final int MAX_PATTERNS = 100;
+
+
   /** Check syntax
    *  @param str String to check
-   *  @param regexp Regular expression that defines syntax rules
+   *  @param regexp Regular expression that defines syntax rules (compiled once)
    */
   public static boolean checkRegExp(String str, String regexp) {
-    Pattern pattern = Pattern.compile(regexp);
+    Pattern pattern = patterns.get(regexp);
+    if (pattern == null) {
+      pattern = Pattern.compile(regexp);
+      if (patterns.size() >= MAX_PATTERNS) patterns.clear();
+      patterns.put(regexp, pattern);
+    }
     Matcher matcher = pattern.matcher(str);
     return matcher.matches();
   }
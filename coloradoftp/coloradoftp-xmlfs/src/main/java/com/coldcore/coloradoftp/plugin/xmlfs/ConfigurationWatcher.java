@@ -0,0 +1,81 @@
+package com.coldcore.coloradoftp.plugin.xmlfs;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+
+/**
+ * Watches the configuration file and reloads XmlFS when the file changes.
+ *
+ * The file modification time is checked periodically. If the new configuration cannot be
+ * parsed then the error is logged and the current configuration stays in use.
+ */
+public class ConfigurationWatcher implements Runnable {
+
+  private static Logger log = Logger.getLogger(ConfigurationWatcher.class);
+  protected XmlFS xmlFS;
+  protected File file;
+  protected long interval;
+  protected long lastModified;
+  protected volatile boolean running;
+  protected Thread thr;
+
+
+  /** Constructor
+   * @param xmlFS XmlFS to reload
+   * @param file Configuration file
+   * @param interval Time in milliseconds between checks
+   */
+  public ConfigurationWatcher(XmlFS xmlFS, File file, long interval) {
+    if (interval <= 0L) throw new IllegalArgumentException("Invalid interval");
+    this.xmlFS = xmlFS;
+    this.file = file;
+    this.interval = interval;
+    lastModified = file.lastModified();
+  }
+
+
+  /** Start watching */
+  public synchronized void start() {
+    if (running) return;
+    running = true;
+    thr = new Thread(this, "XmlFS configuration watcher");
+    thr.setDaemon(true);
+    thr.start();
+  }
+
+
+  /** Stop watching */
+  public synchronized void stop() {
+    running = false;
+    if (thr != null) thr.interrupt();
+    thr = null;
+  }
+
+
+  public boolean isRunning() {
+    return running;
+  }
+
+
+  public void run() {
+    while (running) {
+      try {
+        Thread.sleep(interval);
+      } catch (InterruptedException e) {
+        continue;
+      }
+
+      long modified = file.lastModified();
+      if (modified == lastModified || modified == 0L) continue;
+
+      //Retry on the next check if the file cannot be loaded (it may be still being written)
+      try {
+        xmlFS.reload();
+        lastModified = modified;
+      } catch (Throwable e) {
+        log.error("Cannot reload configuration, current configuration stays in use: "+file.getAbsolutePath(), e);
+      }
+    }
+  }
+}
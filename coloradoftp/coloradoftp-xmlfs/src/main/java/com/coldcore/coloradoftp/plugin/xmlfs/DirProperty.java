@@ -1,9 +1,9 @@
 package com.coldcore.coloradoftp.plugin.xmlfs;
 
-import com.coldcore.misc5.Syntax;
 import com.coldcore.coloradoftp.plugin.xmlfs.adapter.FileAdapter;
 import org.apache.log4j.Logger;
 
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -20,7 +20,7 @@ import java.util.Map;
  * This class works with real paths, not virtual.
  *
  * This class is thread safe if all its maps are initialized once with all regular expressions
- * and not modified later.
+ * and not modified later. Regular expressions are compiled when added (see RuleMatcher).
  */
 public class DirProperty {
 
@@ -40,6 +40,7 @@ public class DirProperty {
   protected Map<String,Boolean> appendFileRegexp;
   protected Map<String,Boolean> overwriteFileRegexp;
   protected FileAdapter fileAdapter;
+  protected Map<Map<String,Boolean>,RuleMatcher> matchers;
 
 
   public DirProperty(FileAdapter fileAdapter) {
@@ -57,6 +58,29 @@ public class DirProperty {
     deleteFileRegexp = new LinkedHashMap<String,Boolean>();
     appendFileRegexp = new LinkedHashMap<String,Boolean>();
     overwriteFileRegexp = new LinkedHashMap<String,Boolean>();
+    matchers = new IdentityHashMap<Map<String,Boolean>,RuleMatcher>();
+
+    //Maps without expressions match nothing
+    compile(accessFolderRegexp);
+    compile(accessFileRegexp);
+    compile(listFolderRegexp);
+    compile(listFileRegexp);
+    compile(createFolderRegexp);
+    compile(createFileRegexp);
+    compile(renameFolderRegexp);
+    compile(renameFileRegexp);
+    compile(deleteFolderRegexp);
+    compile(deleteFileRegexp);
+    compile(appendFileRegexp);
+    compile(overwriteFileRegexp);
+  }
+
+
+  /** Compile expressions of a map after the map was changed
+   * @param regexps Map with regular expressions and YES/NO values
+   */
+  protected void compile(Map<String,Boolean> regexps) {
+    matchers.put(regexps, new RuleMatcher(regexps));
   }
 
 
@@ -65,6 +89,7 @@ public class DirProperty {
    */
   public void addAccessFolderRegexp(Map<String,Boolean> map) {
     accessFolderRegexp.putAll(map);
+    compile(accessFolderRegexp);
   }
 
 
@@ -73,6 +98,7 @@ public class DirProperty {
    */
   public void addAccessFileRegexp(Map<String,Boolean> map) {
     accessFileRegexp.putAll(map);
+    compile(accessFileRegexp);
   }
 
 
@@ -81,6 +107,7 @@ public class DirProperty {
    */
   public void addListFolderRegexp(Map<String,Boolean> map) {
     listFolderRegexp.putAll(map);
+    compile(listFolderRegexp);
   }
 
 
@@ -89,6 +116,7 @@ public class DirProperty {
    */
   public void addListFileRegexp(Map<String,Boolean> map) {
     listFileRegexp.putAll(map);
+    compile(listFileRegexp);
   }
 
 
@@ -97,6 +125,7 @@ public class DirProperty {
    */
   public void addCreateFolderRegexp(Map<String,Boolean> map) {
     createFolderRegexp.putAll(map);
+    compile(createFolderRegexp);
   }
 
 
@@ -105,6 +134,7 @@ public class DirProperty {
    */
   public void addCreateFileRegexp(Map<String,Boolean> map) {
     createFileRegexp.putAll(map);
+    compile(createFileRegexp);
   }
 
 
@@ -113,6 +143,7 @@ public class DirProperty {
    */
   public void addRenameFolderRegexp(Map<String,Boolean> map) {
     renameFolderRegexp.putAll(map);
+    compile(renameFolderRegexp);
   }
 
 
@@ -121,6 +152,7 @@ public class DirProperty {
    */
   public void addRenameFileRegexp(Map<String,Boolean> map) {
     renameFileRegexp.putAll(map);
+    compile(renameFileRegexp);
   }
 
 
@@ -129,6 +161,7 @@ public class DirProperty {
    */
   public void addDeleteFolderRegexp(Map<String,Boolean> map) {
     deleteFolderRegexp.putAll(map);
+    compile(deleteFolderRegexp);
   }
 
 
@@ -137,6 +170,7 @@ public class DirProperty {
    */
   public void addDeleteFileRegexp(Map<String,Boolean> map) {
     deleteFileRegexp.putAll(map);
+    compile(deleteFileRegexp);
   }
 
 
@@ -145,6 +179,7 @@ public class DirProperty {
    */
   public void addAppendFileRegexp(Map<String,Boolean> map) {
     appendFileRegexp.putAll(map);
+    compile(appendFileRegexp);
   }
 
 
@@ -153,6 +188,7 @@ public class DirProperty {
    */
   public void addOverwriteFileRegexp(Map<String,Boolean> map) {
     overwriteFileRegexp.putAll(map);
+    compile(overwriteFileRegexp);
   }
 
 
@@ -334,10 +370,14 @@ public class DirProperty {
   /** Test if folder/file name is allowed (in directory content).
    * This method checks a file name ot the name of a last folder.
    * @param absName Directory or file name (absolute form, real path on a hard drive, proper format)
-   * @param regexps Map with regular expressions and YES/NO values to check against
+   * @param regexps Map with regular expressions and YES/NO values to check against (one of the maps
+   *                of this object, their expressions are compiled in advance)
    * @return "ALLOW" result if allowed (or cannot be determined), "FORBID" result otherwise
    */
   public RegexpActionResult isAllowed(String absName, Map<String,Boolean> regexps) {
+    RuleMatcher matcher = matchers.get(regexps);
+    if (matcher == null) throw new IllegalArgumentException("Not a map of this directory property");
+
     //Relative name to this directory
     String relName = getRelativeName(absName);
 
@@ -357,15 +397,13 @@ public class DirProperty {
     name = name.toLowerCase();
 
     //Check the name (till the first match of regexp with folder or file name)
-    for (String regexp : regexps.keySet()) {
-      boolean allow = regexps.get(regexp);
-      if (Syntax.check(name, regexp)) {
-        log.debug("Regexp ["+regexp+"] matches file/folder ["+name+"], allows ["+allow+"]");
-        return allow ? RegexpActionResult.ALLOW_MATCH : RegexpActionResult.FORBID_MATCH;
-      }
-    }
+    int index = matcher.find(name);
 
     //No match
-    return RegexpActionResult.ALLOW_NO_MATCH;
+    if (index == -1) return RegexpActionResult.ALLOW_NO_MATCH;
+
+    boolean allow = matcher.isAllowed(index);
+    log.debug("Regexp ["+matcher.getRegexp(index)+"] matches file/folder ["+name+"], allows ["+allow+"]");
+    return allow ? RegexpActionResult.ALLOW_MATCH : RegexpActionResult.FORBID_MATCH;
   }
 }
\ No newline at end of file
@@ -0,0 +1,108 @@
+package com.coldcore.coloradoftp.plugin.xmlfs;
+
+import com.coldcore.coloradoftp.plugin.xmlfs.adapter.FileAdapter;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of directory properties of a user home (including its virtual folders).
+ *
+ * Properties are stored in a tree of path segments, so the properties of the closest configured
+ * directory are found in as many steps as there are segments in a path. Results are also cached
+ * per directory as a directory listing asks for the same directory many times in a row. Cached
+ * results are read only and shared, so lookups of different users do not block each other.
+ *
+ * This class is thread safe. The index does not follow changes made to the user home after
+ * it was built.
+ */
+public class DirPropertyIndex {
+
+  protected Node root;
+  protected String separator;
+  protected Map<String,Set<DirProperty>> cache;
+  protected int cacheSize;
+
+  /** Cached result of a directory which is not configured */
+  protected static final Set<DirProperty> NONE = Collections.emptySet();
+
+
+  /** Tree node, one per path segment */
+  protected static class Node {
+    Map<String,Node> children = new HashMap<String,Node>();
+    Set<DirProperty> properties;
+    Set<DirProperty> readOnly;
+  }
+
+
+  /** Constructor
+   * @param home User home to index
+   * @param fileAdapter File adapter
+   */
+  public DirPropertyIndex(UserHome home, FileAdapter fileAdapter) {
+    separator = fileAdapter.getSeparator();
+    root = new Node();
+    cacheSize = 256;
+    cache = new ConcurrentHashMap<String,Set<DirProperty>>();
+
+    //Same order as the properties were configured, user home first
+    for (DirProperty dp : home.getProperties())
+      add(dp);
+    for (VirtualFolder folder : home.getVirtualFolders())
+      for (DirProperty dp : folder.getProperties())
+        add(dp);
+  }
+
+
+  /** Add directory properties to the tree
+   * @param dp Directory properties
+   */
+  protected void add(DirProperty dp) {
+    Node node = root;
+    StringTokenizer st = new StringTokenizer(dp.getDirectory(), separator);
+    while (st.hasMoreTokens()) {
+      String segment = st.nextToken();
+      Node child = node.children.get(segment);
+      if (child == null) {
+        child = new Node();
+        node.children.put(segment, child);
+      }
+      node = child;
+    }
+
+    if (node.properties == null) {
+      node.properties = new LinkedHashSet<DirProperty>();
+      node.readOnly = Collections.unmodifiableSet(node.properties);
+    }
+    node.properties.add(dp);
+  }
+
+
+  /** Find properties of the closest configured directory
+   * @param dirname Directory path on a hard drive (absolute form, proper format)
+   * @return Directory properties (read only!) or NULL if not configured
+   */
+  public Set<DirProperty> findClosest(String dirname) {
+    Set<DirProperty> cached = cache.get(dirname);
+    if (cached != null) return cached == NONE ? null : cached;
+
+    Set<DirProperty> properties = root.readOnly;
+    Node node = root;
+    StringTokenizer st = new StringTokenizer(dirname, separator);
+    while (st.hasMoreTokens()) {
+      node = node.children.get(st.nextToken());
+      if (node == null) break;
+      if (node.readOnly != null) properties = node.readOnly;
+    }
+
+    //Start over when full, a listing fills the cache with its directory again at once
+    if (cache.size() >= cacheSize) cache.clear();
+    cache.put(dirname, properties == null ? NONE : properties);
+    return properties;
+  }
+}
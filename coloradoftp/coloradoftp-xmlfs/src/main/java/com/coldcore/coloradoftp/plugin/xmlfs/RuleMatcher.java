@@ -0,0 +1,106 @@
+package com.coldcore.coloradoftp.plugin.xmlfs;
+
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Ordered set of regular expressions compiled into a single pattern.
+ *
+ * Every expression becomes an alternative of one pattern, alternatives are tried in order,
+ * so a single pass finds the first expression that matches. Expressions with back references
+ * cannot be joined as their group numbers would change, such sets (and sets which fail to compile
+ * when joined, e.g. an expression ending inside a \Q quote) are compiled into separate patterns
+ * and tested one by one.
+ *
+ * This class is immutable and thread safe.
+ */
+public class RuleMatcher {
+
+  private String[] regexps;
+  private boolean[] allows;
+  private Pattern pattern;
+  private int[] groups;
+  private Pattern[] patterns;
+
+
+  /** Constructor
+   * @param rules Ordered regular expressions and YES/NO values
+   */
+  public RuleMatcher(Map<String,Boolean> rules) {
+    int size = rules.size();
+    regexps = new String[size];
+    allows = new boolean[size];
+    patterns = new Pattern[size];
+
+    boolean joinable = true;
+    int z = 0;
+    for (String regexp : rules.keySet()) {
+      regexps[z] = regexp;
+      allows[z] = rules.get(regexp);
+      patterns[z] = Pattern.compile(regexp);
+      if (regexp.matches(".*\\\\([1-9]|k<).*")) joinable = false;
+      z++;
+    }
+
+    if (joinable && size > 1) {
+      /* (r1)|(r2)|(r3) where each expression is wrapped into a group, remember the wrapping
+       * group numbers as each expression may contain its own groups
+       */
+      int[] groups = new int[size];
+      StringBuffer sb = new StringBuffer();
+      int group = 1;
+      for (z = 0; z < size; z++) {
+        if (z > 0) sb.append("|");
+        sb.append("(").append(regexps[z]).append(")");
+        groups[z] = group;
+        group += 1+patterns[z].matcher("").groupCount();
+      }
+      try {
+        pattern = Pattern.compile(sb.toString());
+        this.groups = groups;
+        patterns = null;
+      } catch (PatternSyntaxException e) {
+        //Valid expressions which cannot be joined, keep the separate patterns
+      }
+    }
+  }
+
+
+  /** Find the first expression matching a string
+   * @param str String to test
+   * @return Index of the first matching expression or -1 if none matches
+   */
+  public int find(String str) {
+    if (pattern != null) {
+      Matcher matcher = pattern.matcher(str);
+      if (!matcher.matches()) return -1;
+      for (int z = 0; z < groups.length; z++)
+        if (matcher.start(groups[z]) != -1) return z;
+      return -1;
+    }
+
+    for (int z = 0; z < patterns.length; z++)
+      if (patterns[z].matcher(str).matches()) return z;
+    return -1;
+  }
+
+
+  /** Get expression
+   * @param index Expression index
+   * @return Regular expression
+   */
+  public String getRegexp(int index) {
+    return regexps[index];
+  }
+
+
+  /** Test if an expression allows an action
+   * @param index Expression index
+   * @return TRUE if allows, FALSE if forbids
+   */
+  public boolean isAllowed(int index) {
+    return allows[index];
+  }
+}
@@ -0,0 +1,76 @@
+package com.coldcore.coloradoftp.plugin.xmlfs;
+
+import com.coldcore.misc5.Syntax;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures time to check names against directory property rules.
+ *
+ * Compares RuleMatcher (expressions compiled once) with Syntax.check for every rule (the way
+ * rules were checked before, an expression is compiled on every call). Run with the amount of
+ * checks and an optional amount of rules:
+ * java RuleMatcherBenchmark 1000000 10
+ * Names are tested against all rules and most of them match none, which is the worst case of
+ * a listing of a directory with a few forbidden file types.
+ */
+public class RuleMatcherBenchmark {
+
+  public static void main(String[] args) {
+    int checks = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int size = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+    Map<String,Boolean> rules = new LinkedHashMap<String,Boolean>();
+    for (int z = 0; z < size; z++)
+      rules.put(".*\\.ext"+z, z%2 == 0);
+    String[] names = new String[100];
+    for (int z = 0; z < names.length; z++)
+      names[z] = "file"+z+(z%10 == 0 ? ".ext"+(z%size) : ".txt");
+
+    RuleMatcher matcher = new RuleMatcher(rules);
+    for (int z = 0; z < 5; z++) {
+      long separate = separate(rules, names, checks);
+      long compiled = compiled(matcher, names, checks);
+      System.out.println("Pass "+(z+1)+": "+checks+" checks, "+size+" rules, Syntax.check "+separate+" ms, RuleMatcher "+compiled+" ms");
+    }
+  }
+
+
+  /** Check names with Syntax.check for every rule
+   * @param rules Rules
+   * @param names Names
+   * @param checks Amount of checks
+   * @return Time in milliseconds
+   */
+  protected static long separate(Map<String,Boolean> rules, String[] names, int checks) {
+    long start = System.currentTimeMillis();
+    int found = 0;
+    for (int z = 0; z < checks; z++) {
+      String name = names[z%names.length];
+      for (String regexp : rules.keySet())
+        if (Syntax.check(name, regexp)) {
+          found++;
+          break;
+        }
+    }
+    if (found == -1) System.out.println(); //Keep the result alive
+    return System.currentTimeMillis()-start;
+  }
+
+
+  /** Check names with a matcher
+   * @param matcher Matcher
+   * @param names Names
+   * @param checks Amount of checks
+   * @return Time in milliseconds
+   */
+  protected static long compiled(RuleMatcher matcher, String[] names, int checks) {
+    long start = System.currentTimeMillis();
+    int found = 0;
+    for (int z = 0; z < checks; z++)
+      if (matcher.find(names[z%names.length]) != -1) found++;
+    if (found == -1) System.out.println(); //Keep the result alive
+    return System.currentTimeMillis()-start;
+  }
+}
@@ -2,8 +2,10 @@ package com.coldcore.coloradoftp.plugin.xmlfs;
 
 import com.coldcore.coloradoftp.plugin.xmlfs.adapter.FileAdapter;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -15,6 +17,8 @@ public class UserHome {
 
   protected Set<DirProperty> properties;
   protected Set<VirtualFolder> folders;
+  protected Map<String,VirtualFolder> folderIndex;
+  protected DirPropertyIndex propertyIndex;
   protected String path;
   protected FileAdapter fileAdapter;
 
@@ -24,14 +28,16 @@ public class UserHome {
     this.fileAdapter = fileAdapter;
     properties = new LinkedHashSet<DirProperty>();
     folders = new HashSet<VirtualFolder>();
+    folderIndex = new HashMap<String,VirtualFolder>();
   }
 
 
   /** Add directory properties
    * @param set Directory properties
    */
-  public void addProperties(Set<DirProperty> set) {
+  public synchronized void addProperties(Set<DirProperty> set) {
     properties.addAll(set);
+    propertyIndex = null;
   }
 
 
@@ -46,8 +52,20 @@ public class UserHome {
   /** Add virtual folders
    * @param set Virtual folders
    */
-  public void addFolders(Set<VirtualFolder> set) {
+  public synchronized void addFolders(Set<VirtualFolder> set) {
     folders.addAll(set);
+    for (VirtualFolder folder : set)
+      folderIndex.put(folder.getName(), folder);
+    propertyIndex = null;
+  }
+
+
+  /** Get index of directory properties of this home and its virtual folders
+   * @return Index (built on first call after the properties or virtual folders change)
+   */
+  public synchronized DirPropertyIndex getPropertyIndex() {
+    if (propertyIndex == null) propertyIndex = new DirPropertyIndex(this, fileAdapter);
+    return propertyIndex;
   }
 
 
@@ -73,9 +91,7 @@ public class UserHome {
    * @return Virtual folder or NULL
    */
   public VirtualFolder getVirtualFolder(String name) {
-    for (VirtualFolder folder : folders)
-      if (folder.getName().equals(name)) return folder;
-    return null;
+    return folderIndex.get(name);
   }
 
 
@@ -0,0 +1,183 @@
+package com.coldcore.coloradoftp.plugin.xmlfs;
+
+import com.coldcore.coloradoftp.plugin.xmlfs.parser.ConfigurationParser;
+import com.coldcore.coloradoftp.plugin.xmlfs.source.UserSource;
+import org.apache.log4j.Logger;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Users loaded from one version of the configuration.
+ *
+ * A snapshot is never modified after it is created, so any amount of threads may read it
+ * without locking. When the configuration changes a new snapshot replaces the old one, while
+ * operations which started with the old snapshot finish with it.
+ *
+ * A lazy snapshot does not hold all users, it creates a user on the first request (from a user
+ * source or from the configuration, where the default user is a template for users not listed)
+ * and keeps a bounded amount of recently used users. Lazy snapshot locks its cache briefly.
+ */
+public class UsersSnapshot {
+
+  private static Logger log = Logger.getLogger(UsersSnapshot.class);
+  private Set<User> users;
+  private Map<String,User> index;
+  private User defaultUser;
+  private long created;
+  private UserSource source;
+  private ConfigurationParser parser;
+
+
+  /** Constructor
+   * @param users Users (must not be modified later)
+   */
+  public UsersSnapshot(Set<User> users) {
+    this.users = Collections.unmodifiableSet(users);
+    created = System.currentTimeMillis();
+
+    //Index users by case folded username
+    index = new HashMap<String,User>();
+    for (User user : users) {
+      String key = foldUsername(user.getUsername());
+      if (key != null && !index.containsKey(key)) index.put(key, user);
+      if (user.isDefault() && defaultUser == null) defaultUser = user;
+    }
+
+    //Index directory properties now rather than on the first request
+    for (User user : users)
+      user.getHome().getPropertyIndex();
+  }
+
+
+  /** Constructor of a lazy snapshot
+   * @param source Source of users (NULL to create users from the configuration only)
+   * @param parser Parser of the configuration (must not be initialized again)
+   * @param maxUsers Max amount of users to keep
+   */
+  public UsersSnapshot(UserSource source, ConfigurationParser parser, final int maxUsers) {
+    if (parser == null || maxUsers < 1) throw new IllegalArgumentException("Invalid argument");
+    this.source = source;
+    this.parser = parser;
+    created = System.currentTimeMillis();
+
+    //Least recently used users are dropped
+    index = new LinkedHashMap<String,User>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String,User> eldest) {
+        return size() > maxUsers;
+      }
+    };
+  }
+
+
+  /** Test if this snapshot creates users on demand
+   * @return TRUE if lazy, FALSE if all users are loaded
+   */
+  public boolean isLazy() {
+    return parser != null;
+  }
+
+
+  /** Convert username to the form used as a key in the users index
+   * @param username Username
+   * @return Case folded username or NULL
+   */
+  public static String foldUsername(String username) {
+    return username == null ? null : username.toLowerCase(Locale.ENGLISH);
+  }
+
+
+  /** Test if a username may name a home directory or a file (users created on demand only)
+   * @param username Username
+   * @return TRUE if it may, FALSE otherwise
+   */
+  public static boolean isSafeUsername(String username) {
+    if (username == null || username.length() == 0 || username.startsWith(".")) return false;
+    for (int z = 0; z < username.length(); z++) {
+      char c = username.charAt(z);
+      if (c == '/' || c == '\\' || c == ':' || c < ' ') return false;
+    }
+    return true;
+  }
+
+
+  /** Find user (by username, not case sensitive)
+   * @param username Username
+   * @return User object (or default user object) or NULL if user not found
+   */
+  public User findUser(String username) {
+    String key = foldUsername(username);
+    if (isLazy()) return key == null ? null : findLazyUser(username, key);
+    User user = key == null ? null : index.get(key);
+    return user == null ? defaultUser : user;
+  }
+
+
+  /** Find user in the cache or create it
+   * @param username Username
+   * @param key Case folded username
+   * @return User or NULL if neither the source nor the configuration has an entry
+   */
+  protected User findLazyUser(String username, String key) {
+    if (!isSafeUsername(username)) {
+      log.warn("Username cannot name a home directory: "+username);
+      return null;
+    }
+
+    synchronized (index) {
+      User user = index.get(key);
+      if (user != null) return user;
+    }
+
+    //Create the user without holding the lock, a concurrent request may create it as well
+    User user;
+    try {
+      user = source == null ? null : source.findUser(username, parser);
+      if (user == null) user = parser.createUser(username);
+    } catch (Throwable e) {
+      log.error("Cannot create filesystem entry of user "+username, e);
+      return null;
+    }
+    if (user == null) return null;
+    user.getHome().getPropertyIndex();
+
+    synchronized (index) {
+      User created = index.get(key);
+      if (created != null) return created;
+      index.put(key, user);
+    }
+    return user;
+  }
+
+
+  /** Get all users (lazy snapshot returns the users it keeps at the moment)
+   * @return Users (read only)
+   */
+  public Set<User> getUsers() {
+    if (!isLazy()) return users;
+    synchronized (index) {
+      return Collections.unmodifiableSet(new LinkedHashSet<User>(index.values()));
+    }
+  }
+
+
+  /** Get default user
+   * @return Default user or NULL (always NULL if lazy)
+   */
+  public User getDefaultUser() {
+    return defaultUser;
+  }
+
+
+  /** Get time when this snapshot was created
+   * @return Time in milliseconds
+   */
+  public long getCreated() {
+    return created;
+  }
+}
@@ -11,11 +11,13 @@ import com.coldcore.coloradoftp.plugin.xmlfs.resolver.GenericVirtualPathResolver
 import com.coldcore.coloradoftp.plugin.xmlfs.resolver.NativeRealPathResolver;
 import com.coldcore.coloradoftp.plugin.xmlfs.resolver.RealPathResolver;
 import com.coldcore.coloradoftp.plugin.xmlfs.resolver.VirtualPathResolver;
+import com.coldcore.coloradoftp.plugin.xmlfs.source.UserSource;
 import com.coldcore.coloradoftp.session.Session;
 import com.coldcore.coloradoftp.session.SessionAttributeName;
 import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.util.Set;
@@ -29,6 +31,13 @@ import java.util.Set;
  * it can be just anywhere in the actual filesystem. User cannot go outside of his/her home directory,
  * but virtual folders can be mounted to user's home allowing user to travel anywhere withing the actual
  * filesystem.
+ * <p/>
+ * Users are kept in an immutable snapshot which is replaced as a whole when the configuration is
+ * reloaded (see reload and startWatching methods). Reading users does not require locking.
+ * <p/>
+ * With lazy users (or a user source) enabled users are not loaded at startup, a user is created
+ * on the first login from the user source or from the configuration (where the default user is
+ * a template for users not listed) and a bounded amount of recently used users is kept.
  */
 public class XmlFS {
 
@@ -38,8 +47,25 @@ public class XmlFS {
     protected ConfigurationParser configurationParser;
     protected VirtualPathResolver virtualPathResolver;
     protected RealPathResolver realPathResolver;
-    protected Set<User> users;
+    protected volatile UsersSnapshot snapshot;
     protected FileAdapter fileAdapter;
+    protected String configurationFile;
+    protected ConfigurationWatcher watcher;
+    protected boolean lazyUsers;
+    protected UserSource userSource;
+    protected int maxCachedUsers;
+
+    public static final String SESSION_USER = "xmlfs.session.user";
+
+
+    /**
+     * User resolved for a session, kept in the session while the username and snapshot stay the same
+     */
+    protected static class SessionUser {
+      String username;
+      User user;
+      UsersSnapshot snapshot;
+    }
 
 
     public XmlFS() {
@@ -48,6 +74,7 @@ public class XmlFS {
       permissionsManager = new GenericPermissionsManager();
       configurationParser = new ManualConfigurationParser();
       fileAdapter = new NativeFileAdapter();
+      maxCachedUsers = 10000;
     }
 
 
@@ -55,7 +82,7 @@ public class XmlFS {
      * Initialization
      * @param doc Configuration XML
      */
-    public void initialize(Document doc) throws ParsingException {
+    public synchronized void initialize(Document doc) throws ParsingException {
         changeFileAdapter();
         configurationParser.initialize(doc);
         afterInitialization();
@@ -66,10 +93,11 @@ public class XmlFS {
      * Initialization
      * @param filename Path to configuration XML
      */
-    public void initialize(String filename) throws ParsingException, FileNotFoundException {
+    public synchronized void initialize(String filename) throws ParsingException, FileNotFoundException {
         changeFileAdapter();
         configurationParser.initialize(filename);
         afterInitialization();
+        configurationFile = filename;
     }
 
 
@@ -77,7 +105,7 @@ public class XmlFS {
      * Initialization
      * @param in Stream with configuration XML
      */
-    public void initialize(InputStream in) throws ParsingException {
+    public synchronized void initialize(InputStream in) throws ParsingException {
         changeFileAdapter();
         configurationParser.initialize(in);
         afterInitialization();
@@ -88,7 +116,46 @@ public class XmlFS {
      * Executed after configuration has been parsed
      */
     protected void afterInitialization() throws ParsingException {
-        users = configurationParser.createUsers();
+        if (isLazyUsers()) snapshot = new UsersSnapshot(userSource, configurationParser.copy(), maxCachedUsers);
+        else snapshot = new UsersSnapshot(configurationParser.createUsers());
+    }
+
+
+    /**
+     * Parse the configuration file again and replace the users.
+     * Operations already working with the old users are not affected.
+     */
+    public synchronized void reload() throws ParsingException, FileNotFoundException {
+        if (configurationFile == null) throw new IllegalStateException("Not initialized from a file");
+        configurationParser.initialize(configurationFile);
+        afterInitialization();
+        if (snapshot.isLazy()) log.info("Configuration reloaded: "+configurationFile+", users are created on demand");
+        else log.info("Configuration reloaded: "+configurationFile+", "+snapshot.getUsers().size()+" users");
+    }
+
+
+    /**
+     * Start reloading the configuration file when it changes
+     * @param interval Time in milliseconds between checks
+     */
+    public synchronized void startWatching(long interval) {
+        stopWatching();
+        File file = configurationFile == null ? null : new File(configurationFile);
+        if (file == null || !file.isFile()) {
+          log.warn("Configuration is not a file and cannot be watched: "+configurationFile);
+          return;
+        }
+        watcher = new ConfigurationWatcher(this, file, interval);
+        watcher.start();
+    }
+
+
+    /**
+     * Stop reloading the configuration file
+     */
+    public synchronized void stopWatching() {
+        if (watcher != null) watcher.stop();
+        watcher = null;
     }
 
 
@@ -141,6 +208,53 @@ public class XmlFS {
     }
 
 
+    /**
+     * Test if users are created on demand rather than loaded at startup
+     * @return TRUE if lazy (or a user source is set), FALSE otherwise
+     */
+    public boolean isLazyUsers() {
+        return lazyUsers || userSource != null;
+    }
+
+
+    /**
+     * Create users on demand rather than load at startup (takes effect on the next initialization or reload)
+     * @param lazyUsers TRUE to create users on demand
+     */
+    public void setLazyUsers(boolean lazyUsers) {
+        this.lazyUsers = lazyUsers;
+    }
+
+
+    public UserSource getUserSource() {
+        return userSource;
+    }
+
+
+    /**
+     * Set source to create users from on demand (takes effect on the next initialization or reload)
+     * @param userSource Source
+     */
+    public void setUserSource(UserSource userSource) {
+        this.userSource = userSource;
+    }
+
+
+    public int getMaxCachedUsers() {
+        return maxCachedUsers;
+    }
+
+
+    /**
+     * Set max amount of users kept when users are created on demand
+     * @param maxCachedUsers Max users
+     */
+    public void setMaxCachedUsers(int maxCachedUsers) {
+        if (maxCachedUsers < 1) throw new IllegalArgumentException("Invalid argument");
+        this.maxCachedUsers = maxCachedUsers;
+    }
+
+
     public ConfigurationParser getConfigurationParser() {
         return configurationParser;
     }
@@ -159,18 +273,57 @@ public class XmlFS {
      */
     public User findUser(Session userSession) {
         String username = (String) userSession.getAttribute(SessionAttributeName.USERNAME);
-        for (User user : users) {
-            if (user.getUsername().equalsIgnoreCase(username)) return user;
-        }
-        for (User user : users) {
-            if (user.isDefault()) return user;
+
+        //Resolved earlier in this session
+        UsersSnapshot current = snapshot;
+        SessionUser su = (SessionUser) userSession.getAttribute(SESSION_USER);
+        if (su != null && su.snapshot == current && (username == null ? su.username == null : username.equals(su.username)))
+          return su.user;
+
+        User user = current.findUser(username);
+        if (user == null) {
+          log.warn("User " + username + " has no filesystem entry");
+          return null;
         }
-        log.warn("User " + username + " has no filesystem entry");
-        return null;
+
+        su = new SessionUser();
+        su.username = username;
+        su.user = user;
+        su.snapshot = current;
+        userSession.setAttribute(SESSION_USER, su);
+        return user;
+    }
+
+
+    /**
+     * Find user (by username, not case sensitive)
+     *
+     * @param username Username
+     * @return User object (or default user object) or NULL if user not found
+     */
+    public User findUser(String username) {
+        User user = snapshot.findUser(username);
+        if (user == null) log.warn("User " + username + " has no filesystem entry");
+        return user;
     }
 
 
+    /**
+     * Get users loaded from the current configuration
+     *
+     * @return Snapshot of users
+     */
+    public UsersSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+
+    /**
+     * Get users (if users are created on demand then only the users kept at the moment)
+     *
+     * @return Users
+     */
     public Set<User> getUsers() {
-        return users;
+        return snapshot.getUsers();
   }
 }
@@ -3,6 +3,7 @@ package com.coldcore.coloradoftp.plugin.xmlfs.parser;
 import com.coldcore.coloradoftp.plugin.xmlfs.User;
 import com.coldcore.coloradoftp.plugin.xmlfs.adapter.FileAdapter;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 
 import java.io.FileNotFoundException;
 import java.io.InputStream;
@@ -39,6 +40,28 @@ public interface ConfigurationParser {
      */
     public Set<User> createUsers() throws ParsingException;
 
+    /** Create a user from XML without creating other users
+     * @param username Username
+     * @return User with this username, user made from the default user (sharing the home of the
+     *         default user) or NULL if the configuration has neither
+     */
+    public User createUser(String username) throws ParsingException;
+
+    /** Create a user from a user element (same format as users in the configuration)
+     * @param userE User element
+     * @param username Username of the user or NULL to take the username from the element (a user
+     *                 made from the default user shares its home, otherwise the home is named after
+     *                 the username in lower case)
+     * @return User and its related objects
+     */
+    public User createUser(Element userE, String username) throws ParsingException;
+
+    /** Create a parser holding the current configuration, later initializations of this parser
+     * do not affect the copy (users created on demand keep using one version of the configuration)
+     * @return Parser
+     */
+    public ConfigurationParser copy();
+
     /** Get absolute path to users directory
      * @return Absolute name of users directory
      */
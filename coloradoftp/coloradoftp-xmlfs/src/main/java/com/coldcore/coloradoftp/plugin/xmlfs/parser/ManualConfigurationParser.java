@@ -27,6 +27,9 @@ import java.util.regex.Pattern;
 /**
  * XML configuration file parser.
  * This class parses XML using proprietary (manual) logic.
+ *
+ * Users are created either all at once or one by one on demand, the latter is synchronized
+ * as the parsed document is shared.
  */
 public class ManualConfigurationParser implements ConfigurationParser {
   private static final Pattern VARIABLE_PATTERN = Pattern.compile("\\$\\{([\\w]+)\\}");	// \$\{([a-zA-Z_0-9]+)\}
@@ -34,6 +37,8 @@ public class ManualConfigurationParser implements ConfigurationParser {
   protected Document doc;
   protected String usersPath;
   protected FileAdapter fileAdapter;
+  protected Map<String,Element> userElements;
+  protected Element defaultElement;
 
 
   public void setFileAdapter(FileAdapter fileAdapter) {
@@ -97,12 +102,32 @@ public class ManualConfigurationParser implements ConfigurationParser {
   }
 
 
-  public void initialize(Document doc) throws ParsingException {
-    this.doc = doc;
+  public synchronized void initialize(Document doc) throws ParsingException {
     if (doc == null) throw new IllegalArgumentException("Document must not be null");
 
-    usersPath = getSingleNodeText("file-system/users-path", doc);
+    //Keep the previous configuration if the new one is invalid
+    String usersPath = getSingleNodeText("file-system/users-path", doc);
     if (usersPath == null) throw new ParsingException("error for node <users-path>");
+    this.doc = doc;
+    this.usersPath = usersPath;
+    userElements = null;
+    defaultElement = null;
+  }
+
+
+  public synchronized ConfigurationParser copy() {
+    ManualConfigurationParser copy;
+    try {
+      copy = getClass().newInstance();
+    } catch (Exception e) {
+      throw new IllegalStateException("Cannot create parser "+getClass().getName(), e);
+    }
+    copy.doc = doc;
+    copy.usersPath = usersPath;
+    copy.fileAdapter = fileAdapter;
+    copy.userElements = userElements;
+    copy.defaultElement = defaultElement;
+    return copy;
   }
 
 
@@ -285,69 +310,119 @@ public class ManualConfigurationParser implements ConfigurationParser {
       Element[] userEs = Xml.findElements("file-system/users/user", doc);
       log.debug("Found "+userEs.length+" <user> nodes");
 
-      for (Element userE : userEs) {
-        User user = new User();
+      for (Element userE : userEs)
+        users.add(createUser(userE, null));
+
+      log.info("Loaded "+users.size()+" users");
+      return users;
+
+    } catch (Throwable e) {
+      log.error("Error parsing configuration", e);
+      if (e instanceof ParsingException) throw (ParsingException) e;
+      throw new ParsingException(e);
+    }
+  }
+
 
-        // users/user/username
-        user.setUsername(getSingleNodeText("username", userE));
-        if (user.getUsername() == null) throw new ParsingException("<user> node error for node <username>");
+  public synchronized User createUser(Element userE, String username) throws ParsingException {
+    User user = new User();
 
-        // users/user/@default
-        String def = userE.getAttribute("default");
-        if (def.length() > 0) {
-          if (!def.equals("1") && !def.equals("0"))
-            throw new ParsingException("User "+user.getUsername()+", invalid 'default'");
-          user.setDefault(def.equals("1"));
-        }
+    if (username == null) {
+      // users/user/username
+      user.setUsername(getSingleNodeText("username", userE));
+      if (user.getUsername() == null) throw new ParsingException("<user> node error for node <username>");
 
-        // users/user/home
-        Element[] homeEs = Xml.findElements("home", userE);
-        if (homeEs.length != 1) throw new ParsingException("User "+user.getUsername()+", error for node <home>");
+      // users/user/@default
+      String def = userE.getAttribute("default");
+      if (def.length() > 0) {
+        if (!def.equals("1") && !def.equals("0"))
+          throw new ParsingException("User "+user.getUsername()+", invalid 'default'");
+        user.setDefault(def.equals("1"));
+      }
+    } else {
+      user.setUsername(username);
+    }
 
-        UserHome home = new UserHome(fileAdapter);
-        home.setPath(usersPath+"/"+user.getUsername());
-        user.setHome(home);
+    // users/user/home
+    Element[] homeEs = Xml.findElements("home", userE);
+    if (homeEs.length != 1) throw new ParsingException("User "+user.getUsername()+", error for node <home>");
 
-        // users/user/home/properties
-        home.addProperties(getFolderProperties(homeEs[0], user, home.getPath()));
+    /* Users created from the default user share its home (as the default user is shared when
+     * users are loaded at startup), other users get a home named after the username in lower case
+     */
+    String homeName;
+    if (username == null) homeName = user.getUsername();
+    else if (userE.getAttribute("default").equals("1")) homeName = getSingleNodeText("username", userE);
+    else homeName = username.toLowerCase(Locale.ENGLISH);
+    if (homeName == null) throw new ParsingException("<user> node error for node <username>");
 
-        // users/user/home/virtual-folders/folder
-        Element[] folderEs = Xml.findElements("virtual-folders/folder", homeEs[0]);
-        log.debug("Found "+folderEs.length+" <virtual-folders/folder> nodes, user: "+user.getUsername());
-        Set<VirtualFolder> folders = new HashSet<VirtualFolder>();
+    UserHome home = new UserHome(fileAdapter);
+    home.setPath(usersPath+"/"+homeName);
+    user.setHome(home);
 
-        for (Element folderE : folderEs) {
-          VirtualFolder folder = new VirtualFolder();
+    // users/user/home/properties
+    home.addProperties(getFolderProperties(homeEs[0], user, home.getPath()));
 
-          folder.setName(getSingleNodeText("name", folderE));
-          if (folder.getName() == null)
-            throw new ParsingException("User "+user.getUsername()+", error for node <home/virtual-folders/folder/name>");
+    // users/user/home/virtual-folders/folder
+    Element[] folderEs = Xml.findElements("virtual-folders/folder", homeEs[0]);
+    log.debug("Found "+folderEs.length+" <virtual-folders/folder> nodes, user: "+user.getUsername());
+    Set<VirtualFolder> folders = new HashSet<VirtualFolder>();
 
-          folder.setPath(getSingleNodeText("path", folderE));
-          if (folder.getPath() == null)
-            throw new ParsingException("User "+user.getUsername()+", error for node <home/virtual-folders/folder/name>");
+    for (Element folderE : folderEs) {
+      VirtualFolder folder = new VirtualFolder();
 
-          folder.addProperties(getFolderProperties(folderE, user, folder.getPath()));
+      folder.setName(getSingleNodeText("name", folderE));
+      if (folder.getName() == null)
+        throw new ParsingException("User "+user.getUsername()+", error for node <home/virtual-folders/folder/name>");
 
-          folders.add(folder);
-        }
+      folder.setPath(getSingleNodeText("path", folderE));
+      if (folder.getPath() == null)
+        throw new ParsingException("User "+user.getUsername()+", error for node <home/virtual-folders/folder/name>");
 
-        home.addFolders(folders);
+      folder.addProperties(getFolderProperties(folderE, user, folder.getPath()));
 
-        users.add(user);
-      }
+      folders.add(folder);
+    }
 
-      log.info("Loaded "+users.size()+" users");
-      return users;
+    home.addFolders(folders);
+
+    return user;
+  }
+
+
+  public synchronized User createUser(String username) throws ParsingException {
+    if (username == null) return null;
+    try {
+      if (userElements == null) indexUserElements();
+      Element userE = userElements.get(username.toLowerCase(Locale.ENGLISH));
+      if (userE != null) return createUser(userE, null);
+      if (defaultElement != null) return createUser(defaultElement, username);
+      return null;
 
     } catch (Throwable e) {
-      log.error("Error parsing configuration", e);
+      log.error("Error parsing configuration of user "+username, e);
       if (e instanceof ParsingException) throw (ParsingException) e;
       throw new ParsingException(e);
     }
   }
 
 
+  /** Index user elements by case folded username (the first element of a username wins) */
+  protected void indexUserElements() throws ParsingException {
+    Map<String,Element> map = new HashMap<String,Element>();
+    Element def = null;
+    for (Element userE : Xml.findElements("file-system/users/user", doc)) {
+      String username = getSingleNodeText("username", userE);
+      if (username == null) throw new ParsingException("<user> node error for node <username>");
+      String key = username.toLowerCase(Locale.ENGLISH);
+      if (!map.containsKey(key)) map.put(key, userE);
+      if (def == null && userE.getAttribute("default").equals("1")) def = userE;
+    }
+    userElements = map;
+    defaultElement = def;
+  }
+
+
   /** Get absolute path to users directory
    * @return Absolute name of users directory
    */
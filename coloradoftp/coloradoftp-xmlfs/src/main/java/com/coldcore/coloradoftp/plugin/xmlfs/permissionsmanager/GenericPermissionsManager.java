@@ -4,7 +4,6 @@ import com.coldcore.coloradoftp.plugin.xmlfs.*;
 import com.coldcore.coloradoftp.plugin.xmlfs.adapter.FileAdapter;
 import org.apache.log4j.Logger;
 
-import java.util.LinkedHashSet;
 import java.util.Set;
 
 /**
@@ -32,7 +31,7 @@ public class GenericPermissionsManager implements PermissionsManager {
   }
 
 
-    /** Find closest directory properties match for the given path.
+  /** Find closest directory properties match for the given path.
    * Every user has a user home and a set of virtual folders and those have directory
    * properties. This method locates an object that contains the given path but is not
    * that path itself (except if the path is user home).
@@ -47,40 +46,15 @@ public class GenericPermissionsManager implements PermissionsManager {
       return null;
     }
 
-    /* Find the closest configured parent directory and get its properties (we will just find
-     * the longest path). We will use the parent of the path because parent's properties
-     * contain rules for the path.
+    /* Find the closest configured parent directory and get its properties (the deepest
+     * configured directory in the index). We will use the parent of the path because
+     * parent's properties contain rules for the path.
      */
-    Set<DirProperty> properties = new LinkedHashSet<DirProperty>();
-    int length = 0;
     String parent = fileAdapter.getParentPath(path);
-
-    //Check if the path is within user home
-    Set<DirProperty> set = home.getProperties();
-    for (DirProperty dp : set) {
-      if (parent.startsWith(dp.getDirectory())) {
-        if (length > dp.getDirectory().length()) continue;
-        if (length < dp.getDirectory().length()) properties.clear();
-        properties.add(dp);
-        length = dp.getDirectory().length();
-      }
-    }
-
-    //Check if the path is within virtual folders
-    for (VirtualFolder folder : home.getVirtualFolders()) {
-      set = folder.getProperties();
-      for (DirProperty dp : set) {
-        if (parent.startsWith(dp.getDirectory())) {
-          if (length > dp.getDirectory().length()) continue;
-          if (length < dp.getDirectory().length()) properties.clear();
-          properties.add(dp);
-          length = dp.getDirectory().length();
-        }
-      }
-    }
+    Set<DirProperty> properties = home.getPropertyIndex().findClosest(parent);
 
     //This path is not configured for the user
-    if (properties.size() == 0) {
+    if (properties == null) {
       log.debug("Path ["+path+"] not configured, no properties");
       return null;
     }
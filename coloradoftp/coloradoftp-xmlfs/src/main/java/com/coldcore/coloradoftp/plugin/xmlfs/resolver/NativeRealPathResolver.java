@@ -5,13 +5,73 @@ import com.coldcore.coloradoftp.plugin.xmlfs.VirtualFolder;
 import org.apache.log4j.Logger;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Uses java.io.File to perform virtual to real path mappings.
+ *
+ * Resolved paths are cached per user home (the least recently used are evicted), a cached
+ * path is returned as long as it still exists.
  */
 public class NativeRealPathResolver implements RealPathResolver {
 
   private static Logger log = Logger.getLogger(NativeRealPathResolver.class);
+  protected Map<PathKey,String> cache;
+  protected int cacheSize;
+
+
+  /** Cache key: virtual path of a particular user home */
+  protected static class PathKey {
+    private UserHome home;
+    private String path;
+
+    public PathKey(UserHome home, String path) {
+      this.home = home;
+      this.path = path;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof PathKey)) return false;
+      PathKey key = (PathKey) o;
+      return home == key.home && path.equals(key.path);
+    }
+
+    public int hashCode() {
+      return 31*System.identityHashCode(home)+path.hashCode();
+    }
+  }
+
+
+  public NativeRealPathResolver() {
+    cacheSize = 1000;
+    cache = new LinkedHashMap<PathKey,String>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<PathKey,String> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+
+  /** Get max amount of resolved paths to cache
+   * @return Cache size
+   */
+  public int getCacheSize() {
+    return cacheSize;
+  }
+
+
+  /** Set max amount of resolved paths to cache
+   * @param cacheSize Cache size, 0 to disable the cache
+   */
+  public void setCacheSize(int cacheSize) {
+    if (cacheSize < 0) throw new IllegalArgumentException("Invalid argument");
+    synchronized (cache) {
+      this.cacheSize = cacheSize;
+      cache.clear();
+    }
+  }
 
 
   public String virtualPathToReal(String path, UserHome home) {
@@ -20,6 +80,38 @@ public class NativeRealPathResolver implements RealPathResolver {
       return null;
     }
 
+    PathKey key = new PathKey(home, path);
+    String rpath;
+    synchronized (cache) {
+      rpath = cache.get(key);
+    }
+
+    //Cached path is still valid if it exists
+    if (rpath != null) {
+      if (new File(rpath).exists()) {
+        log.debug("Virtual path ["+path+"] converted to real ["+rpath+"] (cached)");
+        return rpath;
+      }
+      synchronized (cache) {
+        cache.remove(key);
+      }
+    }
+
+    rpath = resolve(path, home);
+    if (rpath != null && cacheSize > 0)
+      synchronized (cache) {
+        cache.put(key, rpath);
+      }
+    return rpath;
+  }
+
+
+  /** Convert virtual path to real without using the cache
+   * @param path Absolute path name to convert
+   * @param home User home
+   * @return Absolute path on a hard drive or NULL if cannot be converted
+   */
+  protected String resolve(String path, UserHome home) {
     /* First we must determine where input points to. It can point to a root folder,
      * virtual folder, subfolder in user's home path or to a file in user's home path.
      * Then we must check if the path input points to exists on HDD.
@@ -27,7 +119,7 @@ public class NativeRealPathResolver implements RealPathResolver {
 
     //Points to a file in user home path
     File file =  new File(home.getPath()+"/"+path.substring(1));
-    if (file.exists() && file.isFile()) {
+    if (file.isFile()) {
       log.debug("Virtual path ["+path+"] converted to real ["+file.getAbsolutePath()+"]");
       return file.getAbsolutePath();
     }
@@ -35,7 +127,7 @@ public class NativeRealPathResolver implements RealPathResolver {
     //Points to a root folder
     if (path.equals("/")) {
       file = new File(home.getPath());
-      if (file.exists() && file.isDirectory()) {
+      if (file.isDirectory()) {
         log.debug("Virtual path ["+path+"] converted to real ["+file.getAbsolutePath()+"]");
         return file.getAbsolutePath();
       }
@@ -54,12 +146,7 @@ public class NativeRealPathResolver implements RealPathResolver {
       firtFolderPath = folder.getPath();
     } else {
       //First folder is a sub folder or file in user's home path
-      file = new File(home.getPath());
-      if (file.exists() && file.isDirectory()) {
-        File[] files = file.listFiles();
-        for (File f : files)
-          if (f.getName().equals(firtFolder) && f.isDirectory()) firtFolderPath = f.getAbsolutePath();
-      }
+      firtFolderPath = findHomeFolder(new File(home.getPath()), firtFolder);
     }
     if (firtFolderPath == null) {
       log.debug("Virtual path ["+path+"], first folder not found");
@@ -79,4 +166,30 @@ public class NativeRealPathResolver implements RealPathResolver {
     return null;
   }
 
-}
\ No newline at end of file
+
+  /** Find a sub folder in user's home path, the name must match exactly
+   * @param home User home folder
+   * @param name Sub folder name
+   * @return Absolute path or NULL if not found
+   */
+  protected String findHomeFolder(File home, String name) {
+    File file = new File(home, name);
+    if (!file.isDirectory()) return null;
+
+    /* On a case insensitive file system the folder may exist with a name in a different case.
+     * Its canonical name tells the real one, but it also differs for symbolic links, so
+     * scan the home folder only if the names do not match.
+     */
+    try {
+      if (file.getCanonicalFile().getName().equals(name)) return file.getAbsolutePath();
+    } catch (IOException e) {
+      log.debug("Cannot get canonical name of "+file.getAbsolutePath()+" (scanning)");
+    }
+
+    File[] files = home.listFiles();
+    if (files == null) return null;
+    for (File f : files)
+      if (f.getName().equals(name) && f.isDirectory()) return f.getAbsolutePath();
+    return null;
+  }
+}
@@ -0,0 +1,63 @@
+package com.coldcore.coloradoftp.plugin.xmlfs.source;
+
+import com.coldcore.coloradoftp.plugin.xmlfs.User;
+import com.coldcore.coloradoftp.plugin.xmlfs.UsersSnapshot;
+import com.coldcore.coloradoftp.plugin.xmlfs.parser.ConfigurationParser;
+import com.coldcore.coloradoftp.plugin.xmlfs.parser.ParsingException;
+import com.coldcore.misc5.Xml;
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Reads every user from its own XML file.
+ *
+ * The file of a user is named after the username in lower case with ".xml" extension and
+ * its root is a <user> element in the same format as users in the configuration (the username
+ * node may be omitted). Usernames which cannot be file names are never looked up. The home of
+ * such a user is named after the username in lower case and must exist in the users directory.
+ */
+public class FileUserSource implements UserSource {
+
+  private static Logger log = Logger.getLogger(FileUserSource.class);
+  protected String directory;
+
+
+  /** Get directory with user files
+   * @return Directory
+   */
+  public String getDirectory() {
+    return directory;
+  }
+
+
+  /** Set directory with user files
+   * @param directory Directory
+   */
+  public void setDirectory(String directory) {
+    if (directory == null) throw new IllegalArgumentException("Invalid argument");
+    this.directory = directory;
+  }
+
+
+  public User findUser(String username, ConfigurationParser parser) throws Exception {
+    if (directory == null) throw new IllegalStateException("Directory is not set");
+    if (!UsersSnapshot.isSafeUsername(username)) {
+      log.debug("Username cannot be a file name: "+username);
+      return null;
+    }
+
+    File file = new File(directory, username.toLowerCase(Locale.ENGLISH)+".xml");
+    if (!file.isFile()) return null;
+
+    Document doc = Xml.loadXml(file);
+    Element[] userEs = Xml.findElements("user", doc);
+    if (userEs.length != 1) throw new ParsingException("File "+file.getAbsolutePath()+" has no <user> node");
+
+    log.debug("Loading user "+username+" from "+file.getAbsolutePath());
+    return parser.createUser(userEs[0], username);
+  }
+}
@@ -0,0 +1,21 @@
+package com.coldcore.coloradoftp.plugin.xmlfs.source;
+
+import com.coldcore.coloradoftp.plugin.xmlfs.User;
+import com.coldcore.coloradoftp.plugin.xmlfs.parser.ConfigurationParser;
+
+/**
+ * Source of users XmlFS resolves on demand (one user at a time) instead of loading all
+ * users of the configuration at startup.
+ *
+ * Implementations may read users from a database, a user DAO or a file per user. Users the
+ * source does not know get an entry made from the default user of the configuration.
+ */
+public interface UserSource {
+
+  /** Find user
+   * @param username Username (as the user logged in)
+   * @param parser Parser of the current configuration (to create users in the configuration format)
+   * @return User or NULL if the source has no entry for the user
+   */
+  public User findUser(String username, ConfigurationParser parser) throws Exception;
+}